@@ -0,0 +1,218 @@
+package com.nderr.jconstellate;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Headless batch tool: for each job (observer, time and view) in a CSV file,
+ * finds the stars and constellations above the horizon and in view. Jobs
+ * are read and evaluated in blocks, each block in parallel against one
+ * shared read-only catalog, and results are streamed out in job order.
+ *
+ * Job lines are lat,lon,time,el,az,spin,angDiam with angles in degrees and
+ * time in milliseconds since the UTC epoch. Output is CSV, or binary if the
+ * output file ends in .bin: per job, int job number, int star count, then
+ * (int id, float x, float y) per star, int constellation count, then int id
+ * per constellation, all big endian.
+ */
+public class BatchVisibility {
+
+	public static final int BLOCK = 4096; // jobs held in memory at once
+	public static final int FIELDS = 7;
+
+	private final SkySnapshot snap; // catalog shared by all jobs
+	private final boolean binary; // binary rather than csv output
+
+	public BatchVisibility(SkySnapshot snap, boolean binary) {
+		this.snap = snap;
+		this.binary = binary;
+	}
+
+	/**
+	 * Runs every job from the reader, writing results to out
+	 * @return number of jobs run
+	 */
+	public long run(BufferedReader in, OutputStream out) throws IOException {
+
+		final double[][] jobs = new double[BLOCK][FIELDS];
+		final long[] times = new long[BLOCK];
+		final byte[][] results = new byte[BLOCK][];
+		long total = 0;
+
+		if (!binary)
+			out.write("job,stars,consts,star_ids,const_codes\n".getBytes("UTF-8"));
+
+		String line;
+		int n = 0;
+		boolean first = true;
+		while (true) {
+
+			// fill a block
+			line = in.readLine();
+			if (line != null) {
+				line = line.trim();
+				if (line.length() == 0)
+					continue;
+				if (!parse(line, jobs[n], times, n)) {
+					if (first) {
+						first = false; // header
+						continue;
+					}
+					throw new IOException("bad job line: " + line);
+				}
+				first = false;
+				n++;
+				if (n < BLOCK)
+					continue;
+			}
+			if (n == 0)
+				break;
+
+			// evaluate block in parallel, one view per chunk of jobs
+			final long base = total;
+			Parallel.forRange(n, 1, new Parallel.Task() {
+				public void run(int from, int to) {
+					SkyView view = new SkyView();
+					for (int i = from; i < to; i++)
+						results[i] = evaluate(view, base + i, jobs[i], times[i]);
+				}
+			});
+
+			// write in order
+			for (int i = 0; i < n; i++) {
+				out.write(results[i]);
+				results[i] = null;
+			}
+			total += n;
+			n = 0;
+			if (line == null)
+				break;
+		}
+		out.flush();
+		return total;
+	}
+
+	/**
+	 * Parses a job line into job fields and time
+	 * @return whether the line was a job
+	 */
+	private static boolean parse(String line, double[] job, long[] times, int i) {
+		String[] info = line.split(",");
+		if (info.length < FIELDS)
+			return false;
+		try {
+			for (int f = 0; f < FIELDS; f++)
+				job[f] = Double.parseDouble(info[f].trim());
+			times[i] = Long.parseLong(info[2].trim());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs one job and encodes its result
+	 */
+	private byte[] evaluate(SkyView view, long job, double[] f, long time) {
+
+		double rad = Math.PI / 180;
+		CoordTrans ct = new CoordTrans(f[0]*rad, f[1]*rad, f[3]*rad,
+				f[4]*rad, f[5]*rad, f[6]*rad);
+		int count = view.look(snap, ct, time, true);
+		List<Constellation> cons = view.getConst();
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 12 * count);
+			if (binary) {
+				DataOutputStream dos = new DataOutputStream(bytes);
+				dos.writeInt((int) job);
+				dos.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					dos.writeInt(view.getStar(i).ID_NUM);
+					dos.writeFloat(view.getX(i));
+					dos.writeFloat(view.getY(i));
+				}
+				dos.writeInt(cons.size());
+				for (Constellation c : cons)
+					dos.writeInt(c.ID_NUM);
+				dos.flush();
+			} else {
+				StringBuilder sb = new StringBuilder();
+				sb.append(job).append(',').append(count).append(',')
+						.append(cons.size()).append(',');
+				for (int i = 0; i < count; i++) {
+					if (i > 0)
+						sb.append(' ');
+					sb.append(view.getStar(i).ID_NUM);
+				}
+				sb.append(',');
+				for (int i = 0; i < cons.size(); i++) {
+					if (i > 0)
+						sb.append(' ');
+					sb.append(cons.get(i).getCode());
+				}
+				sb.append('\n');
+				bytes.write(sb.toString().getBytes("UTF-8"));
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e); // not thrown by byte arrays
+		}
+	}
+
+	/**
+	 * Usage: BatchVisibility jobs.csv out.csv|out.bin [stars.json const.json magLimit]
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 2) {
+			System.out.println("usage: BatchVisibility jobs.csv out.csv|out.bin "
+					+ "[stars.json const.json magLimit]");
+			System.exit(-1);
+		}
+		String starFile = args.length > 2 ? args[2] : "stars.json";
+		String constFile = args.length > 3 ? args[3] : "const.json";
+		double mag = args.length > 4 ? Double.parseDouble(args[4]) : 6.5;
+
+		// load catalog once
+		Sky sky = null;
+		try {
+			sky = Sky.load(new File(starFile), new File(constFile), mag);
+		} catch (IOException e) {
+			System.out.println("Problem with catalog: " + e.getMessage());
+			System.exit(-1);
+		}
+
+		// run jobs
+		BatchVisibility batch = new BatchVisibility(sky.getSnapshot(), args[1].endsWith(".bin"));
+		long t1 = System.nanoTime();
+		long jobs = 0;
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(args[0]));
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16);
+			try {
+				jobs = batch.run(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Problem running jobs: " + e.getMessage());
+			System.exit(-1);
+		}
+		long t2 = System.nanoTime();
+
+		double secs = (t2 - t1) / 1e9;
+		System.out.println(jobs + " jobs in " + String.format("%.3f", secs) + " s ("
+				+ String.format("%.1f", jobs / secs) + " jobs/s, "
+				+ Parallel.THREADS + " threads)");
+	}
+}
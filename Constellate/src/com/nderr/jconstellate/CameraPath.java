@@ -0,0 +1,394 @@
+package com.nderr.jconstellate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A camera flying through keyframes on the celestial sphere. Orientations
+ * are kept as unit quaternions and slerped, and the field of view is
+ * interpolated geometrically, with each leg eased in and out, so there is
+ * no gimbal flip at the poles and no Euler trig per frame. Each frame's
+ * pose is a screen matrix in the layout of CoordTrans.getMatrix.
+ *
+ * Many frames can be projected at once: consecutive frames are batched,
+ * the spatial index is queried once per batch with a cone covering all of
+ * its frames, and each frame then only tests and projects those candidates.
+ */
+public class CameraPath {
+
+	public static final int DEFAULT_BATCH = 16; // frames per index query
+
+	/**
+	 * Receives projected frames. Batches run on the shared pool, so frames
+	 * may arrive out of order and from several threads at once. The arrays
+	 * are reused after the call returns.
+	 */
+	public interface FrameSink {
+		void frame(int i, double t, double[] m, Star[] stars, float[] x, float[] y, int count);
+	}
+
+	private final List<Double> times = new ArrayList<Double>(); // key times, increasing
+	private final List<double[]> quats = new ArrayList<double[]>(); // w,x,y,z per key
+	private final List<Double> angs = new ArrayList<Double>(); // angular diameter per key
+
+	/**
+	 * Adds a keyframe at time t (seconds along the path) looking as the
+	 * coord transfer object does at the provided UTC time
+	 */
+	public void addKey(double t, CoordTrans ct, long time) {
+		double[] m = ct.getMatrix(time);
+		double scale = ct.getAngDiam() / 2;
+		double[] rot = {
+			m[0]*scale, m[1]*scale, m[2]*scale,
+			m[3]*scale, m[4]*scale, m[5]*scale,
+			m[6], m[7], m[8]
+		};
+		addKey(t, rot, ct.getAngDiam());
+	}
+
+	/**
+	 * Adds a keyframe at time t looking along the given celestial direction
+	 * with the given spin (radians, clockwise) from celestial north up
+	 */
+	public void addKey(double t, Vector axis, double spin, double ang) {
+
+		// west to the right and north up, as seen from inside, then spun
+		double nx = axis.getX(), ny = axis.getY(), nz = axis.getZ();
+		double rx = ny, ry = -nx, rz = 0; // n cross celestial north
+		double norm = Math.sqrt(rx*rx + ry*ry);
+		if (norm < 1e-9) {
+			rx = 0; ry = -1; norm = 1; // at a pole, any right will do
+		}
+		rx /= norm; ry /= norm;
+		double ux = ry*nz - rz*ny, uy = rz*nx - rx*nz, uz = rx*ny - ry*nx; // right cross n
+		double c = Math.cos(spin), s = Math.sin(spin);
+		double[] rot = {
+			c*rx - s*ux, c*ry - s*uy, c*rz - s*uz,
+			s*rx + c*ux, s*ry + c*uy, s*rz + c*uz,
+			nx, ny, nz
+		};
+		addKey(t, rot, ang);
+	}
+
+	/**
+	 * Adds a keyframe at time t with the given rotation (row major, rows
+	 * screen right, screen up and line of sight, a mirror image basis as
+	 * from CoordTrans) and angular diameter
+	 */
+	public void addKey(double t, double[] rot, double ang) {
+		if (!times.isEmpty() && t <= times.get(times.size() - 1))
+			throw new IllegalArgumentException("keyframes must be added in time order");
+
+		// unmirror screen x so it's a proper rotation
+		double[] r = rot.clone();
+		r[0] = -r[0]; r[1] = -r[1]; r[2] = -r[2];
+		times.add(t);
+		quats.add(toQuat(r));
+		angs.add(ang);
+	}
+
+	/**
+	 * Gets time of the first keyframe
+	 */
+	public double getStart() {
+		return times.get(0);
+	}
+
+	/**
+	 * Gets time of the last keyframe
+	 */
+	public double getEnd() {
+		return times.get(times.size() - 1);
+	}
+
+	/**
+	 * Gets number of keyframes
+	 */
+	public int numKeys() {
+		return times.size();
+	}
+
+	/**
+	 * Gets the angular diameter at time t
+	 */
+	public double getAngDiam(double t) {
+		int k = leg(t);
+		double u = ease(t, k);
+		if (k + 1 == times.size())
+			return angs.get(k);
+		return angs.get(k) * Math.pow(angs.get(k + 1) / angs.get(k), u);
+	}
+
+	/**
+	 * Gets the screen matrix at time t, in the layout of
+	 * CoordTrans.getMatrix
+	 */
+	public double[] getMatrix(double t) {
+		return getMatrix(t, new double[9]);
+	}
+
+	/**
+	 * Writes the screen matrix at time t into out
+	 * @return out
+	 */
+	public double[] getMatrix(double t, double[] out) {
+
+		// interpolated orientation, into out since toMatrix reads it first
+		int k = leg(t);
+		double u = ease(t, k);
+		double[] q = k + 1 == times.size() ? quats.get(k)
+				: slerp(quats.get(k), quats.get(k + 1), u, out);
+		double ang = k + 1 == times.size() ? angs.get(k)
+				: angs.get(k) * Math.pow(angs.get(k + 1) / angs.get(k), u);
+
+		// rotation, mirrored back, with screen rows scaled like getXY
+		toMatrix(q, out);
+		double scale = 2 / ang;
+		for (int i = 0; i < 3; i++)
+			out[i] *= -scale;
+		for (int i = 3; i < 6; i++)
+			out[i] *= scale;
+		return out;
+	}
+
+	/**
+	 * Gets the keyframe starting the leg holding time t
+	 */
+	private int leg(double t) {
+		int k = 0;
+		while (k + 1 < times.size() && times.get(k + 1) <= t)
+			k++;
+		return k;
+	}
+
+	/**
+	 * Gets how far along leg k time t is, eased in and out
+	 */
+	private double ease(double t, int k) {
+		if (k + 1 == times.size())
+			return 0;
+		double u = (t - times.get(k)) / (times.get(k + 1) - times.get(k));
+		u = Math.max(0, Math.min(1, u));
+		return u * u * (3 - 2*u);
+	}
+
+	/**
+	 * Projects frames t0, t0 + dt, ... of the path against the snapshot's
+	 * stars brighter than its cutoff, querying the index once per batch of
+	 * frames, and hands each frame's stars in view to the sink
+	 * @return total stars projected over all frames
+	 */
+	public long project(final SkySnapshot snap, final double t0, final double dt,
+			final int frames, final int batch, final FrameSink sink) {
+
+		final AtomicLong total = new AtomicLong();
+		int batches = (frames + batch - 1) / batch;
+
+		Parallel.forRange(batches, 1, new Parallel.Task() {
+			public void run(int from, int to) {
+
+				// buffers per worker
+				List<Star> cand = new ArrayList<Star>();
+				double[][] ms = new double[batch][9];
+				double[] minDots = new double[batch];
+				Star[] stars = new Star[0];
+				float[] x = new float[0], y = new float[0];
+
+				for (int b = from; b < to; b++) {
+					int first = b * batch;
+					int n = Math.min(batch, frames - first);
+
+					// poses, and a cone around all of them
+					double ax = 0, ay = 0, az = 0, reach = 0;
+					for (int f = 0; f < n; f++) {
+						getMatrix(t0 + (first + f) * dt, ms[f]);
+						ax += ms[f][6]; ay += ms[f][7]; az += ms[f][8];
+					}
+					double norm = Math.sqrt(ax*ax + ay*ay + az*az);
+					Vector axis = norm < 1e-9 ? new Vector(ms[0][6], ms[0][7], ms[0][8])
+							: new Vector(ax / norm, ay / norm, az / norm);
+					for (int f = 0; f < n; f++) {
+						double ang = Math.min(getAngDiam(t0 + (first + f) * dt), Math.PI/2);
+						minDots[f] = SkyIndex.minDot(ang);
+						double off = Math.acos(Math.max(-1, Math.min(1, axis.getX()*ms[f][6]
+								+ axis.getY()*ms[f][7] + axis.getZ()*ms[f][8])));
+						reach = Math.max(reach, off + ang);
+					}
+
+					// candidates once for the batch
+					cand.clear();
+					snap.getIndex().query(axis, Math.min(reach, Math.PI), snap.getMagLimit(), cand);
+					if (stars.length < cand.size()) {
+						stars = new Star[cand.size()];
+						x = new float[cand.size()];
+						y = new float[cand.size()];
+					}
+
+					// each frame tests and projects only the candidates
+					for (int f = 0; f < n; f++) {
+						double[] m = ms[f];
+						int count = 0;
+						for (int i = 0; i < cand.size(); i++) {
+							Star st = cand.get(i);
+							Vector v = st.getHat();
+							double vx = v.getX(), vy = v.getY(), vz = v.getZ();
+							if (m[6]*vx + m[7]*vy + m[8]*vz <= minDots[f])
+								continue;
+							stars[count] = st;
+							x[count] = (float) (m[0]*vx + m[1]*vy + m[2]*vz);
+							y[count] = (float) (m[3]*vx + m[4]*vy + m[5]*vz);
+							count++;
+						}
+						total.addAndGet(count);
+						if (sink != null)
+							sink.frame(first + f, t0 + (first + f) * dt, m, stars, x, y, count);
+					}
+				}
+			}
+		});
+		return total.get();
+	}
+
+	/**
+	 * Converts an orthonormal row major rotation to a unit quaternion
+	 */
+	static double[] toQuat(double[] r) {
+		double w, x, y, z;
+		double trace = r[0] + r[4] + r[8];
+		if (trace > 0) {
+			double s = 2 * Math.sqrt(1 + trace);
+			w = s / 4;
+			x = (r[7] - r[5]) / s;
+			y = (r[2] - r[6]) / s;
+			z = (r[3] - r[1]) / s;
+		} else if (r[0] > r[4] && r[0] > r[8]) {
+			double s = 2 * Math.sqrt(1 + r[0] - r[4] - r[8]);
+			w = (r[7] - r[5]) / s;
+			x = s / 4;
+			y = (r[1] + r[3]) / s;
+			z = (r[2] + r[6]) / s;
+		} else if (r[4] > r[8]) {
+			double s = 2 * Math.sqrt(1 + r[4] - r[0] - r[8]);
+			w = (r[2] - r[6]) / s;
+			x = (r[1] + r[3]) / s;
+			y = s / 4;
+			z = (r[5] + r[7]) / s;
+		} else {
+			double s = 2 * Math.sqrt(1 + r[8] - r[0] - r[4]);
+			w = (r[3] - r[1]) / s;
+			x = (r[2] + r[6]) / s;
+			y = (r[5] + r[7]) / s;
+			z = s / 4;
+		}
+		double norm = Math.sqrt(w*w + x*x + y*y + z*z);
+		return new double[] { w / norm, x / norm, y / norm, z / norm };
+	}
+
+	/**
+	 * Writes the row major rotation of a unit quaternion into out
+	 */
+	static void toMatrix(double[] q, double[] out) {
+		double w = q[0], x = q[1], y = q[2], z = q[3];
+		out[0] = 1 - 2*(y*y + z*z); out[1] = 2*(x*y - w*z);     out[2] = 2*(x*z + w*y);
+		out[3] = 2*(x*y + w*z);     out[4] = 1 - 2*(x*x + z*z); out[5] = 2*(y*z - w*x);
+		out[6] = 2*(x*z - w*y);     out[7] = 2*(y*z + w*x);     out[8] = 1 - 2*(x*x + y*y);
+	}
+
+	/**
+	 * Spherically interpolates unit quaternions, the short way around, into
+	 * the first four entries of q
+	 * @return q
+	 */
+	static double[] slerp(double[] a, double[] b, double u, double[] q) {
+		double dot = a[0]*b[0] + a[1]*b[1] + a[2]*b[2] + a[3]*b[3];
+		double sign = 1;
+		if (dot < 0) {
+			dot = -dot;
+			sign = -1;
+		}
+		double wa, wb;
+		if (dot > 0.9995) {
+			wa = 1 - u; // nearly equal: lerp, normalized below
+			wb = u;
+		} else {
+			double theta = Math.acos(dot);
+			double s = Math.sin(theta);
+			wa = Math.sin((1 - u) * theta) / s;
+			wb = Math.sin(u * theta) / s;
+		}
+		wb *= sign;
+		double norm = 0;
+		for (int i = 0; i < 4; i++) {
+			q[i] = wa*a[i] + wb*b[i];
+			norm += q[i]*q[i];
+		}
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < 4; i++)
+			q[i] /= norm;
+		return q;
+	}
+
+	/**
+	 * driver method for testing: checks keyframes against CoordTrans, then
+	 * times a tour projected per frame and in batches
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+		Sky sky = Sky.load(new File("stars.json"), new File("const.json"), 6.5);
+		SkySnapshot snap = sky.getSnapshot();
+		long time = 1500000000000L;
+
+		// a keyframe reproduces its CoordTrans
+		double rad = Math.PI / 180;
+		CameraPath path = new CameraPath();
+		CoordTrans[] cts = {
+			new CoordTrans(43*rad, -89*rad, 30*rad, 10*rad, 0, 60*rad),
+			new CoordTrans(43*rad, -89*rad, 89*rad, 200*rad, 5*rad, 20*rad),
+			new CoordTrans(-30*rad, 20*rad, 45*rad, 135*rad, -10*rad, 90*rad),
+			new CoordTrans(-30*rad, 20*rad, 10*rad, 300*rad, 0, 5*rad)
+		};
+		double err = 0;
+		for (int k = 0; k < cts.length; k++) {
+			path.addKey(k * 20, cts[k], time);
+			double[] want = cts[k].getMatrix(time);
+			double[] got = path.getMatrix(k * 20);
+			for (int i = 0; i < want.length; i++)
+				err = Math.max(err, Math.abs(want[i] - got[i])
+						* (i < 6 ? cts[k].getAngDiam() / 2 : 1));
+		}
+		System.out.println("keyframe matrix error " + err);
+
+		// pointing with north up keeps CoordTrans's handedness
+		CameraPath up = new CameraPath();
+		up.addKey(0, new Vector(0.8, 0.6, 0), 0, 2);
+		double[] r = up.getMatrix(0);
+		double det = r[0]*(r[4]*r[8] - r[5]*r[7]) - r[1]*(r[3]*r[8] - r[5]*r[6])
+				+ r[2]*(r[3]*r[7] - r[4]*r[6]);
+		System.out.println("north up: up z " + r[5] + ", det " + det);
+
+		// per frame, the way SkyView would
+		double dt = (path.getEnd() - path.getStart()) / (frames - 1);
+		List<Star> out = new ArrayList<Star>();
+		long t0 = System.nanoTime();
+		long single = 0;
+		for (int f = 0; f < frames; f++) {
+			double[] m = path.getMatrix(f * dt);
+			double ang = Math.min(path.getAngDiam(f * dt), Math.PI/2);
+			out.clear();
+			snap.getIndex().query(new Vector(m[6], m[7], m[8]), ang, snap.getMagLimit(), out);
+			single += out.size();
+		}
+		long t1 = System.nanoTime();
+
+		// batched
+		long batched = path.project(snap, 0, dt, frames, DEFAULT_BATCH, null);
+		long t2 = System.nanoTime();
+		System.out.println(frames + " frames: per frame " + (t1 - t0) / 1000000 + " ms ("
+				+ single + " stars), batched " + (t2 - t1) / 1000000 + " ms (" + batched
+				+ " stars)");
+	}
+}
@@ -6,6 +6,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 
@@ -42,20 +43,36 @@ public class Constellation {
 		this.code = code;
 	}
 	
+	/**
+	 * Makes an unlinked copy of the given constellation, sharing its lines
+	 */
+	public Constellation(Constellation that) {
+		this(that.ID_NUM, that.creatorId, that.lines, that.name, that.code);
+	}
+	
 	/**
 	 * Links ID nums to their stars as defined by given Sky object
 	 */
 	public void linkStars(Sky sky) {
-		stars = new HashSet<Star>();
-		starLines = new ArrayList<Star[]>();
+		linkStars(sky.getStars());
+	}
+	
+	/**
+	 * Links ID nums to their stars in the given directory
+	 */
+	public void linkStars(Map<Integer,Star> directory) {
+		Set<Star> stars = new HashSet<Star>();
+		List<Star[]> starLines = new ArrayList<Star[]>();
 		for (int[] line : lines) {
 			Star[] starLine = new Star[DIM];
-			starLine[START] = sky.getStar(line[START]);
-			starLine[END] = sky.getStar(line[END]);
+			starLine[START] = directory.get(line[START]);
+			starLine[END] = directory.get(line[END]);
 			stars.add(starLine[START]);
 			stars.add(starLine[END]);
 			starLines.add(starLine);
 		}
+		this.stars = stars;
+		this.starLines = starLines;
 	}
 	
 	/**
@@ -65,6 +82,20 @@ public class Constellation {
 		return stars;
 	}
 	
+	/**
+	 * Returns the lines as pairs of star ids
+	 */
+	public List<int[]> getLineIds() {
+		return lines;
+	}
+	
+	/**
+	 * Returns the linked lines, each a pair of stars
+	 */
+	public List<Star[]> getStarLines() {
+		return starLines;
+	}
+	
 	/**
 	 * Updates all constituent stars' plotting coords
 	 */
@@ -113,13 +144,13 @@ public class Constellation {
 	public float[] getLines(int w, int h) {
 		
 		// make array
-		float[] coords = new float[4 * lines.size()];
+		float[] coords = new float[4 * starLines.size()];
 		
 		// start at beginning, store each line
 		int index = 0;
-		for (int[] l : lines) {
-			Star s1 = getStar(l[START]);
-			Star s2 = getStar(l[END]);
+		for (Star[] l : starLines) {
+			Star s1 = l[START];
+			Star s2 = l[END];
 			coords[index] = s1.getX(w,h);
 			coords[index + 1] = s1.getY(w,h);
 			coords[index + 2] = s2.getX(w,h);
@@ -129,6 +160,23 @@ public class Constellation {
 		return coords;
 	}
 	
+	/**
+	 * Gets estimated bytes of this constellation with its lines and star
+	 * set, not counting the stars themselves
+	 */
+	public long footprint() {
+		long bytes = Footprint.shallow(Constellation.class) + Footprint.string(name)
+				+ Footprint.string(code);
+		if (lines != null)
+			bytes += Footprint.list(lines) + lines.size() * Footprint.array(DIM, 4);
+		if (starLines != null)
+			bytes += Footprint.list(starLines)
+					+ starLines.size() * Footprint.array(DIM, Footprint.REF);
+		if (stars != null)
+			bytes += Footprint.hashSet(stars.size());
+		return bytes;
+	}
+	
 	/**
 	 * Reads in list of constellations from const_v6.csv, writes to json file
 	 */
@@ -0,0 +1,695 @@
+package com.nderr.jconstellate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Persistent store of user made constellations, keyed by ID_NUM. Changes are
+ * appended to a log file of JSON lines, which is replayed on open and
+ * rewritten with only the live constellations once it holds mostly dead
+ * entries. Constellations are indexed by creator, by member star and by sky
+ * region, so lookups by any of those don't scan the store.
+ *
+ * Bodies stay in the log: each live constellation is a row holding the byte
+ * offset of its line, read back on lookup, and the indexes are int lists of
+ * rows, so memory grows by tens of bytes per constellation.
+ */
+public class ConstellationStore {
+
+	public static final int REGION_DIV = 8; // region cells per cube face edge
+	private static final int MIN_COMPACT = 1024; // log entries before compacting
+	private static final int BATCH = 1 << 20; // bytes buffered before writing
+	private static final int EMPTY = Integer.MIN_VALUE; // free table slot or row
+
+	/**
+	 * One log entry: a constellation stored, or an id removed
+	 */
+	private static class Entry {
+		int id;
+		boolean removed;
+		Constellation c;
+	}
+
+	private final File file; // the log
+	private final Map<Integer,Star> directory; // stars, for regions
+	private final SkyIndex regions; // cell geometry only
+	private final Gson gson = new Gson();
+
+	// rows: id, log offset and line length of each live constellation
+	private int[] ids = new int[16];
+	private long[] offsets = new long[16];
+	private int[] lengths = new int[16];
+	private int numRows = 0; // rows used, live or freed
+	private int[] free = new int[16]; // freed rows, to reuse
+	private int numFree = 0;
+
+	// id -> row, open addressed
+	private int[] keys = new int[32];
+	private int[] rows = new int[32];
+	private int size = 0;
+
+	// key -> rows, each list's length in its first element
+	private final Map<Integer,int[]> byCreator = new HashMap<Integer,int[]>();
+	private final Map<Integer,int[]> byStar = new HashMap<Integer,int[]>();
+	private final Map<Integer,int[]> byRegion = new HashMap<Integer,int[]>();
+
+	private RandomAccessFile data; // reads bodies from the log
+	private OutputStream appender; // appends to the log
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream(); // batch
+	private long length; // bytes of the log holding whole batches
+	private long written; // bytes of the log written, with part of a batch
+	private int entries = 0; // entries in the log, live or not
+	private int pendingEntries = 0; // entries in the batch
+	private int skipped = 0; // unreadable entries found on open
+
+	/**
+	 * Opens the store logged in the given file, creating it if needed, with
+	 * star positions from the given directory
+	 */
+	public ConstellationStore(File file, Map<Integer,Star> directory) throws IOException {
+		this.file = file;
+		this.directory = directory;
+		this.regions = new SkyIndex(Collections.<Star>emptyList(), REGION_DIV);
+		Arrays.fill(keys, EMPTY);
+
+		// a compaction stopped between removing the old log and renaming
+		// the new one leaves only the new one
+		File tmp = new File(file.getPath() + ".tmp");
+		if (!file.exists() && tmp.exists())
+			tmp.renameTo(file);
+		open();
+
+		// replay log; a bad line is most likely a write cut short
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		try {
+			byte[] line = new byte[256];
+			int n = 0;
+			long pos = 0;
+			int b;
+			while ((b = in.read()) != -1) {
+				pos++;
+				if (b != '\n') {
+					if (n == line.length)
+						line = Arrays.copyOf(line, 2 * n);
+					line[n++] = (byte) b;
+					continue;
+				}
+				Entry e;
+				try {
+					e = gson.fromJson(new String(line, 0, n, "UTF-8"), Entry.class);
+				} catch (JsonParseException ex) {
+					e = null;
+				}
+				if (e == null || (!e.removed && e.c == null)) {
+					skipped++;
+				} else {
+					if (e.removed)
+						unindex(e.id);
+					else
+						index(e.c, pos - n - 1, n);
+					entries++;
+				}
+				n = 0;
+			}
+			if (n > 0)
+				skipped++; // last line never finished
+		} finally {
+			in.close();
+		}
+
+		// drop anything cut short before appending after it
+		if (skipped > 0)
+			compact();
+	}
+
+	/**
+	 * Opens the log for reading and appending, creating it if needed
+	 */
+	private void open() throws IOException {
+		appender = new FileOutputStream(file, true);
+		data = new RandomAccessFile(file, "r");
+		length = written = data.length();
+	}
+
+	/**
+	 * Stores the constellation, replacing any with its ID_NUM
+	 * @throws IOException if the log couldn't be written, leaving the store
+	 * as it was
+	 */
+	public synchronized void put(Constellation c) throws IOException {
+		long at = append(c.ID_NUM, false, c);
+		int len = (int) (written + pending.size() - at - 1);
+		flush();
+		index(c, at, len);
+		maybeCompact();
+	}
+
+	/**
+	 * Stores all the constellations, flushing the log once
+	 * @throws IOException if the log couldn't be written, leaving the store
+	 * as it was
+	 */
+	public synchronized void putAll(Iterable<Constellation> cons) throws IOException {
+
+		// write all, noting where each goes
+		List<Constellation> list = new ArrayList<Constellation>();
+		long[] at = new long[16];
+		for (Constellation c : cons) {
+			if (list.size() == at.length)
+				at = Arrays.copyOf(at, 2 * at.length);
+			at[list.size()] = append(c.ID_NUM, false, c);
+			list.add(c);
+		}
+		long last = written + pending.size();
+		flush();
+
+		// index once they're all in the log
+		for (int i = 0; i < list.size(); i++) {
+			long next = i + 1 < list.size() ? at[i + 1] : last;
+			index(list.get(i), at[i], (int) (next - at[i] - 1));
+		}
+		maybeCompact();
+	}
+
+	/**
+	 * Removes the constellation of the given id
+	 * @return whether it was stored
+	 * @throws IOException if the log couldn't be written, leaving the store
+	 * as it was
+	 */
+	public synchronized boolean remove(int id) throws IOException {
+		if (row(id) < 0)
+			return false;
+		append(id, true, null);
+		flush();
+		unindex(id);
+		maybeCompact();
+		return true;
+	}
+
+	/**
+	 * Adds an entry to the batch, writing the batch so far once it's large
+	 * @return log offset the entry goes at
+	 */
+	private long append(int id, boolean removed, Constellation c) throws IOException {
+		Entry e = new Entry();
+		e.id = id;
+		e.removed = removed;
+		e.c = c;
+		if (pending.size() > BATCH)
+			write();
+		long at = written + pending.size();
+		pending.write(gson.toJson(e).getBytes("UTF-8"));
+		pending.write('\n');
+		pendingEntries++;
+		return at;
+	}
+
+	/**
+	 * Writes the batch so far to the log, dropping the whole batch if that
+	 * fails
+	 */
+	private void write() throws IOException {
+		try {
+			pending.writeTo(appender);
+		} catch (IOException ex) {
+			abort();
+			throw ex;
+		}
+		written += pending.size();
+		pending.reset();
+	}
+
+	/**
+	 * Finishes the batch
+	 */
+	private void flush() throws IOException {
+		write();
+		length = written;
+		entries += pendingEntries;
+		pendingEntries = 0;
+	}
+
+	/**
+	 * Drops the batch, cutting the log back to its last whole batch so
+	 * later appends don't follow half a line
+	 */
+	private void abort() {
+		pending.reset();
+		pendingEntries = 0;
+		written = length;
+		try {
+			appender.close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			// the next open skips the half line and compacts it away
+		}
+		try {
+			appender = new FileOutputStream(file, true);
+		} catch (IOException ex) {
+			// writes keep failing until reopened
+		}
+	}
+
+	/**
+	 * Adds a constellation, whose line is at offset in the log, to the
+	 * indexes, replacing any with its id
+	 */
+	private void index(Constellation c, long offset, int len) throws IOException {
+		unindex(c.ID_NUM);
+
+		// new row
+		int row;
+		if (numFree > 0) {
+			row = free[--numFree];
+		} else {
+			if (numRows == ids.length) {
+				ids = Arrays.copyOf(ids, 2 * numRows);
+				offsets = Arrays.copyOf(offsets, 2 * numRows);
+				lengths = Arrays.copyOf(lengths, 2 * numRows);
+			}
+			row = numRows++;
+		}
+		ids[row] = c.ID_NUM;
+		offsets[row] = offset;
+		lengths[row] = len;
+		setRow(c.ID_NUM, row);
+
+		add(byCreator, c.getCreator(), row);
+		for (int s : starIds(c))
+			add(byStar, s, row);
+		for (int r : regionsOf(c))
+			add(byRegion, r, row);
+	}
+
+	/**
+	 * Removes a constellation from the indexes, if there, reading it back
+	 * to find its keys
+	 */
+	private void unindex(int id) throws IOException {
+		int row = row(id);
+		if (row < 0)
+			return;
+		Constellation c = read(row);
+		drop(byCreator, c.getCreator(), row);
+		for (int s : starIds(c))
+			drop(byStar, s, row);
+		for (int r : regionsOf(c))
+			drop(byRegion, r, row);
+
+		clearRow(id);
+		ids[row] = EMPTY;
+		if (numFree == free.length)
+			free = Arrays.copyOf(free, 2 * numFree);
+		free[numFree++] = row;
+	}
+
+	private static void add(Map<Integer,int[]> index, int key, int row) {
+		int[] rows = index.get(key);
+		if (rows == null) {
+			rows = new int[4];
+			index.put(key, rows);
+		} else if (rows[0] + 1 == rows.length) {
+			rows = Arrays.copyOf(rows, 2 * rows.length);
+			index.put(key, rows);
+		}
+		rows[++rows[0]] = row;
+	}
+
+	private static void drop(Map<Integer,int[]> index, int key, int row) {
+		int[] rows = index.get(key);
+		if (rows == null)
+			return;
+		for (int i = 1; i <= rows[0]; i++) {
+			if (rows[i] == row) {
+				rows[i] = rows[rows[0]--];
+				break;
+			}
+		}
+		if (rows[0] == 0)
+			index.remove(key);
+	}
+
+	/**
+	 * Gets the table slot holding the id, or the empty slot where it goes
+	 */
+	private int slot(int id) {
+		int mask = keys.length - 1;
+		int i = (id * 0x9E3779B9) >>> 7 & mask;
+		while (keys[i] != EMPTY && keys[i] != id)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/**
+	 * Gets the row of an id, or -1 if it isn't stored
+	 */
+	private int row(int id) {
+		int i = slot(id);
+		return keys[i] == EMPTY ? -1 : rows[i];
+	}
+
+	/**
+	 * Maps an id to its row, doubling the table once it's half full
+	 */
+	private void setRow(int id, int row) {
+		if (2 * (size + 1) > keys.length) {
+			int[] oldKeys = keys, oldRows = rows;
+			keys = new int[2 * oldKeys.length];
+			rows = new int[keys.length];
+			Arrays.fill(keys, EMPTY);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					int j = slot(oldKeys[i]);
+					keys[j] = oldKeys[i];
+					rows[j] = oldRows[i];
+				}
+			}
+		}
+		int i = slot(id);
+		if (keys[i] == EMPTY)
+			size++;
+		keys[i] = id;
+		rows[i] = row;
+	}
+
+	/**
+	 * Unmaps an id, moving later keys of its probe run back into the gap
+	 */
+	private void clearRow(int id) {
+		int mask = keys.length - 1;
+		int i = slot(id);
+		if (keys[i] == EMPTY)
+			return;
+		size--;
+		for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = (keys[j] * 0x9E3779B9) >>> 7 & mask;
+			boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+			if (!stays) {
+				keys[i] = keys[j];
+				rows[i] = rows[j];
+				i = j;
+			}
+		}
+		keys[i] = EMPTY;
+	}
+
+	/**
+	 * Reads a row's line from the log
+	 */
+	private byte[] line(int row) throws IOException {
+		byte[] buf = new byte[lengths[row]];
+		data.seek(offsets[row]);
+		data.readFully(buf);
+		return buf;
+	}
+
+	/**
+	 * Reads a row's constellation from the log
+	 */
+	private Constellation read(int row) throws IOException {
+		Entry e;
+		try {
+			e = gson.fromJson(new String(line(row), "UTF-8"), Entry.class);
+		} catch (JsonParseException ex) {
+			e = null;
+		}
+		if (e == null || e.c == null || e.id != ids[row])
+			throw new IOException("Problem reading " + file + " at " + offsets[row]);
+		return e.c;
+	}
+
+	/**
+	 * Gets the ids of the stars in a constellation's lines
+	 */
+	private static Set<Integer> starIds(Constellation c) {
+		Set<Integer> ids = new HashSet<Integer>();
+		for (int[] line : c.getLineIds()) {
+			ids.add(line[Constellation.START]);
+			ids.add(line[Constellation.END]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Gets the region cells holding a constellation's known stars
+	 */
+	private Set<Integer> regionsOf(Constellation c) {
+		Set<Integer> cells = new HashSet<Integer>();
+		for (int id : starIds(c)) {
+			Star st = directory.get(id);
+			if (st != null) {
+				Vector v = st.getHat();
+				cells.add(regions.cell(v.getX(), v.getY(), v.getZ()));
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Rewrites the log if it's mostly dead entries
+	 */
+	private void maybeCompact() {
+		if (entries > MIN_COMPACT && entries > 2 * size) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// keep appending to the old log, which is still complete
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the live constellations, replacing the
+	 * old one when the new one is complete
+	 */
+	public synchronized void compact() throws IOException {
+
+		// copy every live line to a new file
+		File tmp = new File(file.getPath() + ".tmp");
+		long[] moved = new long[offsets.length];
+		long pos = 0;
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+		try {
+			for (int row = 0; row < numRows; row++) {
+				if (ids[row] == EMPTY)
+					continue;
+				os.write(line(row));
+				os.write('\n');
+				moved[row] = pos;
+				pos += lengths[row] + 1;
+			}
+		} finally {
+			os.close();
+		}
+
+		// swap it in, and keep using whichever log is in place
+		appender.close();
+		data.close();
+		boolean swapped = tmp.renameTo(file) || (file.delete() && tmp.renameTo(file));
+		open();
+		if (!swapped)
+			throw new IOException("Problem replacing " + file);
+		offsets = moved;
+		entries = size;
+		skipped = 0;
+	}
+
+	/**
+	 * Closes the log
+	 */
+	public synchronized void close() throws IOException {
+		appender.close();
+		data.close();
+	}
+
+	/**
+	 * Gets the constellation of the given id, or null
+	 */
+	public synchronized Constellation get(int id) throws IOException {
+		int row = row(id);
+		return row < 0 ? null : read(row);
+	}
+
+	/**
+	 * Gets number of constellations stored
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets number of entries in the log, live or not
+	 */
+	public synchronized int getLogSize() {
+		return entries;
+	}
+
+	/**
+	 * Gets the constellations made by the given user
+	 */
+	public synchronized List<Constellation> byCreator(int creatorId) throws IOException {
+		return lookup(byCreator.get(creatorId));
+	}
+
+	/**
+	 * Gets the constellations with a line to or from the given star
+	 */
+	public synchronized List<Constellation> usingStar(int starId) throws IOException {
+		return lookup(byStar.get(starId));
+	}
+
+	/**
+	 * Gets the constellations with a star within ang of the axis
+	 */
+	public synchronized List<Constellation> inView(Vector axis, double ang) throws IOException {
+
+		double ax = axis.getX(), ay = axis.getY(), az = axis.getZ();
+		double minDot = SkyIndex.minDot(ang);
+
+		// candidates from overlapping regions
+		BitSet seen = new BitSet(numRows);
+		List<Constellation> out = new ArrayList<Constellation>();
+		for (Map.Entry<Integer,int[]> region : byRegion.entrySet()) {
+			if (!regions.overlaps(region.getKey(), ax, ay, az, ang))
+				continue;
+
+			// keep those with a star really in view
+			int[] rows = region.getValue();
+			for (int i = 1; i <= rows[0]; i++) {
+				if (seen.get(rows[i]))
+					continue;
+				seen.set(rows[i]);
+				Constellation c = read(rows[i]);
+				if (sees(c, axis, minDot))
+					out.add(c);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Returns whether a star of the constellation is within minDot of axis
+	 */
+	private boolean sees(Constellation c, Vector axis, double minDot) {
+		for (int[] line : c.getLineIds()) {
+			for (int end = 0; end < Constellation.DIM; end++) {
+				Star st = directory.get(line[end]);
+				if (st != null && st.getHat().dot(axis) > minDot)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private List<Constellation> lookup(int[] rows) throws IOException {
+		List<Constellation> out = new ArrayList<Constellation>();
+		if (rows != null)
+			for (int i = 1; i <= rows[0]; i++)
+				out.add(read(rows[i]));
+		return out;
+	}
+
+	/**
+	 * driver method for testing: fills a store from a synthetic catalog,
+	 * times lookups and measures heap used, then reopens and compacts it
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		File file = new File(args.length > 1 ? args[1] : "user_const.log");
+		file.delete();
+
+		// stars and figures
+		SyntheticCatalog cat = new SyntheticCatalog(100000, 1);
+		List<Star> stars = cat.stars();
+		Map<Integer,Star> directory = new HashMap<Integer,Star>();
+		for (Star st : stars)
+			directory.put(st.ID_NUM, st);
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		List<Constellation> cons = cat.constellations(bright, count);
+
+		// fill
+		long heap = heapUsed();
+		long t0 = System.nanoTime();
+		ConstellationStore store = new ConstellationStore(file, directory);
+		store.putAll(cons);
+		long t1 = System.nanoTime();
+		heap = heapUsed() - heap;
+		System.out.println(store.size() + " stored in " + (t1 - t0) / 1000000 + " ms, heap "
+				+ heap / (1 << 20) + " MB (" + heap / store.size() + " bytes each)");
+
+		// lookups
+		Star star = bright.get(0);
+		t0 = System.nanoTime();
+		int byStar = store.usingStar(star.ID_NUM).size();
+		int byUser = store.byCreator(7).size();
+		int inView = store.inView(star.getHat(), Math.PI / 18).size();
+		t1 = System.nanoTime();
+		int brute = 0;
+		for (Constellation c : cons)
+			if (store.sees(c, star.getHat(), Math.cos(Math.PI / 18)))
+				brute++;
+		System.out.println("using star " + byStar + ", by user 7 " + byUser + ", within 10 deg "
+				+ inView + " (brute force " + brute + ") in " + (t1 - t0) / 1000 + " us");
+
+		// churn, reopen
+		for (int i = 1; i <= count / 2; i++)
+			store.remove(i);
+		System.out.println(store.size() + " live, log " + store.getLogSize() + " entries");
+		store.close();
+		store = new ConstellationStore(file, directory);
+		System.out.println(store.size() + " live after reopen, log " + store.getLogSize()
+				+ " entries");
+		int using = store.usingStar(star.ID_NUM).size();
+		store.compact();
+		System.out.println("compacted to " + store.getLogSize() + " entries, " + file.length()
+				+ " bytes");
+
+		// bodies still found at their new offsets
+		boolean ok = store.get(1) == null && store.get(count).ID_NUM == count
+				&& store.usingStar(star.ID_NUM).size() == using;
+		System.out.println("lookups after compacting " + (ok ? "match" : "MISMATCH"));
+		store.close();
+		if (!ok)
+			System.exit(1);
+	}
+
+	/**
+	 * Gets bytes of heap in use after collecting garbage
+	 */
+	private static long heapUsed() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -89,6 +89,17 @@ public class CoordTrans {
 	 * Get direction vector at arbitrary place and orientation
 	 */
 	public static Vector getHat(double el, double az, double lat, double lst) {
+		double[] out = new double[Vector.DIM];
+		hat(el, az, lat, lst, out, 0);
+		return new Vector(out[Vector.X], out[Vector.Y], out[Vector.Z]);
+	}
+
+	/**
+	 * Writes the direction vector at arbitrary place and orientation into
+	 * out at offset, allocating nothing
+	 */
+	private static void hat(double el, double az, double lat, double lst, double[] out,
+			int offset) {
 
 		// trig functions
 		double cel = cos(el);
@@ -98,13 +109,11 @@ public class CoordTrans {
 		double sel = sin(el);
 		double saz = sin(az);
 		double slat = sin(lat);
-		double slst = sin(lst);
+		double slst = -sin(lst); // sky turns west: hour angle is lst - ra
 
-		return new Vector(
-			clat * clst * sel + cel * (-caz * clst * slat + saz * slst), // X
-			-clat * sel * slst + cel * (saz * clst + caz * slat * slst), // Y
-			caz * cel * clat + sel * slat // Z
-		);
+		out[offset + Vector.X] = clat * clst * sel + cel * (-caz * clst * slat + saz * slst);
+		out[offset + Vector.Y] = -clat * sel * slst + cel * (saz * clst + caz * slat * slst);
+		out[offset + Vector.Z] = caz * cel * clat + sel * slat;
 	}
 	
 	/**
@@ -125,10 +134,155 @@ public class CoordTrans {
 		return getXY(dir.getX(),dir.getY(),dir.getZ(),el,az,spin,lat,lst,angDiam);
 	}
 	
+	/**
+	 * Gets the rotation (row major) taking celestial unit vectors to this
+	 * screen at the provided time. The first two rows give the normalized x
+	 * and y coordinates (as in getXY), the third the line of sight.
+	 * @param time UTC time (milliseconds since UTC epoch)
+	 */
+	public double[] getMatrix(long time) {
+		return getMatrix(time, new double[9]);
+	}
+	
+	/**
+	 * Writes the screen rotation at the provided time into out (9 doubles,
+	 * row major), allocating nothing
+	 * @return out
+	 */
+	public double[] getMatrix(long time, double[] out) {
+		
+		return getMatrix(el,az,spin,lat,lmst(time),angDiam,out);
+	}
+	
+	/**
+	 * Writes the screen rotation at arbitrary place and orientation into out
+	 * (9 doubles, row major), allocating nothing
+	 * @return out
+	 */
+	public static double[] getMatrix(double el, double az, double spin, double lat,
+			double lst, double angDiam, double[] out) {
+		
+		// project the basis vectors once, since the projection is linear
+		xy(1,0,0,el,az,spin,lat,lst,angDiam,out,0);
+		xy(0,1,0,el,az,spin,lat,lst,angDiam,out,1);
+		xy(0,0,1,el,az,spin,lat,lst,angDiam,out,2);
+		hat(el,az,lat,lst,out,6);
+		return out;
+	}
+	
+	/**
+	 * Writes the horizon frame at arbitrary place into out (9 doubles, row
+	 * major): the celestial directions of east, north and the zenith. It
+	 * depends only on latitude and sidereal time, so every observer at one
+	 * place and moment can share it.
+	 * @return out
+	 */
+	public static double[] getHorizon(double lat, double lst, double[] out) {
+		
+		// trig functions
+		double clat = cos(lat);
+		double slat = sin(lat);
+		double clst = cos(lst);
+		double slst = -sin(lst); // sky turns west: hour angle is lst - ra
+		
+		out[0] = slst;
+		out[1] = clst;
+		out[2] = 0;
+		out[3] = -clst * slat;
+		out[4] = slat * slst;
+		out[5] = clat;
+		out[6] = clat * clst;
+		out[7] = -clat * slst;
+		out[8] = slat;
+		return out;
+	}
+	
+	/**
+	 * Writes the screen rotation for an orientation within a horizon frame
+	 * from getHorizon into out (as getMatrix), needing only the trig of
+	 * the orientation
+	 * @return out
+	 */
+	public static double[] getMatrix(double[] horizon, double el, double az, double spin,
+			double angDiam, double[] out) {
+		
+		// trig functions
+		double cel = cos(el);
+		double caz = cos(az);
+		double cspin = cos(spin);
+		double sel = sin(el);
+		double saz = sin(az);
+		double sspin = sin(spin);
+		double scale = 2 / angDiam;
+		
+		// screen x, screen y and line of sight in east, north, zenith terms
+		double xe = (cspin*caz + sspin*sel*saz) * scale;
+		double xn = (sspin*sel*caz - cspin*saz) * scale;
+		double xz = -sspin*cel * scale;
+		double ye = (sspin*caz - cspin*sel*saz) * scale;
+		double yn = (-cspin*sel*caz - sspin*saz) * scale;
+		double yz = cspin*cel * scale;
+		double he = cel*saz;
+		double hn = cel*caz;
+		double hz = sel;
+		
+		for (int i = 0; i < 3; i++) {
+			out[i] = xe*horizon[i] + xn*horizon[3 + i] + xz*horizon[6 + i];
+			out[3 + i] = ye*horizon[i] + yn*horizon[3 + i] + yz*horizon[6 + i];
+			out[6 + i] = he*horizon[i] + hn*horizon[3 + i] + hz*horizon[6 + i];
+		}
+		return out;
+	}
+	
+	/**
+	 * @return screen rotation at the current time
+	 */
+	public double[] getMatrix() {
+		return getMatrix(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Gets the zenith direction at this location at the provided time
+	 * @param time UTC time (milliseconds since UTC epoch)
+	 */
+	public Vector getZenith(long time) {
+		return getHat(PI/2,0,lat,lmst(time));
+	}
+	
+	/**
+	 * Writes the zenith direction at the provided time into out, allocating
+	 * nothing
+	 * @return out
+	 */
+	public double[] getZenith(long time, double[] out) {
+		hat(PI/2,0,lat,lmst(time),out,0);
+		return out;
+	}
+	
 	public double getAngDiam() {
 		return angDiam;
 	}
 	
+	public double getLat() {
+		return lat;
+	}
+	
+	public double getLon() {
+		return lon;
+	}
+	
+	public double getEl() {
+		return el;
+	}
+	
+	public double getAz() {
+		return az;
+	}
+	
+	public double getSpin() {
+		return spin;
+	}
+	
 	/**
 	 * Get current x and y coordinates of position (x,y,z) on celestial sphere
 	 * on flat surface at provided latitude and longitude with normal pointing 
@@ -146,6 +300,17 @@ public class CoordTrans {
 	 */
 	public static Vector getXY(double x, double y, double z, double el, 
 			double az, double spin, double lat, double lst, double angDiam) {
+		double[] out = new double[6];
+		xy(x,y,z,el,az,spin,lat,lst,angDiam,out,0);
+		return new Vector(out[0], out[3], 0);
+	}
+	
+	/**
+	 * Writes the x and y coordinates of getXY into out[col] and out[3+col],
+	 * as column col of a row major screen matrix
+	 */
+	private static void xy(double x, double y, double z, double el, double az, double spin,
+			double lat, double lst, double angDiam, double[] out, int col) {
 		
 		// trig functions
 		double cel = cos(el);
@@ -157,7 +322,7 @@ public class CoordTrans {
 		double saz = sin(az);
 		double sspin = sin(spin);
 		double slat = sin(lat);
-		double slst = sin(lst);
+		double slst = -sin(lst); // sky turns west: hour angle is lst - ra
 		
 		// get array for x and y
 		double xx, yy;
@@ -181,7 +346,8 @@ public class CoordTrans {
 				+ slst*y));
 		*/
 		
-		return new Vector(2 * xx / angDiam, 2 * yy / angDiam,0);
+		out[col] = 2 * xx / angDiam;
+		out[3 + col] = 2 * yy / angDiam;
 	}
 	
 	/**
@@ -0,0 +1,260 @@
+package com.nderr.jconstellate;
+
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every constellation figure in a sky stored as one vertex list (each star
+ * once) and one index buffer of line endpoints into it. Vertices are
+ * projected at most once per frame into a shared screen coordinate array,
+ * and lines are read back out by gathering over the indices.
+ */
+public class FigureBuffer {
+
+	private Star[] vertices; // every star used by some figure
+	private int[] indices; // vertex index pairs, one pair per line
+	private Map<Constellation,Integer> figures; // figure -> its number
+	private Constellation[] byNumber; // number -> its figure
+	private int[] start; // figure f's lines are [start[f], start[f+1])
+	private float[] screen; // normalized x,y per vertex
+	private int[] stamp; // frame each vertex's screen coords are from
+
+	/**
+	 * Builds the buffers for the provided (linked) constellations
+	 */
+	public FigureBuffer(Collection<Constellation> cons) {
+
+		// count lines
+		int numLines = 0;
+		for (Constellation c : cons)
+			numLines += c.getStarLines().size();
+
+		figures = new HashMap<Constellation,Integer>(cons.size()*10/7 + 1);
+		byNumber = new Constellation[cons.size()];
+		start = new int[cons.size() + 1];
+		indices = new int[Constellation.DIM * numLines];
+		Map<Star,Integer> ids = new HashMap<Star,Integer>();
+		Star[] verts = new Star[Constellation.DIM * numLines];
+
+		// number each star the first time it's seen
+		int f = 0, line = 0, numVerts = 0;
+		for (Constellation c : cons) {
+			figures.put(c, f);
+			byNumber[f] = c;
+			start[f] = line;
+			for (Star[] l : c.getStarLines()) {
+				for (int end = 0; end < Constellation.DIM; end++) {
+					Integer v = ids.get(l[end]);
+					if (v == null) {
+						v = numVerts;
+						ids.put(l[end], v);
+						verts[numVerts++] = l[end];
+					}
+					indices[Constellation.DIM * line + end] = v;
+				}
+				line++;
+			}
+			f++;
+		}
+		start[f] = line;
+
+		// trim vertex list and make frame buffers
+		vertices = new Star[numVerts];
+		System.arraycopy(verts, 0, vertices, 0, numVerts);
+		screen = new float[2 * numVerts];
+		stamp = new int[numVerts];
+		Arrays.fill(stamp, -1);
+	}
+
+	/**
+	 * Makes a buffer with old's lines and numbering, over the stars of the
+	 * same ids in the directory and the given copies of old's figures
+	 */
+	private FigureBuffer(FigureBuffer old, Map<Integer,Star> directory,
+			Map<Constellation,Constellation> copies) {
+		vertices = new Star[old.vertices.length];
+		for (int v = 0; v < vertices.length; v++)
+			vertices[v] = old.vertices[v] == null ? null : directory.get(old.vertices[v].ID_NUM);
+		indices = old.indices;
+		start = old.start;
+		byNumber = new Constellation[old.byNumber.length];
+		figures = new HashMap<Constellation,Integer>(byNumber.length*10/7 + 1);
+		for (int f = 0; f < byNumber.length; f++) {
+			byNumber[f] = copies.get(old.byNumber[f]);
+			figures.put(byNumber[f], f);
+		}
+		screen = new float[old.screen.length];
+		stamp = new int[old.stamp.length];
+		Arrays.fill(stamp, -1);
+	}
+
+	/**
+	 * New buffer of the same lines over moved copies of the same stars
+	 * (looked up by id in the directory) and copies of the figures, so
+	 * nothing is walked or numbered again
+	 */
+	FigureBuffer moved(Map<Integer,Star> directory, Map<Constellation,Constellation> copies) {
+		return new FigureBuffer(this, directory, copies);
+	}
+
+	/**
+	 * Projects every vertex of the given figures for this frame, skipping
+	 * vertices already projected (by this buffer or the star pass)
+	 * @param m screen matrix from CoordTrans.getMatrix
+	 * @param frame frame number, distinct for every view
+	 */
+	public void project(double[] m, int frame, List<Constellation> cons) {
+		for (Constellation c : cons) {
+			Integer f = figures.get(c);
+			if (f == null)
+				continue;
+			for (int i = Constellation.DIM * start[f]; i < Constellation.DIM * start[f + 1]; i++) {
+				int v = indices[i];
+				if (stamp[v] != frame) {
+					Star st = vertices[v];
+					st.setPlot(m, frame);
+					screen[2*v] = (float) st.getPlotX();
+					screen[2*v + 1] = (float) st.getPlotY();
+					stamp[v] = frame;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the given figure's lines as [x1,y1,x2,y2,...] screen coordinates
+	 * for a screen of size w x h into out, starting at offset
+	 * @return number of floats written
+	 */
+	public int gather(Constellation c, int w, int h, float[] out, int offset) {
+
+		Integer f = figures.get(c);
+		if (f == null)
+			return 0;
+
+		// same scaling as Star.getX/getY
+		float half = (float) (Math.sqrt((double) w*w + (double) h*h) / 2);
+		float cx = w / 2;
+		float cy = h / 2;
+
+		int index = offset;
+		for (int i = Constellation.DIM * start[f]; i < Constellation.DIM * start[f + 1]; i++) {
+			int v = indices[i];
+			out[index++] = (int) (half * screen[2*v] + cx);
+			out[index++] = (int) (-half * screen[2*v + 1] + cy);
+		}
+		return index - offset;
+	}
+
+	/**
+	 * Writes the lines of all the given figures into out, starting at 0,
+	 * growing it if it's too small
+	 * @return the array written to, which is out if it was big enough
+	 */
+	public float[] gather(List<Constellation> cons, int w, int h, float[] out) {
+
+		// check size
+		int need = 0;
+		for (Constellation c : cons)
+			need += 2 * Constellation.DIM * numLines(c);
+		if (out == null || out.length < need)
+			out = new float[need];
+
+		int index = 0;
+		for (Constellation c : cons)
+			index += gather(c, w, h, out, index);
+		return out;
+	}
+
+	/**
+	 * Appends the lines of all the given figures to a path, for a screen of
+	 * size w x h
+	 */
+	public void appendTo(List<Constellation> cons, int w, int h, Path2D path) {
+		float half = (float) (Math.sqrt((double) w*w + (double) h*h) / 2);
+		float cx = w / 2;
+		float cy = h / 2;
+		for (Constellation c : cons) {
+			Integer f = figures.get(c);
+			if (f == null)
+				continue;
+			int end = Constellation.DIM * start[f + 1];
+			for (int i = Constellation.DIM * start[f]; i < end; i += 2) {
+				int v1 = indices[i];
+				int v2 = indices[i + 1];
+				path.moveTo(half * screen[2*v1] + cx, -half * screen[2*v1 + 1] + cy);
+				path.lineTo(half * screen[2*v2] + cx, -half * screen[2*v2 + 1] + cy);
+			}
+		}
+	}
+
+	/**
+	 * Gets number of lines in the given figure
+	 */
+	public int numLines(Constellation c) {
+		Integer f = figures.get(c);
+		return f == null ? 0 : start[f + 1] - start[f];
+	}
+
+	/**
+	 * Gets the number of the given figure, or -1 if it isn't in the buffer
+	 */
+	public int figure(Constellation c) {
+		Integer f = figures.get(c);
+		return f == null ? -1 : f;
+	}
+
+	/**
+	 * Gets the figure of the given number
+	 */
+	public Constellation getFigure(int f) {
+		return byNumber[f];
+	}
+
+	/**
+	 * Gets the first line of each figure by number, and after them the
+	 * total: figure f's lines are [start[f], start[f+1])
+	 */
+	public int[] getStarts() {
+		return start;
+	}
+
+	/**
+	 * Gets the vertex list (each figure star once)
+	 */
+	public Star[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Gets the index buffer, one pair of vertex indices per line
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Gets the normalized x,y screen coordinates of each vertex, valid for
+	 * vertices projected in the current frame
+	 */
+	public float[] getScreen() {
+		return screen;
+	}
+
+	/**
+	 * Gets estimated retained bytes, not counting the stars themselves
+	 */
+	public long footprint() {
+		return Footprint.shallow(FigureBuffer.class)
+				+ Footprint.array(vertices.length, Footprint.REF)
+				+ Footprint.array(indices.length, 4) + Footprint.hashMap(figures.size())
+				+ (long) figures.size() * Footprint.BOXED
+				+ Footprint.array(byNumber.length, Footprint.REF)
+				+ Footprint.array(start.length, 4)
+				+ Footprint.array(screen.length, 4) + Footprint.array(stamp.length, 4);
+	}
+}
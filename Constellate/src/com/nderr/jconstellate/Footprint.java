@@ -0,0 +1,202 @@
+package com.nderr.jconstellate;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimated retained bytes of a sky's structures, by part. Sizes assume a
+ * 64 bit JVM with compressed references (12 byte object headers, 4 byte
+ * references, 8 byte alignment) and one byte per string character, which
+ * is what a default heap under 32 GB uses. They are estimates for comparing
+ * parts and spotting growth, not exact heap accounting.
+ */
+public class Footprint {
+
+	public static final int HEADER = 12; // object header
+	public static final int ARRAY_HEADER = 16; // array header with length
+	public static final int REF = 4; // compressed reference
+	public static final int ALIGN = 8;
+	public static final int BOXED = 16; // Integer, Long or Double
+
+	// bytes per star allowed by the driver's budget check
+	public static final double BUDGET_PER_STAR = 400;
+
+	private static final Map<Class<?>,Long> shallow = new ConcurrentHashMap<Class<?>,Long>();
+
+	private final Map<String,Long> parts = new LinkedHashMap<String,Long>();
+
+	/**
+	 * Adds bytes to a part, creating it if needed
+	 * @return this, for chaining
+	 */
+	public Footprint add(String part, long bytes) {
+		Long old = parts.get(part);
+		parts.put(part, (old == null ? 0 : old) + bytes);
+		return this;
+	}
+
+	/**
+	 * Adds every part of another footprint to this one
+	 * @return this, for chaining
+	 */
+	public Footprint add(Footprint that) {
+		for (Map.Entry<String,Long> e : that.parts.entrySet())
+			add(e.getKey(), e.getValue());
+		return this;
+	}
+
+	/**
+	 * Gets bytes of a part, 0 if none
+	 */
+	public long get(String part) {
+		Long bytes = parts.get(part);
+		return bytes == null ? 0 : bytes;
+	}
+
+	/**
+	 * Gets bytes by part, in the order parts were added
+	 */
+	public Map<String,Long> getParts() {
+		return Collections.unmodifiableMap(parts);
+	}
+
+	/**
+	 * Gets total bytes of all parts
+	 */
+	public long total() {
+		long sum = 0;
+		for (long bytes : parts.values())
+			sum += bytes;
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		long total = total();
+		for (Map.Entry<String,Long> e : parts.entrySet())
+			sb.append(String.format("%-16s %,14d bytes %5.1f%%%n", e.getKey(), e.getValue(),
+					total == 0 ? 0 : 100.0 * e.getValue() / total));
+		sb.append(String.format("%-16s %,14d bytes", "total", total));
+		return sb.toString();
+	}
+
+	/**
+	 * Rounds up to the object alignment
+	 */
+	public static long align(long bytes) {
+		return (bytes + ALIGN - 1) / ALIGN * ALIGN;
+	}
+
+	/**
+	 * Gets the size of an instance of the class itself, not counting
+	 * anything its fields refer to
+	 */
+	public static long shallow(Class<?> cls) {
+		Long size = shallow.get(cls);
+		if (size == null) {
+			long bytes = HEADER;
+			for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					if (Modifier.isStatic(f.getModifiers()))
+						continue;
+					Class<?> t = f.getType();
+					if (t == long.class || t == double.class)
+						bytes += 8;
+					else if (t == int.class || t == float.class)
+						bytes += 4;
+					else if (t == short.class || t == char.class)
+						bytes += 2;
+					else if (t == byte.class || t == boolean.class)
+						bytes += 1;
+					else
+						bytes += REF;
+				}
+			}
+			size = align(bytes);
+			shallow.put(cls, size);
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the size of an array of n elements of the given bytes each
+	 */
+	public static long array(int n, int elemBytes) {
+		return align(ARRAY_HEADER + (long) n * elemBytes);
+	}
+
+	/**
+	 * Gets the size of a string, or 0 for null
+	 */
+	public static long string(String s) {
+		return s == null ? 0 : align(HEADER + REF + 4 + 1) + array(s.length(), 1);
+	}
+
+	/**
+	 * Gets the size of a HashMap (or the map inside a HashSet) of n entries
+	 * with default load factor, not counting keys and values
+	 */
+	public static long hashMap(int n) {
+		int capacity = Integer.highestOneBit(Math.max(1, n * 4 / 3)) << 1;
+		return align(HEADER + 3 * REF + 4 * 4) + array(capacity, REF)
+				+ (long) n * align(HEADER + 4 + 3 * REF);
+	}
+
+	/**
+	 * Gets the size of a HashSet of n elements, not counting the elements
+	 */
+	public static long hashSet(int n) {
+		return align(HEADER + REF) + hashMap(n);
+	}
+
+	/**
+	 * Gets the size of an ArrayList of n elements, not counting the elements
+	 */
+	public static long arrayList(int n) {
+		return align(HEADER + 4 + 4 + REF) + array(n, REF);
+	}
+
+	/**
+	 * Gets the size of a list's array, not counting the elements
+	 */
+	public static long list(List<?> list) {
+		return list == null ? 0 : arrayList(list.size());
+	}
+
+	/**
+	 * driver method for testing: estimates the footprint of a synthetic sky
+	 * and exits with status 1 if bytes per star are over budget
+	 */
+	public static void main(String[] args) {
+
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		double budget = args.length > 1 ? Double.parseDouble(args[1]) : BUDGET_PER_STAR;
+
+		// a synthetic sky, with every optional index built
+		SyntheticCatalog cat = new SyntheticCatalog(n, 1);
+		List<Star> stars = cat.stars();
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		Sky sky = new Sky(stars, cat.constellations(bright, 1000), 6.5);
+		sky.addViewConst();
+		sky.getSnapshot().getHorizonIndex();
+
+		Footprint fp = sky.footprint();
+		double perStar = fp.total() / (double) n;
+		System.out.println(fp);
+		System.out.println(String.format("%.1f bytes per star, budget %.1f", perStar, budget));
+		if (perStar > budget) {
+			System.out.println("over budget");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.nderr.jconstellate;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocation check of the steady state frame loop. A SkyView follows a
+ * camera path and a fixed pose through every projection, and each frame
+ * is looked at, culled to a screen, projected, has its lines gathered and
+ * is encoded as a draw list. After warm-up passes grow the view's buffers,
+ * the JVM's count of bytes allocated by this thread must not move during
+ * a pass; main exits with status 1 if it does, so it can gate a build.
+ */
+public class FrameCheck {
+
+	public static final int DEFAULT_FRAMES = 2000;
+	public static final int WARMUP_PASSES = 3;
+	public static final int MEASURED_PASSES = 3;
+
+	private final SkySnapshot snap;
+	private final CameraPath path;
+	private final CoordTrans ct;
+	private final SkyView view = new SkyView();
+	private final Projection[] projs = Projection.values();
+	private final double[] m = new double[9];
+	private final int w, h;
+	private ByteBuffer buf = ByteBuffer.allocate(1);
+	private float[] lines = new float[1];
+	private double sum = 0; // of everything read back, so none of it is skipped
+
+	/**
+	 * Makes a check of the given snapshot along the path, and at the pose
+	 */
+	public FrameCheck(SkySnapshot snap, CameraPath path, CoordTrans ct, int w, int h) {
+		this.snap = snap;
+		this.path = path;
+		this.ct = ct;
+		this.w = w;
+		this.h = h;
+		view.setScreen(w, h);
+	}
+
+	/**
+	 * Runs the frames, growing the output buffers if they were too small
+	 * @return whether the buffers were big enough for every frame
+	 */
+	public boolean run(int frames) {
+		boolean fit = true;
+		for (int f = 0; f < frames; f++) {
+
+			// a path frame, or the pose at a later time with its horizon
+			view.setProjection(projs[f % projs.length]);
+			if (f % 2 == 0) {
+				double t = (double) f / frames;
+				path.getMatrix(t, m);
+				view.look(snap, m, path.getAngDiam(t), null);
+			} else {
+				view.look(snap, ct, CoordTrans.J2000 + 60000L * f, true);
+			}
+
+			// read back the draw list
+			for (int i = 0; i < view.size(); i++)
+				sum += view.getX(i) + view.getY(i) + view.getStar(i).getMag();
+			int need = 2 * Constellation.DIM * view.numLines();
+			if (lines.length < need) {
+				lines = new float[2 * need];
+				fit = false;
+			}
+			int n = view.getLines(lines, 0);
+			if (n > 0)
+				sum += lines[n - 1];
+			if (buf.capacity() < view.encodedSize()) {
+				buf = ByteBuffer.allocate(2 * view.encodedSize());
+				fit = false;
+			}
+			buf.clear();
+			sum += view.encode(buf, w, h);
+		}
+		return fit;
+	}
+
+	/**
+	 * Gets a sum of everything read back
+	 */
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * driver method for testing: warms up, then exits with status 1 if a
+	 * pass of frames allocates
+	 * Usage: FrameCheck [frames] [stars]
+	 */
+	public static void main(String[] args) {
+
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		// per thread allocation counter
+		java.lang.management.ThreadMXBean std = ManagementFactory.getThreadMXBean();
+		if (!(std instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("no per thread allocation counter on this JVM");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) std;
+		if (!bean.isThreadAllocatedMemorySupported()) {
+			System.out.println("no per thread allocation counter on this JVM");
+			System.exit(2);
+		}
+		bean.setThreadAllocatedMemoryEnabled(true);
+		long me = Thread.currentThread().getId();
+
+		// a synthetic sky with figures
+		SyntheticCatalog cat = new SyntheticCatalog(n, 1);
+		List<Star> stars = cat.stars();
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		Sky sky = new Sky(stars, cat.constellations(bright, 1000), 6.5);
+		sky.addViewConst();
+
+		// a tour, and a fixed pose
+		double rad = Math.PI / 180;
+		CameraPath path = new CameraPath();
+		long t = CoordTrans.J2000;
+		path.addKey(0, new CoordTrans(43*rad, -89*rad, 30*rad, 10*rad, 0, 60*rad), t);
+		path.addKey(0.5, new CoordTrans(43*rad, -89*rad, 80*rad, 200*rad, 5*rad, 20*rad), t);
+		path.addKey(1, new CoordTrans(-30*rad, 20*rad, 45*rad, 135*rad, -10*rad, 120*rad), t);
+		CoordTrans ct = new CoordTrans(40*rad, -75*rad, 50*rad, 90*rad, 0, 90*rad);
+		FrameCheck check = new FrameCheck(sky.getSnapshot(), path, ct, 1920, 1080);
+
+		// warm up until a whole pass fits the buffers
+		for (int pass = 0; pass < WARMUP_PASSES; pass++)
+			check.run(frames);
+		while (!check.run(frames))
+			;
+
+		// cost of reading the counter itself
+		long a = bean.getThreadAllocatedBytes(me);
+		long b = bean.getThreadAllocatedBytes(me);
+		long overhead = b - a;
+
+		// measured passes; the least is kept, as the compiler may still
+		// swap in new code mid-pass, and that can count a few bytes once
+		// (run with -Xint to see the loop itself allocate nothing)
+		long bytes = Long.MAX_VALUE;
+		long nanos = Long.MAX_VALUE;
+		for (int pass = 0; pass < MEASURED_PASSES; pass++) {
+			long t0 = System.nanoTime();
+			long before = bean.getThreadAllocatedBytes(me);
+			check.run(frames);
+			long after = bean.getThreadAllocatedBytes(me);
+			long t1 = System.nanoTime();
+			bytes = Math.min(bytes, after - before - overhead);
+			nanos = Math.min(nanos, t1 - t0);
+		}
+
+		System.out.println(String.format("%d frames in %.1f ms (%.1f us/frame), %d bytes allocated "
+				+ "(%.2f per frame), checksum %.3f", frames, nanos / 1e6, nanos / 1e3 / frames,
+				bytes, (double) bytes / frames, check.getSum()));
+		if (bytes > 0) {
+			System.out.println("frames allocate");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,805 @@
+package com.nderr.jconstellate;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Delta coding of a stream of views for remote clients. The encoder sends a
+ * keyframe, then for each following view only the stars leaving and
+ * entering it (by id) and how far the rest moved, in whole pixels as in
+ * SkyView.encode; consecutive frames of a pan differ little, so most stars
+ * cost two bytes. A keyframe is sent every keyInterval frames, when the
+ * screen size changes, when most of the view changed, or on request, so a
+ * client that lost a frame can resync.
+ *
+ * Frame layout, big endian: int MAGIC, byte KEY or DELTA, int seq,
+ * int body length, then a body of varints (zigzag where signed):
+ * w, h, then for a keyframe the star count and each star's id gap, x, y and
+ * magnitude in hundredths; for a delta the removed ids, the added stars as
+ * in a keyframe, and each kept star's move less the move of the kept star
+ * before it. Stars are in id order. Line ends follow, either moved as kept
+ * stars (LINES_MOVED) or sent whole, each from the end before it
+ * (LINES_FULL).
+ */
+public class FrameDelta {
+
+	public static final int MAGIC = 0x534b5944; // "SKYD"
+	public static final int HEADER = 13; // bytes
+	public static final byte KEY = 0;
+	public static final byte DELTA = 1;
+	public static final byte LINES_MOVED = 0;
+	public static final byte LINES_FULL = 1;
+	public static final int DEFAULT_KEY_INTERVAL = 120; // frames, 2 s at 60 fps
+
+	private static final int INITIAL = 256;
+
+	// stars to visit when walking previous and current ids
+	private static final int REMOVED = 0;
+	private static final int ADDED = 1;
+	private static final int KEPT = 2;
+
+	/**
+	 * Writes v as an unsigned varint
+	 */
+	static void putVarint(ByteBuffer out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	/**
+	 * Reads an unsigned varint
+	 */
+	static int getVarint(ByteBuffer in) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return v;
+		}
+		throw new IllegalArgumentException("bad varint");
+	}
+
+	/**
+	 * Writes signed v as a zigzag varint
+	 */
+	static void putSigned(ByteBuffer out, int v) {
+		putVarint(out, (v << 1) ^ (v >> 31));
+	}
+
+	/**
+	 * Reads a zigzag varint
+	 */
+	static int getSigned(ByteBuffer in) {
+		int v = getVarint(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Encodes successive views of one client. Reuses its buffers, so once
+	 * they have grown encoding allocates nothing.
+	 */
+	public static class Encoder {
+
+		private final int keyInterval;
+		private boolean keyRequested = true;
+		private int seq = 0;
+		private int sinceKey = 0; // frames since the last keyframe
+		private int lastW = -1, lastH = -1;
+		private long frames = 0;
+		private long keyframes = 0;
+
+		// stars of the previous and current frame in id order, in pixels
+		private int[] prevId = new int[INITIAL], prevX = new int[INITIAL], prevY = new int[INITIAL];
+		private int[] curId = new int[INITIAL], curX = new int[INITIAL], curY = new int[INITIAL];
+		private int[] curMag = new int[INITIAL];
+		private int prevCount = 0, curCount = 0;
+		private long[] order = new long[INITIAL]; // id and index, to sort by id
+
+		// line ends of the previous and current frame, x,y in pixels
+		private float[] lineBuf = new float[2 * INITIAL];
+		private int[] prevLine = new int[2 * INITIAL], curLine = new int[2 * INITIAL];
+		private int prevEnds = 0, curEnds = 0;
+
+		/**
+		 * Makes an encoder sending a keyframe every keyInterval frames
+		 */
+		public Encoder(int keyInterval) {
+			if (keyInterval < 1)
+				throw new IllegalArgumentException("bad key interval " + keyInterval);
+			this.keyInterval = keyInterval;
+		}
+
+		/**
+		 * Makes an encoder with the default key interval
+		 */
+		public Encoder() {
+			this(DEFAULT_KEY_INTERVAL);
+		}
+
+		/**
+		 * Makes the next frame a keyframe, as when a client lost a frame
+		 */
+		public void requestKey() {
+			keyRequested = true;
+		}
+
+		/**
+		 * Gets an upper bound on the bytes the next encode of view writes
+		 */
+		public int maxSize(SkyView view) {
+			return HEADER + 64 + 5 * prevCount + 20 * view.size()
+					+ 20 * Constellation.DIM * view.numLines();
+		}
+
+		/**
+		 * Encodes the view with screen coordinates for a w x h screen into
+		 * out at its position, which is advanced past it
+		 * @return number of bytes written
+		 * @throws BufferOverflowException if out has less than maxSize(view)
+		 * bytes remaining, in which case nothing is written
+		 */
+		public int encode(SkyView view, int w, int h, ByteBuffer out) {
+
+			if (out.remaining() < maxSize(view))
+				throw new BufferOverflowException();
+			int n = view.size();
+			grow(n, Constellation.DIM * view.numLines());
+
+			// same scaling as SkyView.encode
+			double half = Math.sqrt((double) w*w + (double) h*h) / 2;
+			float cx = w / 2;
+			float cy = h / 2;
+
+			// stars in id order
+			for (int i = 0; i < n; i++)
+				order[i] = ((long) view.getStar(i).ID_NUM << 32) | i;
+			Arrays.sort(order, 0, n);
+			for (int k = 0; k < n; k++) {
+				int i = (int) order[k];
+				curId[k] = (int) (order[k] >> 32);
+				curX[k] = (int) (half * view.getX(i) + cx);
+				curY[k] = (int) (-half * view.getY(i) + cy);
+				curMag[k] = (int) Math.round(view.getStar(i).getMag() * 100);
+			}
+			curCount = n;
+
+			// line ends
+			curEnds = view.getLines(lineBuf, 0) / 2;
+			for (int e = 0; e < curEnds; e++) {
+				curLine[2*e] = (int) (half * lineBuf[2*e] + cx);
+				curLine[2*e+1] = (int) (-half * lineBuf[2*e+1] + cy);
+			}
+
+			// key if asked, due, resized, or cheaper than a delta
+			int kept = walk(KEPT, null);
+			int numRemoved = prevCount - kept;
+			int numAdded = n - kept;
+			boolean key = keyRequested || sinceKey >= keyInterval || w != lastW || h != lastH
+					|| numRemoved + numAdded > n;
+
+			// header, with the body length filled in at the end
+			int start = out.position();
+			out.putInt(MAGIC).put(key ? KEY : DELTA).putInt(seq).putInt(0);
+			putVarint(out, w);
+			putVarint(out, h);
+
+			// stars
+			if (key) {
+				prevCount = 0; // so every star is added
+				putVarint(out, n);
+				walk(ADDED, out);
+			} else {
+				putVarint(out, numRemoved);
+				walk(REMOVED, out);
+				putVarint(out, numAdded);
+				walk(ADDED, out);
+				walk(KEPT, out);
+			}
+
+			// lines, moved if there are as many as before
+			if (!key && curEnds == prevEnds) {
+				out.put(LINES_MOVED);
+				int pdx = 0, pdy = 0;
+				for (int j = 0; j < 2 * curEnds; j += 2) {
+					int dx = curLine[j] - prevLine[j];
+					int dy = curLine[j+1] - prevLine[j+1];
+					putSigned(out, dx - pdx);
+					putSigned(out, dy - pdy);
+					pdx = dx;
+					pdy = dy;
+				}
+			} else {
+				out.put(LINES_FULL);
+				putVarint(out, curEnds);
+				int px = 0, py = 0;
+				for (int j = 0; j < 2 * curEnds; j += 2) {
+					putSigned(out, curLine[j] - px);
+					putSigned(out, curLine[j+1] - py);
+					px = curLine[j];
+					py = curLine[j+1];
+				}
+			}
+			out.putInt(start + HEADER - 4, out.position() - start - HEADER);
+
+			// current becomes previous
+			int[] t = prevId; prevId = curId; curId = t;
+			t = prevX; prevX = curX; curX = t;
+			t = prevY; prevY = curY; curY = t;
+			t = prevLine; prevLine = curLine; curLine = t;
+			prevCount = curCount;
+			prevEnds = curEnds;
+			lastW = w;
+			lastH = h;
+			seq++;
+			frames++;
+			if (key) {
+				keyframes++;
+				sinceKey = 0;
+				keyRequested = false;
+			}
+			sinceKey++;
+			return out.position() - start;
+		}
+
+		/**
+		 * Walks the previous and current stars in id order, writing those
+		 * removed, added or kept to out, or only counting them if out is null
+		 * @return number of such stars
+		 */
+		private int walk(int what, ByteBuffer out) {
+			int i = 0, k = 0, found = 0, last = 0, pdx = 0, pdy = 0;
+			while (i < prevCount || k < curCount) {
+				if (k == curCount || (i < prevCount && prevId[i] < curId[k])) {
+
+					// only in the previous frame
+					if (what == REMOVED) {
+						found++;
+						if (out != null)
+							putVarint(out, prevId[i] - last);
+						last = prevId[i];
+					}
+					i++;
+				} else if (i == prevCount || curId[k] < prevId[i]) {
+
+					// only in this one
+					if (what == ADDED) {
+						found++;
+						if (out != null) {
+							putVarint(out, curId[k] - last);
+							putSigned(out, curX[k]);
+							putSigned(out, curY[k]);
+							putSigned(out, curMag[k]);
+						}
+						last = curId[k];
+					}
+					k++;
+				} else {
+
+					// in both, as a move from the last kept star's move
+					if (what == KEPT) {
+						found++;
+						if (out != null) {
+							int dx = curX[k] - prevX[i];
+							int dy = curY[k] - prevY[i];
+							putSigned(out, dx - pdx);
+							putSigned(out, dy - pdy);
+							pdx = dx;
+							pdy = dy;
+						}
+					}
+					i++;
+					k++;
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * Grows the current buffers to n stars and the given line ends
+		 */
+		private void grow(int n, int ends) {
+			if (curId.length < n) {
+				int cap = Math.max(n, 2 * curId.length);
+				curId = new int[cap];
+				curX = new int[cap];
+				curY = new int[cap];
+				curMag = new int[cap];
+				order = new long[cap];
+			}
+			if (curLine.length < 2 * ends)
+				curLine = new int[Math.max(2 * ends, 2 * curLine.length)];
+			if (lineBuf.length < 2 * ends)
+				lineBuf = new float[curLine.length];
+		}
+
+		/**
+		 * Gets number of frames encoded
+		 */
+		public long getFrames() {
+			return frames;
+		}
+
+		/**
+		 * Gets number of keyframes encoded
+		 */
+		public long getKeyframes() {
+			return keyframes;
+		}
+	}
+
+	/**
+	 * Rebuilds views from an encoder's frames. Holds the last view decoded,
+	 * stars in id order with pixel coordinates.
+	 */
+	public static class Decoder {
+
+		private boolean synced = false; // whether a keyframe has been applied
+		private int seq = -1;
+		private int w, h;
+
+		// stars in id order, and the next frame's being built
+		private int[] id = new int[INITIAL], x = new int[INITIAL], y = new int[INITIAL];
+		private int[] mag = new int[INITIAL];
+		private int[] nId = new int[INITIAL], nX = new int[INITIAL], nY = new int[INITIAL];
+		private int[] nMag = new int[INITIAL];
+		private int count = 0;
+		private int[] removed = new int[INITIAL];
+		private int[] aId = new int[INITIAL], aX = new int[INITIAL], aY = new int[INITIAL];
+		private int[] aMag = new int[INITIAL];
+
+		// line ends, x,y in pixels, and the next frame's
+		private int[] line = new int[2 * INITIAL];
+		private int[] nLine = new int[2 * INITIAL];
+		private int ends = 0;
+
+		/**
+		 * Applies the frame at in's position, advancing past it. A delta
+		 * that does not follow the last frame applied is skipped, as is
+		 * everything until the next keyframe; the client should then ask
+		 * for one. The frame is read whole into spare buffers before any of
+		 * it is shown, so a bad one leaves the last view as it was.
+		 * @return whether the frame was applied
+		 * @throws IllegalArgumentException if in does not hold a frame
+		 */
+		public boolean decode(ByteBuffer in) {
+
+			// header
+			if (in.remaining() < HEADER || in.getInt() != MAGIC)
+				throw new IllegalArgumentException("not a frame");
+			byte type = in.get();
+			int s = in.getInt();
+			int length = in.getInt();
+			if ((type != KEY && type != DELTA) || length < 0 || length > in.remaining())
+				throw new IllegalArgumentException("bad frame header");
+			int end = in.position() + length;
+			if (type == DELTA && (!synced || s != seq + 1)) {
+				synced = false;
+				in.position(end);
+				return false;
+			}
+			try {
+				int nw = getVarint(in);
+				int nh = getVarint(in);
+
+				// stars
+				int n;
+				if (type == KEY) {
+					n = count(in, 4);
+					grow(n);
+					readAdded(in, n, nId, nX, nY, nMag);
+				} else {
+					n = delta(in);
+				}
+
+				// lines
+				int nEnds;
+				byte lines = in.get();
+				if (lines == LINES_MOVED) {
+					nEnds = ends;
+					if (nLine.length < 2 * nEnds)
+						nLine = new int[line.length];
+					int pdx = 0, pdy = 0;
+					for (int j = 0; j < 2 * nEnds; j += 2) {
+						pdx += getSigned(in);
+						pdy += getSigned(in);
+						nLine[j] = line[j] + pdx;
+						nLine[j+1] = line[j+1] + pdy;
+					}
+				} else if (lines == LINES_FULL) {
+					nEnds = count(in, 2);
+					if (nLine.length < 2 * nEnds)
+						nLine = new int[Math.max(2 * nEnds, 2 * nLine.length)];
+					int px = 0, py = 0;
+					for (int j = 0; j < 2 * nEnds; j += 2) {
+						nLine[j] = px += getSigned(in);
+						nLine[j+1] = py += getSigned(in);
+					}
+				} else {
+					throw new IllegalArgumentException("bad lines " + lines);
+				}
+				if (in.position() != end)
+					throw new IllegalArgumentException("frame length mismatch");
+
+				// show it
+				int[] t = id; id = nId; nId = t;
+				t = x; x = nX; nX = t;
+				t = y; y = nY; nY = t;
+				t = mag; mag = nMag; nMag = t;
+				t = line; line = nLine; nLine = t;
+				count = n;
+				ends = nEnds;
+				w = nw;
+				h = nh;
+			} catch (BufferUnderflowException e) {
+				throw new IllegalArgumentException("frame cut short");
+			}
+			synced = true;
+			seq = s;
+			return true;
+		}
+
+		/**
+		 * Reads a count of items at least bytesEach long, checking they fit
+		 * in what's left of in
+		 */
+		private static int count(ByteBuffer in, int bytesEach) {
+			int n = getVarint(in);
+			if (n < 0 || n > in.remaining() / bytesEach)
+				throw new IllegalArgumentException("bad count " + n);
+			return n;
+		}
+
+		/**
+		 * Reads the stars of a delta into the next frame's buffers
+		 * @return number of stars in the next frame
+		 */
+		private int delta(ByteBuffer in) {
+
+			// removed ids
+			int numRemoved = count(in, 1);
+			if (removed.length < numRemoved)
+				removed = new int[Math.max(numRemoved, 2 * removed.length)];
+			int last = 0;
+			for (int r = 0; r < numRemoved; r++)
+				removed[r] = last += getVarint(in);
+
+			// added stars
+			int numAdded = count(in, 4);
+			if (aId.length < numAdded) {
+				int cap = Math.max(numAdded, 2 * aId.length);
+				aId = new int[cap];
+				aX = new int[cap];
+				aY = new int[cap];
+				aMag = new int[cap];
+			}
+			readAdded(in, numAdded, aId, aX, aY, aMag);
+			grow(count + numAdded);
+
+			// merge, moving the kept stars
+			int i = 0, a = 0, r = 0, k = 0, pdx = 0, pdy = 0;
+			while (i < count || a < numAdded) {
+				if (i < count && r < numRemoved && id[i] == removed[r]) {
+					i++;
+					r++;
+				} else if (a < numAdded && (i == count || aId[a] < id[i])) {
+					nId[k] = aId[a];
+					nX[k] = aX[a];
+					nY[k] = aY[a];
+					nMag[k++] = aMag[a++];
+				} else {
+					pdx += getSigned(in);
+					pdy += getSigned(in);
+					nId[k] = id[i];
+					nX[k] = x[i] + pdx;
+					nY[k] = y[i] + pdy;
+					nMag[k++] = mag[i++];
+				}
+			}
+			if (r != numRemoved)
+				throw new IllegalArgumentException("frame does not follow the last one");
+			return k;
+		}
+
+		/**
+		 * Reads n stars sent whole
+		 */
+		private static void readAdded(ByteBuffer in, int n, int[] ids, int[] xs, int[] ys,
+				int[] mags) {
+			int last = 0;
+			for (int k = 0; k < n; k++) {
+				ids[k] = last += getVarint(in);
+				xs[k] = getSigned(in);
+				ys[k] = getSigned(in);
+				mags[k] = getSigned(in);
+			}
+		}
+
+		/**
+		 * Grows the next frame's buffers to n stars
+		 */
+		private void grow(int n) {
+			if (nId.length < n) {
+				int cap = Math.max(n, 2 * nId.length);
+				nId = new int[cap];
+				nX = new int[cap];
+				nY = new int[cap];
+				nMag = new int[cap];
+			}
+		}
+
+		/**
+		 * Gets number of stars in the view
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Gets id of star i, in id order
+		 */
+		public int getId(int i) {
+			return id[i];
+		}
+
+		/**
+		 * Gets screen x of star i in pixels
+		 */
+		public int getX(int i) {
+			return x[i];
+		}
+
+		/**
+		 * Gets screen y of star i in pixels
+		 */
+		public int getY(int i) {
+			return y[i];
+		}
+
+		/**
+		 * Gets magnitude of star i, to a hundredth
+		 */
+		public double getMag(int i) {
+			return mag[i] / 100.0;
+		}
+
+		/**
+		 * Gets number of lines in the view
+		 */
+		public int numLines() {
+			return ends / Constellation.DIM;
+		}
+
+		/**
+		 * Writes the lines in pixels as [x1,y1,x2,y2,...] into out, starting
+		 * at offset
+		 * @return number of ints written
+		 */
+		public int getLines(int[] out, int offset) {
+			System.arraycopy(line, 0, out, offset, 2 * ends);
+			return 2 * ends;
+		}
+
+		/**
+		 * Gets the screen width of the last frame
+		 */
+		public int getWidth() {
+			return w;
+		}
+
+		/**
+		 * Gets the screen height of the last frame
+		 */
+		public int getHeight() {
+			return h;
+		}
+
+		/**
+		 * Gets sequence number of the last frame applied
+		 */
+		public int getSeq() {
+			return seq;
+		}
+	}
+
+	/**
+	 * driver method for testing: pans a view across a synthetic sky at a
+	 * few speeds, comparing delta frames with full SkyView.encode frames in
+	 * size and time, and checking every decoded frame against the view
+	 * Usage: FrameDelta [frames] [stars]
+	 */
+	public static void main(String[] args) {
+
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int w = 1280, h = 720, fps = 60;
+
+		// a synthetic sky with figures
+		SyntheticCatalog cat = new SyntheticCatalog(n, 1);
+		List<Star> stars = cat.stars();
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		Sky sky = new Sky(stars, cat.constellations(bright, 1000), 6.5);
+		sky.addViewConst();
+		SkySnapshot snap = sky.getSnapshot();
+
+		SkyView view = new SkyView();
+		view.setScreen(w, h);
+		double rad = Math.PI / 180;
+		double[] m = new double[9];
+		ByteBuffer full = ByteBuffer.allocate(1 << 20);
+		ByteBuffer delta = ByteBuffer.allocate(1 << 20);
+		int[] lines = new int[1 << 16];
+		float[] normal = new float[lines.length];
+		long[] order = new long[1 << 16];
+		long[] fullNanos = new long[frames];
+		long[] deltaNanos = new long[frames];
+		long[] decNanos = new long[frames];
+		boolean ok = true;
+
+		// pans in degrees per second, with a slow tilt; two passes warm up,
+		// and times are medians per frame
+		double[] speeds = { 5, 20, 60 };
+		for (int pass = 0; pass < 3; pass++) {
+			for (double speed : speeds) {
+				Encoder enc = new Encoder();
+				Decoder dec = new Decoder();
+				long fullBytes = 0, deltaBytes = 0;
+				long starsSeen = 0;
+				for (int f = 0; f < frames; f++) {
+					double t = (double) f / fps;
+					CoordTrans.getMatrix((30 + 5 * Math.sin(t)) * rad, speed * t * rad, 0,
+							43 * rad, 1.0, 60 * rad, m);
+					view.look(snap, m, 60 * rad, null);
+					starsSeen += view.size();
+
+					// full frame, for comparison
+					full.clear();
+					long t0 = System.nanoTime();
+					fullBytes += view.encode(full, w, h);
+					long t1 = System.nanoTime();
+					fullNanos[f] = t1 - t0;
+
+					// delta frame, then decoded
+					delta.clear();
+					t0 = System.nanoTime();
+					deltaBytes += enc.encode(view, w, h, delta);
+					t1 = System.nanoTime();
+					delta.flip();
+					dec.decode(delta);
+					long t2 = System.nanoTime();
+					deltaNanos[f] = t1 - t0;
+					decNanos[f] = t2 - t1;
+
+					// decoded frame must be the view, to the pixel
+					ok &= same(view, dec, w, h, order, normal, lines);
+				}
+				if (pass < 2)
+					continue;
+				System.out.println(String.format("pan %2.0f deg/s: %.0f stars/frame, "
+						+ "full %6.0f bytes %5.1f us, delta %5.0f bytes %5.1f us "
+						+ "(decode %5.1f us), %d keyframes", speed, (double) starsSeen / frames,
+						(double) fullBytes / frames, median(fullNanos) / 1e3,
+						(double) deltaBytes / frames, median(deltaNanos) / 1e3,
+						median(decNanos) / 1e3, enc.getKeyframes()));
+			}
+		}
+
+		// a lost frame: the next delta is refused, and the client's
+		// request for a keyframe resyncs it
+		Encoder enc = new Encoder();
+		Decoder dec = new Decoder();
+		boolean[] applied = new boolean[4];
+		for (int f = 0; f < 4; f++) {
+			CoordTrans.getMatrix(30 * rad, f * rad, 0, 43 * rad, 1.0, 60 * rad, m);
+			view.look(snap, m, 60 * rad, null);
+			delta.clear();
+			enc.encode(view, w, h, delta);
+			delta.flip();
+			if (f != 1)
+				applied[f] = dec.decode(delta);
+			if (f == 2 && !applied[f])
+				enc.requestKey();
+		}
+		boolean resync = applied[0] && !applied[2] && applied[3]
+				&& same(view, dec, w, h, order, normal, lines);
+		System.out.println("lost frame: delta refused, resynced by keyframe " + resync);
+		ok &= resync;
+
+		// a frame whose length is off by one, only found out once it's all
+		// read: the view is left as it was, and the good copy applies after
+		CoordTrans.getMatrix(30 * rad, 4 * rad, 0, 43 * rad, 1.0, 60 * rad, m);
+		view.look(snap, m, 60 * rad, null);
+		delta.clear();
+		enc.encode(view, w, h, delta);
+		delta.flip();
+		ByteBuffer bad = ByteBuffer.allocate(delta.remaining());
+		bad.put(delta.array(), 0, bad.capacity()).flip();
+		bad.putInt(HEADER - 4, bad.capacity() - HEADER - 1);
+		int[] last = dump(dec);
+		boolean refused = false;
+		try {
+			dec.decode(bad);
+		} catch (IllegalArgumentException e) {
+			refused = true;
+		}
+		boolean kept = refused && Arrays.equals(last, dump(dec)) && dec.decode(delta)
+				&& same(view, dec, w, h, order, normal, lines);
+		System.out.println("bad frame: refused, last view kept, next frame applied " + kept);
+		ok &= kept;
+
+		if (!ok) {
+			System.out.println("decoded frames differ");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Median of the times, which it sorts; a shared machine's stalls would
+	 * swamp a mean
+	 */
+	private static long median(long[] nanos) {
+		Arrays.sort(nanos);
+		return nanos[nanos.length / 2];
+	}
+
+	/**
+	 * Everything the decoder shows, as one array
+	 */
+	private static int[] dump(Decoder dec) {
+		int n = dec.size();
+		int[] out = new int[3 + 4 * n + 2 * Constellation.DIM * dec.numLines()];
+		out[0] = dec.getWidth();
+		out[1] = dec.getHeight();
+		out[2] = n;
+		for (int i = 0; i < n; i++) {
+			out[3 + 4 * i] = dec.getId(i);
+			out[4 + 4 * i] = dec.getX(i);
+			out[5 + 4 * i] = dec.getY(i);
+			out[6 + 4 * i] = (int) Math.round(100 * dec.getMag(i));
+		}
+		dec.getLines(out, 3 + 4 * n);
+		return out;
+	}
+
+	/**
+	 * Whether the decoder holds the view on a w x h screen
+	 */
+	private static boolean same(SkyView view, Decoder dec, int w, int h, long[] order,
+			float[] normal, int[] lines) {
+		int n = view.size();
+		if (dec.size() != n || dec.getWidth() != w || dec.getHeight() != h)
+			return false;
+		double half = Math.sqrt((double) w*w + (double) h*h) / 2;
+		float cx = w / 2;
+		float cy = h / 2;
+		for (int i = 0; i < n; i++)
+			order[i] = ((long) view.getStar(i).ID_NUM << 32) | i;
+		Arrays.sort(order, 0, n);
+		for (int k = 0; k < n; k++) {
+			int i = (int) order[k];
+			if (dec.getId(k) != view.getStar(i).ID_NUM
+					|| dec.getX(k) != (int) (half * view.getX(i) + cx)
+					|| dec.getY(k) != (int) (-half * view.getY(i) + cy)
+					|| Math.abs(dec.getMag(k) - view.getStar(i).getMag()) > 0.005 + 1e-9)
+				return false;
+		}
+		int ends = view.getLines(normal, 0);
+		if (dec.getLines(lines, 0) != ends)
+			return false;
+		for (int j = 0; j < ends; j += 2)
+			if (lines[j] != (int) (half * normal[j] + cx)
+					|| lines[j+1] != (int) (-half * normal[j+1] + cy))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,178 @@
+package com.nderr.jconstellate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stars grouped into declination bands, for finding everything above the
+ * horizon. For a latitude, whole bands are classed as always up (every star
+ * circumpolar), always down (no star ever rises) or mixed, and only stars in
+ * mixed bands are tested individually, by one dot product of their packed
+ * unit vector (cos dec cos ra, cos dec sin ra, sin dec) with the zenith.
+ * Within a band stars are brightest first, so the magnitude cutoff ends
+ * each band early.
+ */
+public class HorizonIndex {
+
+	public static final int DEFAULT_BANDS = 180; // one degree each
+
+	// band classes
+	public static final int MIXED = 0;
+	public static final int ALWAYS_UP = 1;
+	public static final int ALWAYS_DOWN = 2;
+
+	private final int bands; // number of declination bands
+	private final Star[] stars; // sorted by band, then magnitude
+	private final double[] pos; // packed unit vectors of sorted stars
+	private final double[] mags; // magnitudes of sorted stars
+	private final int[] bandStart; // band b is [bandStart[b], bandStart[b+1])
+	private final double[] decMin; // lowest declination in each band
+	private final double[] decMax; // highest declination in each band
+
+	/**
+	 * Indexes the given stars at their current positions in default bands
+	 */
+	public HorizonIndex(Collection<Star> stars) {
+		this(stars, DEFAULT_BANDS);
+	}
+
+	/**
+	 * Indexes the given stars at their current positions in the given number
+	 * of equal declination bands
+	 */
+	public HorizonIndex(Collection<Star> stars, int bands) {
+
+		this.bands = bands;
+		int n = stars.size();
+		Star[] in = stars.toArray(new Star[n]);
+
+		// band of each star
+		int[] band = new int[n];
+		bandStart = new int[bands + 1];
+		for (int i = 0; i < n; i++) {
+			band[i] = band(in[i].getHat().getZ());
+			bandStart[band[i] + 1]++;
+		}
+
+		// counting sort by band, then brightest first
+		for (int b = 0; b < bands; b++)
+			bandStart[b + 1] += bandStart[b];
+		int[] fill = new int[bands];
+		System.arraycopy(bandStart, 0, fill, 0, bands);
+		this.stars = new Star[n];
+		for (int i = 0; i < n; i++)
+			this.stars[fill[band[i]]++] = in[i];
+		for (int b = 0; b < bands; b++)
+			Arrays.sort(this.stars, bandStart[b], bandStart[b + 1], SkySnapshot.BY_MAG);
+
+		// pack
+		pos = new double[Vector.DIM * n];
+		mags = new double[n];
+		for (int i = 0; i < n; i++) {
+			Vector hat = this.stars[i].getHat();
+			pos[Vector.DIM*i + Vector.X] = hat.getX();
+			pos[Vector.DIM*i + Vector.Y] = hat.getY();
+			pos[Vector.DIM*i + Vector.Z] = hat.getZ();
+			mags[i] = this.stars[i].getMag();
+		}
+
+		// band edges
+		decMin = new double[bands];
+		decMax = new double[bands];
+		for (int b = 0; b < bands; b++) {
+			decMin[b] = -Math.PI/2 + Math.PI * b / bands;
+			decMax[b] = -Math.PI/2 + Math.PI * (b + 1) / bands;
+		}
+	}
+
+	/**
+	 * Gets the band of a star with unit vector z component (sin dec) z
+	 */
+	private int band(double z) {
+		double dec = Math.asin(Math.max(-1, Math.min(1, z)));
+		int b = (int) ((dec + Math.PI/2) / Math.PI * bands);
+		return Math.max(0, Math.min(bands - 1, b));
+	}
+
+	/**
+	 * Classes band b at latitude lat for stars above altitude alt
+	 * @return ALWAYS_UP, ALWAYS_DOWN or MIXED
+	 */
+	public int classify(int b, double lat, double alt) {
+
+		// lowest point of the band's lowest star (lower culmination)
+		double lo = decMin[b], hi = decMax[b];
+		double minReach = (lo <= -lat && -lat <= hi) ? 0
+				: Math.min(Math.abs(lat + lo), Math.abs(lat + hi));
+		if (minReach - Math.PI/2 > alt)
+			return ALWAYS_UP;
+
+		// highest point of the band's highest star (upper culmination)
+		double minDist = (lo <= lat && lat <= hi) ? 0
+				: Math.min(Math.abs(lat - lo), Math.abs(lat - hi));
+		if (Math.PI/2 - minDist < alt)
+			return ALWAYS_DOWN;
+
+		return MIXED;
+	}
+
+	/**
+	 * Adds to out every star brighter than magLimit above altitude alt for
+	 * an observer at latitude lat with the given zenith direction
+	 * @return number of stars added
+	 */
+	public int query(double lat, Vector zenith, double alt, double magLimit, List<Star> out) {
+
+		double zx = zenith.getX(), zy = zenith.getY(), zz = zenith.getZ();
+		double sinAlt = Math.sin(alt);
+		int added = 0;
+
+		for (int b = 0; b < bands; b++) {
+			int type = classify(b, lat, alt);
+			if (type == ALWAYS_DOWN)
+				continue;
+			for (int i = bandStart[b]; i < bandStart[b + 1] && mags[i] < magLimit; i++) {
+				int j = Vector.DIM * i;
+				if (type == ALWAYS_UP || zx*pos[j] + zy*pos[j + 1] + zz*pos[j + 2] > sinAlt) {
+					out.add(stars[i]);
+					added++;
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Adds to out every star brighter than magLimit above the horizon at the
+	 * location of the coord transfer object at the provided time
+	 * @return number of stars added
+	 */
+	public int query(CoordTrans ct, long time, double magLimit, List<Star> out) {
+		return query(ct.getLat(), ct.getZenith(time), 0, magLimit, out);
+	}
+
+	/**
+	 * Gets number of declination bands
+	 */
+	public int numBands() {
+		return bands;
+	}
+
+	/**
+	 * Gets the stars, sorted by band then magnitude
+	 */
+	public Star[] getStars() {
+		return stars;
+	}
+
+	/**
+	 * Gets estimated retained bytes, not counting the stars themselves
+	 */
+	public long footprint() {
+		return Footprint.shallow(HorizonIndex.class) + Footprint.array(stars.length, Footprint.REF)
+				+ Footprint.array(pos.length, 8) + Footprint.array(mags.length, 8)
+				+ Footprint.array(bandStart.length, 4) + Footprint.array(decMin.length, 8)
+				+ Footprint.array(decMax.length, 8);
+	}
+}
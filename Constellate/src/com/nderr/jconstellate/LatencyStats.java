@@ -0,0 +1,122 @@
+package com.nderr.jconstellate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe latency histogram. Buckets are powers of two of microseconds,
+ * each split into 16 linear sub-buckets, so percentiles are good to about
+ * 6% over any range of latencies, with no locking on record.
+ */
+public class LatencyStats {
+
+	private static final int SUB = 16; // sub-buckets per power of two
+	private static final int POWERS = 40; // up to 2^40 us
+
+	private final AtomicLongArray counts = new AtomicLongArray(SUB * POWERS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong(); // nanoseconds
+	private final AtomicLong max = new AtomicLong(); // nanoseconds
+	private volatile long start = System.nanoTime();
+
+	/**
+	 * Records one latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos / 1000));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { }
+	}
+
+	/**
+	 * Gets the bucket holding a latency of us microseconds
+	 */
+	private static int bucket(long us) {
+		if (us < SUB)
+			return (int) Math.max(0, us);
+		int power = 63 - Long.numberOfLeadingZeros(us); // >= 4
+		int sub = (int) (us >>> (power - 4)) - SUB; // next four bits
+		return Math.min(SUB * POWERS - 1, SUB * (power - 3) + sub);
+	}
+
+	/**
+	 * Gets the upper end of a bucket in microseconds
+	 */
+	private static long upper(int bucket) {
+		if (bucket < SUB)
+			return bucket + 1;
+		int power = bucket / SUB + 3;
+		int sub = bucket % SUB;
+		return (long) (SUB + sub + 1) << (power - 4);
+	}
+
+	/**
+	 * Gets the latency in microseconds below which the given fraction
+	 * (0 to 1) of recorded latencies fall
+	 */
+	public long percentile(double p) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long target = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int b = 0; b < counts.length(); b++) {
+			seen += counts.get(b);
+			if (seen >= Math.max(1, target))
+				return upper(b);
+		}
+		return upper(counts.length() - 1);
+	}
+
+	/**
+	 * Gets number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets mean latency in microseconds
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / 1000.0 / n;
+	}
+
+	/**
+	 * Gets largest latency in microseconds
+	 */
+	public long getMax() {
+		return max.get() / 1000;
+	}
+
+	/**
+	 * Gets recorded latencies per second since creation or the last reset
+	 */
+	public double getThroughput() {
+		double secs = (System.nanoTime() - start) / 1e9;
+		return secs <= 0 ? 0 : count.get() / secs;
+	}
+
+	/**
+	 * Forgets everything recorded
+	 */
+	public void reset() {
+		for (int b = 0; b < counts.length(); b++)
+			counts.set(b, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+		start = System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return "count " + getCount() + ", " + String.format("%.1f", getThroughput())
+				+ "/s, mean " + String.format("%.0f", getMean()) + " us, p50 "
+				+ percentile(0.5) + " us, p99 " + percentile(0.99) + " us, max "
+				+ getMax() + " us";
+	}
+}
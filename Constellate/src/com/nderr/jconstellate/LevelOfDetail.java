@@ -0,0 +1,41 @@
+package com.nderr.jconstellate;
+
+/**
+ * Magnitude limits that tighten as the field of view widens, so wide views
+ * skip stars that would only be sub-pixel dots and narrow views show more
+ */
+public class LevelOfDetail {
+
+	// tiers by angular diameter (radians) of the view, and their limits
+	public static final LevelOfDetail DEFAULT = new LevelOfDetail(
+			new double[] { 0.05, 0.2, 0.5, 1.0, Double.MAX_VALUE },
+			new double[] { 12.0, 9.0, 7.5, 6.5, 5.5 });
+
+	private final double[] diam; // upper bound of each tier, ascending
+	private final double[] mag; // magnitude limit in each tier
+
+	/**
+	 * Makes tiers: views up to diam[i] across get magnitude limit mag[i]
+	 */
+	public LevelOfDetail(double[] diam, double[] mag) {
+		if (diam.length != mag.length || diam.length == 0)
+			throw new IllegalArgumentException("need one magnitude per tier");
+		for (int i = 1; i < diam.length; i++) {
+			if (diam[i] <= diam[i - 1])
+				throw new IllegalArgumentException("tiers must be ascending");
+		}
+		this.diam = diam.clone();
+		this.mag = mag.clone();
+	}
+
+	/**
+	 * Gets the magnitude limit for a view of the given angular diameter
+	 */
+	public double magLimit(double angDiam) {
+		for (int i = 0; i < diam.length; i++) {
+			if (angDiam <= diam[i])
+				return mag[i];
+		}
+		return mag[mag.length - 1];
+	}
+}
@@ -0,0 +1,118 @@
+package com.nderr.jconstellate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for SkyServer. For each concurrency level, runs that many
+ * client threads requesting random poses back to back for a fixed time, and
+ * reports throughput and p50/p99 latency as seen by the clients.
+ */
+public class LoadTest {
+
+	public static final int[] DEFAULT_LEVELS = { 1, 2, 4, 8, 16, 32 };
+	public static final int DEFAULT_SECONDS = 3;
+
+	private final String base; // e.g. http://localhost:8080
+	private final String format; // json or bin
+
+	public LoadTest(String base, String format) {
+		this.base = base;
+		this.format = format;
+	}
+
+	/**
+	 * Runs the given number of clients for the given time
+	 * @return client side latencies
+	 */
+	public LatencyStats run(int clients, int seconds) throws InterruptedException {
+
+		final LatencyStats stats = new LatencyStats();
+		final AtomicLong errors = new AtomicLong();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		Thread[] threads = new Thread[clients];
+
+		for (int c = 0; c < clients; c++) {
+			final Random r = new Random(c);
+			threads[c] = new Thread("load-" + c) {
+				@Override
+				public void run() {
+					byte[] buf = new byte[1 << 16];
+					while (System.nanoTime() < end) {
+						String url = base + "/view?lat=" + (r.nextDouble()*160 - 80)
+								+ "&lon=" + (r.nextDouble()*360 - 180)
+								+ "&el=" + (r.nextDouble()*90) + "&az=" + (r.nextDouble()*360)
+								+ "&spin=0&ang=" + (10 + r.nextDouble()*110)
+								+ "&format=" + format;
+						long t0 = System.nanoTime();
+						try {
+							HttpURLConnection conn
+									= (HttpURLConnection) new URL(url).openConnection();
+							InputStream in = conn.getInputStream();
+							while (in.read(buf) >= 0) { }
+							in.close();
+							stats.record(System.nanoTime() - t0);
+						} catch (IOException e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[c].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		if (errors.get() > 0)
+			System.out.println(errors.get() + " failed requests");
+		return stats;
+	}
+
+	/**
+	 * Usage: LoadTest [url|-] [seconds per level] [levels, e.g. 1,4,16] [json|bin]
+	 * With no url (or -) an embedded server on stars.json/const.json is used.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String url = args.length > 0 ? args[0] : "-";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+		int[] levels = DEFAULT_LEVELS;
+		if (args.length > 2) {
+			String[] parts = args[2].split(",");
+			levels = new int[parts.length];
+			for (int i = 0; i < parts.length; i++)
+				levels[i] = Integer.parseInt(parts[i].trim());
+		}
+		String format = args.length > 3 ? args[3] : "json";
+
+		// embedded server if none given
+		SkyServer server = null;
+		if (url.equals("-")) {
+			Sky sky = Sky.load(new File("stars.json"), new File("const.json"), 6.5);
+			server = new SkyServer(sky, 0);
+			server.start();
+			url = "http://localhost:" + server.getPort();
+		}
+
+		// warm up, then each level
+		LoadTest test = new LoadTest(url, format);
+		test.run(2, 1);
+		System.out.println("clients\treq/s\tp50 us\tp99 us\tmax us");
+		for (int clients : levels) {
+			LatencyStats stats = test.run(clients, seconds);
+			System.out.println(clients + "\t"
+					+ String.format("%.1f", stats.getCount() / (double) seconds)
+					+ "\t" + stats.percentile(0.5) + "\t" + stats.percentile(0.99)
+					+ "\t" + stats.getMax());
+		}
+
+		if (server != null) {
+			System.out.println("server side: " + server.getStats());
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.nderr.jconstellate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which figures use which stars, both ways, as compressed adjacency arrays:
+ * figure f's stars are starOf[figStart[f] .. figStart[f+1]) and star row s's
+ * figures are figOf[starStart[s] .. starStart[s+1]). Star ids map to rows
+ * through an open addressed int table, so both lookups are constant time
+ * with no per-entry objects.
+ */
+public class MembershipIndex {
+
+	private static final int EMPTY = Integer.MIN_VALUE; // free table slot
+
+	private final Constellation[] figures; // figure number -> figure
+	private final Map<Constellation,Integer> numbers; // figure -> number
+	private final Star[] stars; // star row -> star
+	private final int[] figStart; // per figure, into starOf
+	private final int[] starOf; // star rows of each figure
+	private final int[] starStart; // per star row, into figOf
+	private final int[] figOf; // figure numbers of each star
+	private final int[] keys; // star ids, open addressed
+	private final int[] rows; // star row of each key
+
+	/**
+	 * Builds the index of the provided (linked) constellations
+	 */
+	public MembershipIndex(Collection<Constellation> cons) {
+		this(cons.toArray(new Constellation[cons.size()]), null, null);
+	}
+
+	/**
+	 * Builds the index of the given figures. Figures also in old, other than
+	 * changed, take their star lists from it instead of their star sets.
+	 */
+	private MembershipIndex(Constellation[] figs, MembershipIndex old, Constellation changed) {
+
+		figures = figs;
+		numbers = new HashMap<Constellation,Integer>(figs.length*10/7 + 1);
+		for (int f = 0; f < figs.length; f++)
+			numbers.put(figs[f], f);
+
+		// number stars, and list each figure's star numbers
+		Map<Star,Integer> rowOf = new HashMap<Star,Integer>();
+		List<Star> starList = new ArrayList<Star>();
+		int[][] members = new int[figs.length][];
+		int total = 0;
+		for (int f = 0; f < figs.length; f++) {
+			Collection<Star> set = stars(figs[f], old, changed);
+			int[] list = new int[set.size()];
+			int k = 0;
+			for (Star st : set) {
+				if (st == null)
+					continue; // id not in catalog
+				Integer row = rowOf.get(st);
+				if (row == null) {
+					row = starList.size();
+					rowOf.put(st, row);
+					starList.add(st);
+				}
+				list[k++] = row;
+			}
+			members[f] = Arrays.copyOf(list, k);
+			total += k;
+		}
+		stars = starList.toArray(new Star[starList.size()]);
+
+		// figure -> stars
+		figStart = new int[figs.length + 1];
+		starOf = new int[total];
+		for (int f = 0; f < figs.length; f++) {
+			figStart[f + 1] = figStart[f] + members[f].length;
+			System.arraycopy(members[f], 0, starOf, figStart[f], members[f].length);
+		}
+
+		// star -> figures, by counting then filling
+		starStart = new int[stars.length + 1];
+		for (int s : starOf)
+			starStart[s + 1]++;
+		for (int s = 0; s < stars.length; s++)
+			starStart[s + 1] += starStart[s];
+		figOf = new int[total];
+		int[] fill = Arrays.copyOf(starStart, stars.length);
+		for (int f = 0; f < figs.length; f++)
+			for (int i = figStart[f]; i < figStart[f + 1]; i++)
+				figOf[fill[starOf[i]]++] = f;
+
+		// star id -> row
+		int size = Integer.highestOneBit(Math.max(1, 2 * stars.length)) << 1;
+		keys = new int[size];
+		rows = new int[size];
+		Arrays.fill(keys, EMPTY);
+		for (int s = 0; s < stars.length; s++) {
+			int slot = slot(stars[s].ID_NUM);
+			keys[slot] = stars[s].ID_NUM;
+			rows[slot] = s;
+		}
+	}
+
+	/**
+	 * Makes an index with old's rows and numbering, over the stars of the
+	 * same ids in the directory and the given copies of old's figures
+	 */
+	private MembershipIndex(MembershipIndex old, Map<Integer,Star> directory,
+			Map<Constellation,Constellation> copies) {
+		figures = new Constellation[old.figures.length];
+		numbers = new HashMap<Constellation,Integer>(figures.length*10/7 + 1);
+		for (int f = 0; f < figures.length; f++) {
+			figures[f] = copies.get(old.figures[f]);
+			numbers.put(figures[f], f);
+		}
+		stars = new Star[old.stars.length];
+		for (int s = 0; s < stars.length; s++)
+			stars[s] = directory.get(old.stars[s].ID_NUM);
+		figStart = old.figStart;
+		starOf = old.starOf;
+		starStart = old.starStart;
+		figOf = old.figOf;
+		keys = old.keys;
+		rows = old.rows;
+	}
+
+	/**
+	 * New index of the same memberships over moved copies of the same stars
+	 * (looked up by id in the directory) and copies of the figures
+	 */
+	MembershipIndex moved(Map<Integer,Star> directory, Map<Constellation,Constellation> copies) {
+		return new MembershipIndex(this, directory, copies);
+	}
+
+	/**
+	 * Gets a figure's stars, from the old index if it has them
+	 */
+	private static Collection<Star> stars(Constellation c, MembershipIndex old,
+			Constellation changed) {
+		Integer f = (old == null || c == changed) ? null : old.numbers.get(c);
+		if (f == null)
+			return c.getStars();
+		List<Star> list = new ArrayList<Star>(old.figStart[f + 1] - old.figStart[f]);
+		for (int i = old.figStart[f]; i < old.figStart[f + 1]; i++)
+			list.add(old.stars[old.starOf[i]]);
+		return list;
+	}
+
+	/**
+	 * New index with the given figure added, or replacing old (which may be
+	 * null). Other figures reuse their rows from this index rather than
+	 * walking their star sets again.
+	 */
+	public MembershipIndex with(Constellation c, Constellation old) {
+		Integer f = old == null ? null : numbers.get(old);
+		Constellation[] figs;
+		if (f != null) {
+			figs = figures.clone();
+			figs[f] = c;
+		} else {
+			figs = Arrays.copyOf(figures, figures.length + 1);
+			figs[figures.length] = c;
+		}
+		return new MembershipIndex(figs, this, c);
+	}
+
+	/**
+	 * Gets the table slot holding the id, or the empty slot where it goes
+	 */
+	private int slot(int id) {
+		int mask = keys.length - 1;
+		int i = (id * 0x9E3779B9) >>> 7 & mask;
+		while (keys[i] != EMPTY && keys[i] != id)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/**
+	 * Gets the row of a star id, or -1 if no figure uses it
+	 */
+	private int row(int starId) {
+		int i = slot(starId);
+		return keys[i] == EMPTY ? -1 : rows[i];
+	}
+
+	/**
+	 * Gets number of figures using the star of the given id
+	 */
+	public int numFigures(int starId) {
+		int s = row(starId);
+		return s < 0 ? 0 : starStart[s + 1] - starStart[s];
+	}
+
+	/**
+	 * Adds to out the figures using the star of the given id
+	 * @return number added
+	 */
+	public int figuresOf(int starId, List<Constellation> out) {
+		int s = row(starId);
+		if (s < 0)
+			return 0;
+		for (int i = starStart[s]; i < starStart[s + 1]; i++)
+			out.add(figures[figOf[i]]);
+		return starStart[s + 1] - starStart[s];
+	}
+
+	/**
+	 * Gets the figures using the star of the given id
+	 */
+	public List<Constellation> figuresOf(int starId) {
+		List<Constellation> out = new ArrayList<Constellation>(numFigures(starId));
+		figuresOf(starId, out);
+		return out;
+	}
+
+	/**
+	 * Adds to out the stars of the given figure
+	 * @return number added
+	 */
+	public int starsOf(Constellation c, List<Star> out) {
+		Integer f = numbers.get(c);
+		if (f == null)
+			return 0;
+		for (int i = figStart[f]; i < figStart[f + 1]; i++)
+			out.add(stars[starOf[i]]);
+		return figStart[f + 1] - figStart[f];
+	}
+
+	/**
+	 * Gets the star of the given id if the figure uses it, else null
+	 */
+	public Star getStar(Constellation c, int starId) {
+		Integer f = numbers.get(c);
+		int s = row(starId);
+		if (f == null || s < 0)
+			return null;
+
+		// a star is in few figures, so search its side
+		for (int i = starStart[s]; i < starStart[s + 1]; i++)
+			if (figOf[i] == f)
+				return stars[s];
+		return null;
+	}
+
+	/**
+	 * Gets number of figures
+	 */
+	public int numFigures() {
+		return figures.length;
+	}
+
+	/**
+	 * Gets number of distinct stars used by figures
+	 */
+	public int numStars() {
+		return stars.length;
+	}
+
+	/**
+	 * Gets estimated retained bytes, not counting the stars themselves
+	 */
+	public long footprint() {
+		return Footprint.shallow(MembershipIndex.class)
+				+ Footprint.array(figures.length, Footprint.REF)
+				+ Footprint.hashMap(numbers.size()) + (long) numbers.size() * Footprint.BOXED
+				+ Footprint.array(stars.length, Footprint.REF) + Footprint.array(figStart.length, 4)
+				+ Footprint.array(starOf.length, 4) + Footprint.array(starStart.length, 4)
+				+ Footprint.array(figOf.length, 4) + Footprint.array(keys.length, 4)
+				+ Footprint.array(rows.length, 4);
+	}
+}
@@ -0,0 +1,275 @@
+package com.nderr.jconstellate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds all pairs of stars within an angular separation of each other using
+ * a SkyIndex. Each cell is only compared against itself and the cells whose
+ * bounding caps come within the separation of it, and candidates are tested
+ * by dot product against the cosine of the separation, so only pairs that
+ * are found pay for an acos. Cells are joined in parallel on the shared pool.
+ */
+public class PairJoin {
+
+	/**
+	 * Receives pairs as they're found. Called from worker threads, so must
+	 * be thread safe.
+	 */
+	public interface Sink {
+		void pair(Star a, Star b, double sep);
+	}
+
+	private final SkyIndex index;
+
+	public PairJoin(SkyIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Gets, for each cell, the cells after it that might hold a star within
+	 * sep of one of its stars
+	 */
+	private int[][] neighbors(final double sep) {
+
+		final int n = index.numCells();
+		final double[] center = index.getCenters();
+		final double[] radius = index.getRadii();
+		final int[][] out = new int[n][];
+		double max = 0;
+		for (double r : radius)
+			max = Math.max(max, r);
+		final double maxRadius = max;
+
+		Parallel.forRange(n, 64, new Parallel.Task() {
+			public void run(int from, int to) {
+				int[] buf = new int[n];
+				for (int c = from; c < to; c++) {
+					int count = 0;
+					int jc = Vector.DIM * c;
+					double cx = center[jc], cy = center[jc + 1], cz = center[jc + 2];
+
+					// loose bound for any cell first, then this pair's own
+					double loose = radius[c] + maxRadius + sep;
+					double minDot = loose >= Math.PI ? -1 : Math.cos(loose);
+					for (int d = c + 1; d < n; d++) {
+						int jd = Vector.DIM * d;
+						double dot = cx*center[jd] + cy*center[jd + 1] + cz*center[jd + 2];
+						if (dot < minDot)
+							continue;
+						double reach = radius[c] + radius[d] + sep;
+						if (reach >= Math.PI || dot >= Math.cos(reach))
+							buf[count++] = d;
+					}
+					out[c] = new int[count];
+					System.arraycopy(buf, 0, out[c], 0, count);
+				}
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Sends to sink every pair of stars brighter than magLimit within sep
+	 * radians of each other, each pair once, in no particular order
+	 * @return number of pairs found
+	 */
+	public long join(double sep, double magLimit, final Sink sink) {
+
+		final int[][] near = neighbors(sep);
+		final double minDot = Math.cos(sep);
+		final Star[] stars = index.getStars();
+		final double[] pos = index.getPositions();
+		final double[] mags = index.getMags();
+		final int[] start = index.getCellStart();
+		final AtomicLong found = new AtomicLong();
+
+		// stars are brightest first, so each cell ends at the limit
+		final int[] end = new int[index.numCells()];
+		for (int c = 0; c < end.length; c++) {
+			end[c] = start[c];
+			while (end[c] < start[c + 1] && mags[end[c]] < magLimit)
+				end[c]++;
+		}
+
+		Parallel.forRange(index.numCells(), 1, new Parallel.Task() {
+			public void run(int from, int to) {
+				long count = 0;
+				for (int c = from; c < to; c++) {
+					for (int i = start[c]; i < end[c]; i++) {
+						int ji = Vector.DIM * i;
+						double x = pos[ji], y = pos[ji + 1], z = pos[ji + 2];
+
+						// rest of own cell
+						for (int k = i + 1; k < end[c]; k++)
+							count += test(x, y, z, i, k, minDot, stars, pos, sink);
+
+						// neighboring cells after this one
+						for (int d : near[c]) {
+							for (int k = start[d]; k < end[d]; k++)
+								count += test(x, y, z, i, k, minDot, stars, pos, sink);
+						}
+					}
+				}
+				found.addAndGet(count);
+			}
+		});
+		return found.get();
+	}
+
+	/**
+	 * Sends sorted stars i and k to sink if within minDot
+	 * @return 1 if sent, else 0
+	 */
+	private static int test(double x, double y, double z, int i, int k, double minDot,
+			Star[] stars, double[] pos, Sink sink) {
+		int jk = Vector.DIM * k;
+		double dot = x*pos[jk] + y*pos[jk + 1] + z*pos[jk + 2];
+		if (dot <= minDot)
+			return 0;
+		if (sink != null)
+			sink.pair(stars[i], stars[k], Math.acos(Math.min(1, dot)));
+		return 1;
+	}
+
+	/**
+	 * Counts pairs of stars brighter than magLimit within sep radians
+	 */
+	public long count(double sep, double magLimit) {
+		return join(sep, magLimit, null);
+	}
+
+	/**
+	 * Gets all pairs of stars brighter than magLimit within sep radians
+	 */
+	public List<Star[]> pairs(double sep, double magLimit) {
+		final List<Star[]> out = Collections.synchronizedList(new ArrayList<Star[]>());
+		join(sep, magLimit, new Sink() {
+			public void pair(Star a, Star b, double s) {
+				out.add(new Star[] { a, b });
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Gets groups of stars brighter than magLimit linked by separations
+	 * under sep (each star within sep of another in its group), with at
+	 * least minSize stars, largest first. Good for spotting asterisms and
+	 * crowded spots.
+	 */
+	public List<List<Star>> groups(double sep, double magLimit, int minSize) {
+
+		// union pairs
+		final Map<Star,Star> parent = new HashMap<Star,Star>();
+		join(sep, magLimit, new Sink() {
+			public void pair(Star a, Star b, double s) {
+				synchronized (parent) {
+					Star ra = root(parent, a);
+					Star rb = root(parent, b);
+					if (ra != rb)
+						parent.put(ra, rb);
+				}
+			}
+		});
+
+		// collect by root
+		Map<Star,List<Star>> byRoot = new HashMap<Star,List<Star>>();
+		for (Star st : new ArrayList<Star>(parent.keySet())) {
+			Star r = root(parent, st);
+			List<Star> g = byRoot.get(r);
+			if (g == null) {
+				g = new ArrayList<Star>();
+				byRoot.put(r, g);
+			}
+			g.add(st);
+		}
+		List<List<Star>> out = new ArrayList<List<Star>>();
+		for (List<Star> g : byRoot.values()) {
+			if (g.size() >= minSize) {
+				Collections.sort(g, SkySnapshot.BY_MAG);
+				out.add(g);
+			}
+		}
+		Collections.sort(out, new Comparator<List<Star>>() {
+			public int compare(List<Star> a, List<Star> b) {
+				return b.size() - a.size();
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Finds the root of a star in the union-find forest, halving paths
+	 */
+	private static Star root(Map<Star,Star> parent, Star st) {
+		if (!parent.containsKey(st)) {
+			parent.put(st, st);
+			return st;
+		}
+		Star p;
+		while ((p = parent.get(st)) != st) {
+			Star gp = parent.get(p);
+			parent.put(st, gp);
+			st = gp;
+		}
+		return st;
+	}
+
+	/**
+	 * driver method for testing: checks pair counts against brute force on
+	 * stars.json, then times joins of n random stars
+	 */
+	public static void main(String[] args) throws IOException {
+
+		double arcmin = Math.PI / 180 / 60;
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		// catalog, against brute force
+		Sky sky = Sky.load(new File("stars.json"), new File("const.json"), 6.5);
+		List<Star> cat = new ArrayList<Star>(sky.getStars().values());
+		PairJoin join = new PairJoin(sky.getIndex());
+		for (double sep : new double[] { 10 * arcmin, 60 * arcmin, 300 * arcmin }) {
+			long brute = 0;
+			for (int i = 0; i < cat.size(); i++)
+				for (int k = i + 1; k < cat.size(); k++)
+					if (cat.get(i).getHat().dot(cat.get(k).getHat()) > Math.cos(sep))
+						brute++;
+			System.out.println(sep / arcmin + "': " + join.count(sep, Double.MAX_VALUE)
+					+ " pairs, brute force " + brute);
+		}
+		for (List<Star> g : join.groups(120 * arcmin, 4.5, 3))
+			System.out.println("group of " + g.size() + " around star " + g.get(0).ID_NUM);
+
+		// random stars, uniform on the sphere
+		Random r = new Random(1);
+		List<Star> stars = new ArrayList<Star>(n);
+		for (int i = 0; i < n; i++) {
+			double z = 2 * r.nextDouble() - 1;
+			double ra = 2 * Math.PI * r.nextDouble();
+			Star st = new Star(i, ra, Math.asin(z), 6 + 6 * r.nextDouble(), null, null, null, null);
+			st.setHat();
+			stars.add(st);
+		}
+		long t0 = System.nanoTime();
+		SkyIndex index = new SkyIndex(stars, 64);
+		long t1 = System.nanoTime();
+		System.out.println(n + " stars indexed in " + (t1 - t0) / 1000000 + " ms");
+		join = new PairJoin(index);
+		for (double sep : new double[] { 1 * arcmin, 5 * arcmin }) {
+			t0 = System.nanoTime();
+			long count = join.count(sep, Double.MAX_VALUE);
+			t1 = System.nanoTime();
+			System.out.println(sep / arcmin + "': " + count + " pairs in " + (t1 - t0) / 1000000
+					+ " ms");
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.nderr.jconstellate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared worker pool for batch computations over index ranges
+ */
+public class Parallel {
+
+	// ranges smaller than this are done on the calling thread
+	public static final int MIN_CHUNK = 2048;
+	public static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static ExecutorService pool; // daemon worker threads
+
+	/**
+	 * Work over a half open range of indices
+	 */
+	public interface Task {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Gets the shared pool, starting it if needed
+	 */
+	public static synchronized ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				private int count = 0;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "constellate-worker-" + count++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs the task over [0,n) split into chunks across the shared pool, and
+	 * waits for all of them. Tasks must not call back into this method.
+	 */
+	public static void forRange(int n, final Task task) {
+		forRange(n, MIN_CHUNK, task);
+	}
+
+	/**
+	 * Runs the task over [0,n) in chunks of at least minChunk indices
+	 */
+	public static void forRange(int n, int minChunk, final Task task) {
+
+		// small jobs aren't worth handing off
+		int chunks = Math.min(THREADS, n / Math.max(1, minChunk));
+		if (chunks <= 1) {
+			task.run(0, n);
+			return;
+		}
+
+		// hand out all but the first chunk
+		int size = (n + chunks - 1) / chunks;
+		List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+		for (int from = size; from < n; from += size) {
+			final int lo = from;
+			final int hi = Math.min(n, from + size);
+			futures.add(pool().submit(new Runnable() {
+				public void run() {
+					task.run(lo, hi);
+				}
+			}));
+		}
+
+		// do the first chunk here, then wait on the rest
+		task.run(0, Math.min(n, size));
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.nderr.jconstellate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Input stage between an orientation sensor and a renderer. Sensors offer
+ * elevation, azimuth and spin samples at whatever rate they like; samples
+ * are folded into one pending pose (the latest, or an exponentially
+ * smoothed one) and the render thread takes at most one pose per frame, so
+ * nothing queues up behind a slow frame and no CoordTrans is made per
+ * sample. Offering never blocks; the renderer may wait for input.
+ *
+ * The place (latitude, longitude and zoom) comes from a CoordTrans and
+ * changes rarely. One thread may take poses; any number may offer them.
+ * Poses are taken as screen matrices, which Sky.lookAt and SkyView.look
+ * accept directly.
+ * Input-to-photon latency is measured from when samples arrive to when
+ * the renderer reports the frame using them as presented.
+ */
+public class PoseStream {
+
+	private static final double TWO_PI = 2 * Math.PI;
+
+	private final Object lock = new Object();
+	private final double smoothing; // filter time constant in nanoseconds, 0 for none
+
+	// pending pose, guarded by lock
+	private CoordTrans place; // latitude, longitude and zoom
+	private double el, az, spin; // filtered
+	private boolean started = false; // whether any sample has been seen
+	private boolean pending = false; // whether a pose is waiting to be taken
+	private long oldest; // nanoTime of the first sample not yet taken
+	private long newest; // nanoTime of the last sample
+	private long samples = 0;
+	private long coalesced = 0; // samples folded into a pose already pending
+
+	// last pose taken, read by the render thread only
+	private CoordTrans taken;
+	private double takenEl, takenAz, takenSpin;
+	private long takenOldest, takenNewest;
+	private boolean presented = true;
+	private long frames = 0;
+
+	// latency from the oldest and newest sample in each frame to it showing
+	private final LatencyStats oldestLatency = new LatencyStats();
+	private final LatencyStats newestLatency = new LatencyStats();
+
+	/**
+	 * Makes a stream at the place (lat, lon and zoom of ct) with no
+	 * smoothing, whose first pose is the orientation of ct
+	 */
+	public PoseStream(CoordTrans ct) {
+		this(ct, 0);
+	}
+
+	/**
+	 * Makes a stream at the place of ct whose samples are smoothed with an
+	 * exponential filter of the given time constant in seconds (0 to take
+	 * the latest sample as is)
+	 */
+	public PoseStream(CoordTrans ct, double smoothingSecs) {
+		if (smoothingSecs < 0)
+			throw new IllegalArgumentException("negative smoothing " + smoothingSecs);
+		this.smoothing = smoothingSecs * 1e9;
+		this.place = ct;
+		this.taken = ct;
+		offer(ct.getEl(), ct.getAz(), ct.getSpin());
+	}
+
+	/**
+	 * Offers a sensor sample received now
+	 * @return false if it was folded into a pose that was already pending
+	 */
+	public boolean offer(double el, double az, double spin) {
+		return offer(el, az, spin, System.nanoTime());
+	}
+
+	/**
+	 * Offers a sensor sample received at the given System.nanoTime
+	 * @return false if it was folded into a pose that was already pending
+	 */
+	public boolean offer(double el, double az, double spin, long nanos) {
+		synchronized (lock) {
+
+			// filter toward the sample, weighted by time since the last one,
+			// turning the short way round
+			if (!started || smoothing == 0) {
+				this.el = el;
+				this.az = az;
+				this.spin = spin;
+				started = true;
+			} else {
+				double alpha = 1 - Math.exp(-Math.max(0, nanos - newest) / smoothing);
+				this.el += alpha * (el - this.el);
+				this.az = wrap(this.az + alpha * wrap(az - this.az));
+				this.spin = wrap(this.spin + alpha * wrap(spin - this.spin));
+			}
+			newest = nanos;
+			samples++;
+
+			// wake a waiting renderer for the first sample of a frame
+			boolean fresh = !pending;
+			if (fresh) {
+				oldest = nanos;
+				pending = true;
+				lock.notifyAll();
+			} else {
+				coalesced++;
+			}
+			return fresh;
+		}
+	}
+
+	/**
+	 * Moves the stream to the place and zoom of ct, keeping the orientation
+	 */
+	public void setPlace(CoordTrans ct) {
+		synchronized (lock) {
+			place = ct;
+			if (!pending) {
+				oldest = newest = System.nanoTime();
+				pending = true;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Angle reduced to (-pi, pi]
+	 */
+	private static double wrap(double a) {
+		a %= TWO_PI;
+		if (a > Math.PI)
+			a -= TWO_PI;
+		else if (a <= -Math.PI)
+			a += TWO_PI;
+		return a;
+	}
+
+	/**
+	 * Waits up to the given time for a pose to be pending
+	 * @return whether one is
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (lock) {
+			long left;
+			while (!pending && (left = deadline - System.nanoTime()) > 0)
+				TimeUnit.NANOSECONDS.timedWait(lock, left);
+			return pending;
+		}
+	}
+
+	/**
+	 * Takes the pending pose for a frame at the given time, writing its
+	 * screen rotation into m (as CoordTrans.getMatrix). Call once per
+	 * frame from the render thread, and presented() once it shows.
+	 * @return false, leaving m alone, if nothing was offered since the
+	 * last pose was taken
+	 */
+	public boolean poll(long time, double[] m) {
+		CoordTrans at;
+		synchronized (lock) {
+			if (!pending)
+				return false;
+			pending = false;
+			takenEl = el;
+			takenAz = az;
+			takenSpin = spin;
+			takenOldest = oldest;
+			takenNewest = newest;
+			at = place;
+		}
+		taken = at;
+		presented = false;
+		frames++;
+		getMatrix(time, m);
+		return true;
+	}
+
+	/**
+	 * Writes the screen rotation of the last pose taken, at the given time,
+	 * into m, as for redrawing it while the sky turns. Render thread only.
+	 */
+	public void getMatrix(long time, double[] m) {
+		CoordTrans.getMatrix(takenEl, takenAz, takenSpin, taken.getLat(), taken.lmst(time),
+				taken.getAngDiam(), m);
+	}
+
+	/**
+	 * Records that the frame of the last pose taken is now showing
+	 */
+	public void presented() {
+		presented(System.nanoTime());
+	}
+
+	/**
+	 * Records that the frame of the last pose taken showed at the given
+	 * System.nanoTime. Later calls for the same pose are ignored.
+	 */
+	public void presented(long nanos) {
+		if (presented)
+			return;
+		presented = true;
+		oldestLatency.record(nanos - takenOldest);
+		newestLatency.record(nanos - takenNewest);
+	}
+
+	/**
+	 * Gets the angular diameter of the last pose taken
+	 */
+	public double getAngDiam() {
+		return taken.getAngDiam();
+	}
+
+	/**
+	 * Gets the last pose taken as a CoordTrans, for code that needs one
+	 * (such as Sky.lookAt(CoordTrans)). Makes a new object; the matrix from
+	 * poll does not.
+	 */
+	public CoordTrans getPose() {
+		return new CoordTrans(taken.getLat(), taken.getLon(), takenEl, takenAz, takenSpin,
+				taken.getAngDiam());
+	}
+
+	/**
+	 * Gets number of samples offered
+	 */
+	public long getSamples() {
+		synchronized (lock) {
+			return samples;
+		}
+	}
+
+	/**
+	 * Gets number of samples folded into a pose that was already pending
+	 */
+	public long getCoalesced() {
+		synchronized (lock) {
+			return coalesced;
+		}
+	}
+
+	/**
+	 * Gets number of poses taken
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Gets latency from the first sample folded into each frame to it
+	 * showing, the worst any input waited
+	 */
+	public LatencyStats getOldestLatency() {
+		return oldestLatency;
+	}
+
+	/**
+	 * Gets latency from the last sample in each frame to it showing
+	 */
+	public LatencyStats getNewestLatency() {
+		return newestLatency;
+	}
+
+	/**
+	 * driver method for testing: a sensor thread offers samples at a high
+	 * rate while this thread renders frames from the stream, then the same
+	 * samples are rendered one at a time through Sky.lookAt
+	 * Usage: PoseStream [sensor Hz] [fps] [seconds] [stars]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		final int hz = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int fps = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		final double secs = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+		int n = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+
+		// a synthetic sky with figures
+		SyntheticCatalog cat = new SyntheticCatalog(n, 1);
+		List<Star> stars = cat.stars();
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		Sky sky = new Sky(stars, cat.constellations(bright, 1000), 6.5);
+		sky.addViewConst();
+		sky.setPlot(1280, 720);
+		SkySnapshot snap = sky.getSnapshot();
+
+		// check the filter turns the short way across north
+		double rad = Math.PI / 180;
+		CoordTrans place = new CoordTrans(43*rad, -89*rad, 30*rad, 350*rad, 0, 60*rad);
+		PoseStream check = new PoseStream(place, 0.05);
+		long at = System.nanoTime();
+		check.offer(30*rad, 350*rad, 0, at);
+		check.offer(30*rad, 10*rad, 0, at + 50000000L);
+		double az = wrap(check.az) / rad;
+		System.out.println(String.format("smoothed 350 -> 10 deg after one time constant: %.2f deg",
+				az));
+		if (Math.abs(az - (-10 + 20 * (1 - Math.exp(-1)))) > 1e-6) {
+			System.out.println("filter turned the wrong way");
+			System.exit(1);
+		}
+
+		// sensor: a slow pan with jitter, offered at hz until stopped
+		final PoseStream stream = new PoseStream(place, 0.02);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final int count = (int) (hz * secs);
+		final double[][] sent = new double[count][];
+		Thread sensor = new Thread(new Runnable() {
+			public void run() {
+				long period = TimeUnit.SECONDS.toNanos(1) / hz;
+				long next = System.nanoTime();
+				java.util.Random rand = new java.util.Random(2);
+				for (int i = 0; i < count && running.get(); i++) {
+					double t = (double) i / hz;
+					double el = (30 + 10 * Math.sin(t)) * Math.PI / 180
+							+ 0.002 * rand.nextGaussian();
+					double az = (20 * t) * Math.PI / 180 + 0.002 * rand.nextGaussian();
+					sent[i] = new double[] { el, az, 0 };
+					stream.offer(el, az, 0);
+					next += period;
+					long now;
+					while ((now = System.nanoTime()) < next)
+						java.util.concurrent.locks.LockSupport.parkNanos(next - now);
+				}
+			}
+		}, "sensor");
+		sensor.start();
+
+		// renderer: one pose per frame, waiting for input when idle
+		SkyView view = new SkyView();
+		view.setScreen(1280, 720);
+		double[] m = new double[9];
+		long period = TimeUnit.SECONDS.toNanos(1) / fps;
+		long start = System.nanoTime();
+		long busy = 0;
+		while (sensor.isAlive()) {
+			if (!stream.await(period, TimeUnit.NANOSECONDS))
+				continue;
+			long t0 = System.nanoTime();
+			stream.poll(System.currentTimeMillis(), m);
+			view.look(snap, m, stream.getAngDiam(), null);
+			stream.presented();
+			long t1 = System.nanoTime();
+			busy += t1 - t0;
+
+			// hold the frame until its slot ends
+			long next = start + ((t1 - start) / period + 1) * period;
+			while ((t1 = System.nanoTime()) < next)
+				java.util.concurrent.locks.LockSupport.parkNanos(next - t1);
+		}
+		double wall = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("stream: %d samples, %d coalesced, %d frames in %.2f s, "
+				+ "render busy %.1f%%", stream.getSamples(), stream.getCoalesced(),
+				stream.getFrames(), wall, 100 * busy / 1e9 / wall));
+		System.out.println("  input to photon (oldest sample): " + stream.getOldestLatency());
+		System.out.println("  input to photon (newest sample): " + stream.getNewestLatency());
+
+		// the same samples one at a time, as a new CoordTrans and lookAt each
+		long t0 = System.nanoTime();
+		int done = 0;
+		for (double[] s : sent) {
+			if (s == null)
+				break;
+			sky.lookAt(new CoordTrans(place.getLat(), place.getLon(), s[0], s[1], s[2],
+					place.getAngDiam()));
+			done++;
+		}
+		double each = (System.nanoTime() - t0) / 1e9;
+		System.out.println(String.format("per sample: %d lookAt in %.2f s, %.1f%% of a core "
+				+ "at %d Hz", done, each, 100 * each / (done / (double) hz), hz));
+	}
+}
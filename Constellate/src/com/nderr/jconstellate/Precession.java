@@ -0,0 +1,118 @@
+package com.nderr.jconstellate;
+
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+
+/**
+ * Rotations taking J2000 mean equatorial coordinates to true equatorial
+ * coordinates of a given date (IAU 1976 precession with low precision
+ * nutation)
+ */
+public class Precession {
+
+	// unit conversions
+	public static final double ARCSEC = Math.PI / (180 * 3600);
+	public static final double DEG = Math.PI / 180;
+	public static final double DAYS_PER_CENTURY = 36525.0;
+	public static final double DAYS_PER_YEAR = 365.25;
+
+	// matrix size
+	public static final int SIZE = 9;
+
+	/**
+	 * @param time UTC time (milliseconds since UTC epoch)
+	 * @return julian centuries since J2000
+	 */
+	public static double centuries(long time) {
+		return (time - CoordTrans.J2000) / CoordTrans.MS_PER_DAY / DAYS_PER_CENTURY;
+	}
+
+	/**
+	 * @param time UTC time (milliseconds since UTC epoch)
+	 * @return julian years since J2000
+	 */
+	public static double years(long time) {
+		return (time - CoordTrans.J2000) / CoordTrans.MS_PER_DAY / DAYS_PER_YEAR;
+	}
+
+	/**
+	 * Gets the precession matrix (row major) from J2000 to mean equator and
+	 * equinox of provided time
+	 */
+	public static double[] precession(long time) {
+
+		// precession angles
+		double t = centuries(time);
+		double zeta = (2306.2181*t + 0.30188*t*t + 0.017998*t*t*t) * ARCSEC;
+		double z = (2306.2181*t + 1.09468*t*t + 0.018203*t*t*t) * ARCSEC;
+		double theta = (2004.3109*t - 0.42665*t*t - 0.041833*t*t*t) * ARCSEC;
+
+		// trig functions
+		double czeta = cos(zeta);
+		double cz = cos(z);
+		double ctheta = cos(theta);
+		double szeta = sin(zeta);
+		double sz = sin(z);
+		double stheta = sin(theta);
+
+		return new double[] {
+			czeta*cz*ctheta - szeta*sz, -szeta*cz*ctheta - czeta*sz, -cz*stheta,
+			czeta*sz*ctheta + szeta*cz, -szeta*sz*ctheta + czeta*cz, -sz*stheta,
+			czeta*stheta, -szeta*stheta, ctheta
+		};
+	}
+
+	/**
+	 * Gets the nutation matrix (row major) from mean to true equator and
+	 * equinox of provided time, to first order in the nutation angles
+	 */
+	public static double[] nutation(long time) {
+
+		// fundamental arguments
+		double t = centuries(time);
+		double node = (125.04452 - 1934.136261*t) * DEG; // moon's ascending node
+		double lsun = (280.4665 + 36000.7698*t) * DEG; // sun's mean longitude
+		double lmoon = (218.3165 + 481267.8813*t) * DEG; // moon's mean longitude
+
+		// nutation in longitude and obliquity
+		double dpsi = (-17.20*sin(node) - 1.32*sin(2*lsun)
+				- 0.23*sin(2*lmoon) + 0.21*sin(2*node)) * ARCSEC;
+		double deps = (9.20*cos(node) + 0.57*cos(2*lsun)
+				+ 0.10*cos(2*lmoon) - 0.09*cos(2*node)) * ARCSEC;
+
+		// mean obliquity of the ecliptic
+		double eps = (84381.448 - 46.8150*t - 0.00059*t*t + 0.001813*t*t*t) * ARCSEC;
+		double ceps = cos(eps);
+		double seps = sin(eps);
+
+		return new double[] {
+			1, -dpsi*ceps, -dpsi*seps,
+			dpsi*ceps, 1, -deps,
+			dpsi*seps, deps, 1
+		};
+	}
+
+	/**
+	 * Gets the full rotation (row major) from J2000 mean coordinates to true
+	 * coordinates of provided time
+	 */
+	public static double[] matrix(long time) {
+		return multiply(nutation(time), precession(time));
+	}
+
+	/**
+	 * Multiplies two row major 3 x 3 matrices
+	 */
+	public static double[] multiply(double[] a, double[] b) {
+		double[] c = new double[SIZE];
+		for (int i = 0; i < Vector.DIM; i++) {
+			for (int j = 0; j < Vector.DIM; j++) {
+				double sum = 0;
+				for (int k = 0; k < Vector.DIM; k++)
+					sum += a[Vector.DIM*i + k] * b[Vector.DIM*k + j];
+				c[Vector.DIM*i + j] = sum;
+			}
+		}
+		return c;
+	}
+}
@@ -0,0 +1,350 @@
+package com.nderr.jconstellate;
+
+import java.util.Random;
+
+/**
+ * Azimuthal map of the sky around a line of sight onto the screen plane. A
+ * direction theta from the line of sight lands at radius rho(theta) * 2 /
+ * angDiam in normalized screen coordinates, where rho(theta) ~ theta near
+ * the center, so angDiam keeps its meaning for narrow views whatever the
+ * projection. Radius 1 is the screen's corners (see Star.getX/getY).
+ *
+ * Each projection has its own batch kernel, which writes into the caller's
+ * arrays and allocates nothing, and an exact culling bound: the angle from
+ * the line of sight beyond which a direction is off screen.
+ */
+public abstract class Projection {
+
+	// points closer than this (in cosine) to a projection's singular
+	// direction are pushed back to it, landing far off screen
+	private static final double EDGE = 1e-6;
+
+	public static final int MAX_PLANES = 5; // written by frustum
+
+	/**
+	 * rho = sin(theta): the sky as seen from far away; front hemisphere only
+	 */
+	public static final Projection ORTHOGRAPHIC = new Projection("orthographic", Math.PI / 2) {
+		public double reach(double angDiam) {
+			return angDiam >= 2 ? Math.PI / 2 : Math.asin(angDiam / 2);
+		}
+
+		public int frustum(double[] m, int w, int h, double[] planes) {
+
+			// |row . v| within the half sides, in front
+			double ax = halfWidth(w, h), ay = halfWidth(h, w);
+			plane(planes, 0, m[0], m[1], m[2], ax);
+			plane(planes, 1, -m[0], -m[1], -m[2], ax);
+			plane(planes, 2, m[3], m[4], m[5], ay);
+			plane(planes, 3, -m[3], -m[4], -m[5], ay);
+			plane(planes, 4, -m[6], -m[7], -m[8], 0);
+			return 5;
+		}
+
+		public void project(double[] m, double[] xyz, int n, float[] x, float[] y) {
+			for (int i = 0, j = 0; i < n; i++, j += Vector.DIM) {
+				double vx = xyz[j], vy = xyz[j + 1], vz = xyz[j + 2];
+				x[i] = (float) (m[0]*vx + m[1]*vy + m[2]*vz);
+				y[i] = (float) (m[3]*vx + m[4]*vy + m[5]*vz);
+			}
+		}
+	};
+
+	/**
+	 * rho = tan(theta): great circles are straight lines; needs a view
+	 * narrower than a hemisphere
+	 */
+	public static final Projection GNOMONIC = new Projection("gnomonic", Math.PI / 2) {
+		public double reach(double angDiam) {
+			return Math.atan(angDiam / 2);
+		}
+
+		public int frustum(double[] m, int w, int h, double[] planes) {
+
+			// row . v within the half sides times the line of sight
+			// component: planes through the eye
+			double ax = halfWidth(w, h), ay = halfWidth(h, w);
+			plane(planes, 0, m[0] - ax*m[6], m[1] - ax*m[7], m[2] - ax*m[8], 0);
+			plane(planes, 1, -m[0] - ax*m[6], -m[1] - ax*m[7], -m[2] - ax*m[8], 0);
+			plane(planes, 2, m[3] - ay*m[6], m[4] - ay*m[7], m[5] - ay*m[8], 0);
+			plane(planes, 3, -m[3] - ay*m[6], -m[4] - ay*m[7], -m[5] - ay*m[8], 0);
+			return 4;
+		}
+
+		public void project(double[] m, double[] xyz, int n, float[] x, float[] y) {
+			for (int i = 0, j = 0; i < n; i++, j += Vector.DIM) {
+				double vx = xyz[j], vy = xyz[j + 1], vz = xyz[j + 2];
+				double g = 1 / Math.max(EDGE, m[6]*vx + m[7]*vy + m[8]*vz);
+				x[i] = (float) (g * (m[0]*vx + m[1]*vy + m[2]*vz));
+				y[i] = (float) (g * (m[3]*vx + m[4]*vy + m[5]*vz));
+			}
+		}
+	};
+
+	/**
+	 * rho = 2 tan(theta/2): conformal, so figures keep their shapes out to
+	 * the edge of wide views
+	 */
+	public static final Projection STEREOGRAPHIC = new Projection("stereographic", Math.PI) {
+		public double reach(double angDiam) {
+			return 2 * Math.atan(angDiam / 4);
+		}
+
+		public int frustum(double[] m, int w, int h, double[] planes) {
+
+			// circles map to lines, so each screen edge is a circle on the
+			// sky: 2 row . v within the half side times (1 + cos(theta))
+			double ax = halfWidth(w, h), ay = halfWidth(h, w);
+			plane(planes, 0, 2*m[0] - ax*m[6], 2*m[1] - ax*m[7], 2*m[2] - ax*m[8], ax);
+			plane(planes, 1, -2*m[0] - ax*m[6], -2*m[1] - ax*m[7], -2*m[2] - ax*m[8], ax);
+			plane(planes, 2, 2*m[3] - ay*m[6], 2*m[4] - ay*m[7], 2*m[5] - ay*m[8], ay);
+			plane(planes, 3, -2*m[3] - ay*m[6], -2*m[4] - ay*m[7], -2*m[5] - ay*m[8], ay);
+			return 4;
+		}
+
+		public void project(double[] m, double[] xyz, int n, float[] x, float[] y) {
+			for (int i = 0, j = 0; i < n; i++, j += Vector.DIM) {
+				double vx = xyz[j], vy = xyz[j + 1], vz = xyz[j + 2];
+				double g = 2 / Math.max(EDGE, 1 + m[6]*vx + m[7]*vy + m[8]*vz);
+				x[i] = (float) (g * (m[0]*vx + m[1]*vy + m[2]*vz));
+				y[i] = (float) (g * (m[3]*vx + m[4]*vy + m[5]*vz));
+			}
+		}
+	};
+
+	/**
+	 * rho = 2 sin(theta/2): Lambert azimuthal, which keeps areas, so star
+	 * densities compare fairly across the view
+	 */
+	public static final Projection EQUAL_AREA = new Projection("equal-area", Math.PI) {
+		public double reach(double angDiam) {
+			return angDiam >= 4 ? Math.PI : 2 * Math.asin(angDiam / 4);
+		}
+
+		public void project(double[] m, double[] xyz, int n, float[] x, float[] y) {
+			for (int i = 0, j = 0; i < n; i++, j += Vector.DIM) {
+				double vx = xyz[j], vy = xyz[j + 1], vz = xyz[j + 2];
+				double g = Math.sqrt(2 / Math.max(EDGE, 1 + m[6]*vx + m[7]*vy + m[8]*vz));
+				x[i] = (float) (g * (m[0]*vx + m[1]*vy + m[2]*vz));
+				y[i] = (float) (g * (m[3]*vx + m[4]*vy + m[5]*vz));
+			}
+		}
+	};
+
+	/**
+	 * rho = theta: equidistant fisheye, as on a planetarium dome; angDiam
+	 * of PI is a hemisphere and 2 PI the whole sky
+	 */
+	public static final Projection FISHEYE = new Projection("fisheye", Math.PI) {
+		public double reach(double angDiam) {
+			return Math.min(Math.PI, angDiam / 2);
+		}
+
+		public void project(double[] m, double[] xyz, int n, float[] x, float[] y) {
+
+			// sin(theta) from the screen rows, which keeps it exact near
+			// the center where 1 - cos(theta)^2 cancels; theta from the
+			// tangent of theta/4, which is within [0,1] and needs no
+			// reduction in front of the viewer
+			double s = 1 / Math.sqrt(m[0]*m[0] + m[1]*m[1] + m[2]*m[2]);
+			for (int i = 0, j = 0; i < n; i++, j += Vector.DIM) {
+				double vx = xyz[j], vy = xyz[j + 1], vz = xyz[j + 2];
+				double a = m[0]*vx + m[1]*vy + m[2]*vz;
+				double b = m[3]*vx + m[4]*vy + m[5]*vz;
+				double sin = s * Math.sqrt(a*a + b*b);
+				double half = sin / Math.max(EDGE, 1 + m[6]*vx + m[7]*vy + m[8]*vz);
+				double theta = 4 * atan(half / (1 + Math.sqrt(1 + half*half)));
+				double g = sin < EDGE ? 1 : theta / sin;
+				x[i] = (float) (g * a);
+				y[i] = (float) (g * b);
+			}
+		}
+	};
+
+	/**
+	 * Arctangent of u in [0,1] to within 1e-9, several times faster than
+	 * Math.atan: reduced to u <= tan(PI/8), then its series to u^19
+	 */
+	static double atan(double u) {
+		double base = 0;
+		if (u > 0.41421356237309503) {
+			u = (u - 1) / (u + 1);
+			base = Math.PI / 4;
+		}
+		double u2 = u * u;
+		double p = -1.0/19;
+		p = p*u2 + 1.0/17;
+		p = p*u2 - 1.0/15;
+		p = p*u2 + 1.0/13;
+		p = p*u2 - 1.0/11;
+		p = p*u2 + 1.0/9;
+		p = p*u2 - 1.0/7;
+		p = p*u2 + 1.0/5;
+		p = p*u2 - 1.0/3;
+		p = p*u2 + 1;
+		return base + u * p;
+	}
+
+	private static final Projection[] ALL = { ORTHOGRAPHIC, GNOMONIC, STEREOGRAPHIC,
+			EQUAL_AREA, FISHEYE };
+
+	private final String name;
+	private final double domain; // angle from line of sight it can show
+
+	private Projection(String name, double domain) {
+		this.name = name;
+		this.domain = domain;
+	}
+
+	/**
+	 * Gets the angle from the line of sight of the screen's corners (radius
+	 * 1) in a view of the given angular diameter, never more than getDomain()
+	 */
+	public abstract double reach(double angDiam);
+
+	/**
+	 * Projects n unit vectors packed [x,y,z,...] in xyz to normalized screen
+	 * coordinates in x and y, with screen matrix m as from
+	 * CoordTrans.getMatrix. Vectors past getDomain() land far off screen.
+	 */
+	public abstract void project(double[] m, double[] xyz, int n, float[] x, float[] y);
+
+	/**
+	 * Writes into planes, as [nx,ny,nz,d,...] with n a unit vector, the
+	 * planes n . v <= d whose intersection on the unit sphere is exactly
+	 * what lands on a w x h screen, for screen matrix m. Projections whose
+	 * screen edges aren't circles on the sky write none.
+	 * @param planes room for MAX_PLANES planes
+	 * @return number of planes written
+	 */
+	public int frustum(double[] m, int w, int h, double[] planes) {
+		return 0;
+	}
+
+	/**
+	 * Gets half the screen side along w in normalized coordinates, where
+	 * radius 1 is the corners
+	 */
+	public static double halfWidth(int w, int h) {
+		return w / Math.sqrt((double) w*w + (double) h*h);
+	}
+
+	/**
+	 * Returns whether normalized coordinates land on a w x h screen
+	 */
+	public static boolean onScreen(double x, double y, int w, int h) {
+		double d = Math.sqrt((double) w*w + (double) h*h);
+		return Math.abs(x) * d <= w && Math.abs(y) * d <= h;
+	}
+
+	/**
+	 * Writes the k-th plane, normalized
+	 */
+	private static void plane(double[] planes, int k, double nx, double ny, double nz, double d) {
+		double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		planes[4*k] = nx / len;
+		planes[4*k + 1] = ny / len;
+		planes[4*k + 2] = nz / len;
+		planes[4*k + 3] = d / len;
+	}
+
+	/**
+	 * Gets the largest angle from the line of sight the projection can show
+	 */
+	public double getDomain() {
+		return domain;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Gets the projection of the given name, ignoring case
+	 * @throws IllegalArgumentException if there's none
+	 */
+	public static Projection forName(String name) {
+		for (Projection p : ALL) {
+			if (p.name.equalsIgnoreCase(name))
+				return p;
+		}
+		throw new IllegalArgumentException("unknown projection " + name);
+	}
+
+	/**
+	 * Gets every projection
+	 */
+	public static Projection[] values() {
+		return ALL.clone();
+	}
+
+	/**
+	 * driver method for testing: checks each kernel against its radial
+	 * formula, then times the kernels on a full sky of directions
+	 */
+	public static void main(String[] args) {
+
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		double angDiam = 2.0;
+		double[] m = new CoordTrans(0.7, -1.5, 0.8, 2.0, 0.3, angDiam).getMatrix(0);
+
+		// random directions
+		Random rand = new Random(1);
+		double[] xyz = new double[Vector.DIM * n];
+		for (int i = 0; i < n; i++) {
+			double z = 2 * rand.nextDouble() - 1;
+			double phi = 2 * Math.PI * rand.nextDouble();
+			double r = Math.sqrt(1 - z*z);
+			xyz[3*i] = r * Math.cos(phi);
+			xyz[3*i + 1] = r * Math.sin(phi);
+			xyz[3*i + 2] = z;
+		}
+		float[] x = new float[n], y = new float[n];
+
+		// fast arctangent
+		double atanErr = 0;
+		for (int i = 0; i <= 100000; i++)
+			atanErr = Math.max(atanErr, Math.abs(atan(i / 100000.0) - Math.atan(i / 100000.0)));
+		System.out.println(String.format("atan max error %.1e", atanErr));
+
+		for (Projection p : ALL) {
+
+			// radius against rho(theta), and the culling bound
+			p.project(m, xyz, n, x, y);
+			double reach = p.reach(angDiam);
+			double err = 0;
+			int inside = 0, missed = 0;
+			for (int i = 0; i < n; i++) {
+				double cz = m[6]*xyz[3*i] + m[7]*xyz[3*i + 1] + m[8]*xyz[3*i + 2];
+				double theta = Math.acos(Math.max(-1, Math.min(1, cz)));
+				if (theta > p.domain - 1e-3)
+					continue;
+				double rho = p == ORTHOGRAPHIC ? Math.sin(theta) : p == GNOMONIC ? Math.tan(theta)
+						: p == STEREOGRAPHIC ? 2 * Math.tan(theta / 2)
+						: p == EQUAL_AREA ? 2 * Math.sin(theta / 2) : theta;
+				double r = Math.sqrt((double) x[i]*x[i] + (double) y[i]*y[i]);
+				err = Math.max(err, Math.abs(r - rho * 2 / angDiam) / Math.max(1, r));
+				if (r <= 1) {
+					inside++;
+					if (theta > reach + 1e-6)
+						missed++;
+				}
+			}
+
+			// speed
+			long t0 = System.nanoTime();
+			int reps = 10;
+			for (int k = 0; k < reps; k++)
+				p.project(m, xyz, n, x, y);
+			long t1 = System.nanoTime();
+			System.out.println(String.format("%-14s reach %6.2f deg, %7d on screen, "
+					+ "%d outside reach, max error %.1e, %.1f ns/point", p, Math.toDegrees(reach),
+					inside, missed, err, (t1 - t0) / (double) reps / n));
+		}
+	}
+}
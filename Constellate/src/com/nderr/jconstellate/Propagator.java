@@ -0,0 +1,178 @@
+package com.nderr.jconstellate;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Moves a whole catalog from its J2000 positions to apparent positions at
+ * another epoch (proper motion, then precession and nutation) in one batch,
+ * keeping the most recently used epochs cached
+ */
+public class Propagator {
+
+	public static final int DEFAULT_CACHE = 8; // epochs kept
+	public static final long DEFAULT_RESOLUTION = 86400000L; // one day
+
+	private final Star[] stars; // catalog, in packed order
+	private final double[] pos; // J2000 unit vectors, packed x,y,z
+	private final double[] vel; // proper motion per julian year, packed x,y,z
+	private final long resolution; // epochs closer than this share a result
+	private final Map<Long,double[]> cache; // bucket -> packed unit vectors
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Makes a propagator over the given stars with default cache settings
+	 */
+	public Propagator(Collection<Star> stars) {
+		this(stars, DEFAULT_CACHE, DEFAULT_RESOLUTION);
+	}
+
+	/**
+	 * Makes a propagator over the given stars, caching up to the given number
+	 * of epochs, each spanning resolution milliseconds
+	 */
+	public Propagator(Collection<Star> stars, final int capacity, long resolution) {
+
+		this.stars = stars.toArray(new Star[stars.size()]);
+		this.resolution = resolution;
+		pos = new double[Vector.DIM * this.stars.length];
+		vel = new double[Vector.DIM * this.stars.length];
+
+		// least recently used epoch goes first
+		cache = new LinkedHashMap<Long,double[]>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,double[]> eldest) {
+				return size() > capacity;
+			}
+		};
+
+		// position and tangent velocity at J2000
+		for (int i = 0; i < this.stars.length; i++) {
+			Star st = this.stars[i];
+			double cra = Math.cos(st.getRA());
+			double sra = Math.sin(st.getRA());
+			double cdec = Math.cos(st.getDec());
+			double sdec = Math.sin(st.getDec());
+			double pmra = st.getPMRA(); // already scaled by cos(dec)
+			double pmdec = st.getPMDec();
+			int j = Vector.DIM * i;
+			pos[j + Vector.X] = cdec * cra;
+			pos[j + Vector.Y] = cdec * sra;
+			pos[j + Vector.Z] = sdec;
+			vel[j + Vector.X] = -pmra * sra - pmdec * sdec * cra;
+			vel[j + Vector.Y] = pmra * cra - pmdec * sdec * sra;
+			vel[j + Vector.Z] = pmdec * cdec;
+		}
+	}
+
+	/**
+	 * Gets the packed (x,y,z per star) unit vectors of the catalog at the
+	 * provided UTC time, computing them if not cached. Do not modify.
+	 */
+	public double[] propagate(long time) {
+
+		// check cache
+		Long bucket = Long.valueOf(Math.round((double) time / resolution));
+		synchronized (cache) {
+			double[] hit = cache.get(bucket);
+			if (hit != null) {
+				hits++;
+				return hit;
+			}
+			misses++;
+		}
+
+		// compute outside the lock, at the middle of the bucket
+		double[] result = compute(bucket.longValue() * resolution);
+		synchronized (cache) {
+			cache.put(bucket, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes packed unit vectors at the given time
+	 */
+	private double[] compute(long time) {
+
+		final double[] m = Precession.matrix(time);
+		final double t = Precession.years(time);
+		final double[] out = new double[pos.length];
+
+		Parallel.forRange(stars.length, new Parallel.Task() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					int j = Vector.DIM * i;
+
+					// linear proper motion, back onto the sphere
+					double x = pos[j + Vector.X] + t * vel[j + Vector.X];
+					double y = pos[j + Vector.Y] + t * vel[j + Vector.Y];
+					double z = pos[j + Vector.Z] + t * vel[j + Vector.Z];
+					double norm = 1 / Math.sqrt(x*x + y*y + z*z);
+					x *= norm;
+					y *= norm;
+					z *= norm;
+
+					// rotate to true equator and equinox of date
+					out[j + Vector.X] = m[0]*x + m[1]*y + m[2]*z;
+					out[j + Vector.Y] = m[3]*x + m[4]*y + m[5]*z;
+					out[j + Vector.Z] = m[6]*x + m[7]*y + m[8]*z;
+				}
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Gets the stars in packed order
+	 */
+	public Star[] getStars() {
+		return stars;
+	}
+
+	/**
+	 * Gets number of cache hits so far
+	 */
+	public long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Gets number of cache misses so far
+	 */
+	public long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Empties the epoch cache
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Gets estimated retained bytes, not counting the stars themselves
+	 */
+	public long footprint() {
+		long bytes = Footprint.shallow(Propagator.class)
+				+ Footprint.array(stars.length, Footprint.REF)
+				+ Footprint.array(pos.length, 8) + Footprint.array(vel.length, 8);
+		synchronized (cache) {
+			bytes += Footprint.hashMap(cache.size())
+					+ cache.size() * (2L * Footprint.REF + Footprint.BOXED);
+			for (double[] p : cache.values())
+				bytes += Footprint.array(p.length, 8);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,235 @@
+package com.nderr.jconstellate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rise, transit and set times of every star in a catalog, for a location
+ * over a range of days. Declinations and right ascensions are packed into
+ * arrays once, days are computed for all stars at a time in parallel, and
+ * each (location, day) result is cached.
+ */
+public class RiseSet {
+
+	// star altitude at rising and setting, allowing for refraction
+	public static final double STANDARD_ALT = -0.5667 * Math.PI / 180;
+
+	// sidereal radians per millisecond of UTC
+	public static final double SIDEREAL_RATE = 2 * Math.PI * 1.00273790935 / CoordTrans.MS_PER_DAY;
+
+	public static final int DEFAULT_CACHE = 366; // days kept
+	public static final long NONE = Long.MIN_VALUE; // no rise or set
+
+	// flags
+	public static final byte RISES = 0;
+	public static final byte CIRCUMPOLAR = 1;
+	public static final byte NEVER_RISES = 2;
+
+	private final Star[] stars; // catalog, in packed order
+	private final double[] ra; // right ascension of each star
+	private final double[] sinDec; // sine of declination of each star
+	private final double[] cosDec; // cosine of declination of each star
+	private final double alt; // altitude counted as rising
+	private final Map<String,Day> cache; // "lat:lon:day" -> results
+
+	/**
+	 * Rise, transit and set times of every star for one day at one location.
+	 * Entries are in the order of getStars(); times are UTC milliseconds.
+	 */
+	public static class Day {
+
+		private final long start; // UTC midnight starting the day
+		private final byte[] flag; // RISES, CIRCUMPOLAR or NEVER_RISES
+		private final long[] rise; // NONE unless star rises and sets
+		private final long[] transit; // first upper transit in the day
+		private final long[] set; // NONE unless star rises and sets
+
+		private Day(long start, int n) {
+			this.start = start;
+			flag = new byte[n];
+			rise = new long[n];
+			transit = new long[n];
+			set = new long[n];
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public byte getFlag(int i) {
+			return flag[i];
+		}
+
+		public long getRise(int i) {
+			return rise[i];
+		}
+
+		public long getTransit(int i) {
+			return transit[i];
+		}
+
+		public long getSet(int i) {
+			return set[i];
+		}
+	}
+
+	/**
+	 * Packs the stars of the snapshot at their current positions, using the
+	 * standard altitude for rising
+	 */
+	public RiseSet(SkySnapshot snap) {
+		this(snap, STANDARD_ALT, DEFAULT_CACHE);
+	}
+
+	/**
+	 * Packs the stars of the snapshot at their current positions, counting a
+	 * star as risen above the given altitude, and caching up to the given
+	 * number of location-days
+	 */
+	public RiseSet(SkySnapshot snap, double alt, final int capacity) {
+
+		this.alt = alt;
+		stars = snap.getByMag().toArray(new Star[0]);
+		ra = new double[stars.length];
+		sinDec = new double[stars.length];
+		cosDec = new double[stars.length];
+
+		// least recently used day goes first
+		cache = new LinkedHashMap<String,Day>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Day> eldest) {
+				return size() > capacity;
+			}
+		};
+
+		// from unit vectors, so a changed epoch is respected
+		for (int i = 0; i < stars.length; i++) {
+			Vector hat = stars[i].getHat();
+			double r = Math.atan2(hat.getY(), hat.getX());
+			ra[i] = r < 0 ? r + 2*Math.PI : r;
+			sinDec[i] = hat.getZ();
+			cosDec[i] = Math.sqrt(Math.max(0, 1 - hat.getZ()*hat.getZ()));
+		}
+	}
+
+	/**
+	 * Gets results for the UTC day containing the provided time
+	 * @param lat latitude in radians
+	 * @param lon longitude in radians
+	 */
+	public Day compute(double lat, double lon, long time) {
+		return compute(lat, lon, time, 1)[0];
+	}
+
+	/**
+	 * Gets results for the given number of UTC days, starting with the one
+	 * containing the provided time. Days not cached are computed together,
+	 * in parallel over stars and days.
+	 * @param lat latitude in radians
+	 * @param lon longitude in radians
+	 */
+	public Day[] compute(final double lat, final double lon, long time, int days) {
+
+		long first = (long) Math.floor(time / CoordTrans.MS_PER_DAY);
+		final Day[] out = new Day[days];
+
+		// collect cached days and start the rest
+		int missing = 0;
+		final Day[] todo = new Day[days];
+		synchronized (cache) {
+			for (int d = 0; d < days; d++) {
+				out[d] = cache.get(key(lat, lon, first + d));
+				if (out[d] == null) {
+					long day = (long) ((first + d) * CoordTrans.MS_PER_DAY);
+					todo[missing] = new Day(day, stars.length);
+					out[d] = todo[missing++];
+				}
+			}
+		}
+		if (missing == 0)
+			return out;
+
+		// sidereal time at the start of each day to compute
+		final CoordTrans ct = new CoordTrans(lat, lon, 0, 0, 0, 1);
+		final double[] lst0 = new double[missing];
+		for (int d = 0; d < missing; d++)
+			lst0[d] = ct.lmst(todo[d].start);
+
+		// hour angle at rising is the same every day
+		final double sinAlt = Math.sin(alt);
+		final double sinLat = Math.sin(lat);
+		final double cosLat = Math.cos(lat);
+		final int n = stars.length;
+
+		// as many days at a time as fit in an int range
+		int per = Math.max(1, Math.min(missing, Integer.MAX_VALUE / Math.max(1, n)));
+		for (int d0 = 0; d0 < missing; d0 += per) {
+			final int offset = d0;
+			Parallel.forRange(n * Math.min(per, missing - d0), new Parallel.Task() {
+				public void run(int from, int to) {
+					for (int k = from; k < to; k++) {
+						int d = offset + k / n;
+						int i = k % n;
+						Day day = todo[d];
+
+						// time of transit: hour angle lst - ra reaches zero
+						double h = ra[i] - lst0[d];
+						h -= 2*Math.PI * Math.floor(h / (2*Math.PI));
+						long transit = day.start + (long) (h / SIDEREAL_RATE);
+						day.transit[i] = transit;
+
+						// hour angle of rising and setting
+						double cosH = (sinAlt - sinLat*sinDec[i]) / (cosLat*cosDec[i]);
+						if (cosH <= -1) {
+							day.flag[i] = CIRCUMPOLAR;
+							day.rise[i] = NONE;
+							day.set[i] = NONE;
+						} else if (cosH >= 1) {
+							day.flag[i] = NEVER_RISES;
+							day.rise[i] = NONE;
+							day.set[i] = NONE;
+						} else {
+							long half = (long) (Math.acos(cosH) / SIDEREAL_RATE);
+							day.flag[i] = RISES;
+							day.rise[i] = transit - half;
+							day.set[i] = transit + half;
+						}
+					}
+				}
+			});
+		}
+
+		// remember them
+		synchronized (cache) {
+			for (int d = 0; d < missing; d++) {
+				long dayNum = (long) Math.floor(todo[d].start / CoordTrans.MS_PER_DAY);
+				cache.put(key(lat, lon, dayNum), todo[d]);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Cache key for a location and day number
+	 */
+	private static String key(double lat, double lon, long day) {
+		return lat + ":" + lon + ":" + day;
+	}
+
+	/**
+	 * Gets the stars, in the order results are given
+	 */
+	public Star[] getStars() {
+		return stars;
+	}
+
+	/**
+	 * Empties the cache
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+}
@@ -1,105 +1,218 @@
 package com.nderr.jconstellate;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.gson.Gson;
 
 /**
  * Collection of Stars and Constellations
+ *
+ * The catalog is held as an immutable snapshot. Updates (adding stars or
+ * constellations, changing the view set, magnitude or epoch) build a new
+ * snapshot sharing unchanged parts with the old one and publish it
+ * atomically, so a lookAt running on another thread finishes against the
+ * version it started with. Updates are serialized with each other; lookAt
+ * takes no locks.
  */
 public class Sky {
 	
 	public static final int DEFAULT_MAG = 5;
 
-	private List<Star> fov; // stars the screen could see. plot them
-	private LinkedList<Star> visible; // stars we could see if looking at them
-	private List<Constellation> fovConst; // constellations containing a star in fov
-	private HashMap<String,Constellation> visConst; // constellations we're looking at
-	private HashMap<String,Constellation> allConst; // every constellation to look at
-	private HashMap<Integer,Star> directory; // ever star we have
-	private PriorityQueue<Star> invisible; // stars too dim to see
-	private double magLimit = DEFAULT_MAG; // magnitude cutoff
+	// numbers every lookAt of every sky, as the projected-this-frame stamp
+	// lives on stars that several skys may share
+	private static final AtomicInteger frames = new AtomicInteger();
+
+	private volatile List<Star> fov; // stars the screen could see. plot them
+	private volatile List<Constellation> fovConst; // constellations containing a star in fov
+	private final AtomicReference<SkySnapshot> state; // current catalog version
+	private volatile SkySnapshot viewed; // version the last lookAt used
+	private final Object writeLock = new Object(); // serializes updates
+	private transient Propagator propagator; // star positions at other epochs
+	private transient long propagatorVersion; // catalog version propagator is for
+	private transient double[] epochPositions; // propagator result stars are at, if any
+	private transient long epochTime; // time stars were last moved to
+	private transient LevelOfDetail detail; // zoom dependent magnitude limits
+	private transient volatile int[] screen; // w, h lookAt culls to, or null
 	
 	// blank for json, if maybe needed?
-	public Sky() { }
+	public Sky() {
+		state = new AtomicReference<SkySnapshot>(new SkySnapshot());
+	}
 	
 	public Sky(List<Star> stars, List<Constellation> cons, double magL) {
+		state = new AtomicReference<SkySnapshot>(SkySnapshot.build(stars, cons, magL));
+	}
+	
+	/**
+	 * Makes a sky starting from the given catalog version
+	 */
+	Sky(SkySnapshot snap) {
+		state = new AtomicReference<SkySnapshot>(snap);
+	}
+	
+	/**
+	 * Loads a sky from JSON star and constellation files (one object per
+	 * line, or a binary star file ending in .bin), with every constellation
+	 * viewable
+	 */
+	public static Sky load(File starFile, File constFile, double magL) throws IOException {
 		
-		// instantiate map/queue
-		directory = new HashMap<Integer,Star>(stars.size()*10/7);
-		visible = new LinkedList<Star>();
-		invisible = new PriorityQueue<Star>();
-		
-		// star with all invisible
-		magLimit = Double.MIN_VALUE;
+		Gson gson = new Gson();
+		List<Star> stars = new ArrayList<Star>();
+		List<Constellation> cons = new ArrayList<Constellation>();
 		
-		// put each star in directory and invisible queue
-		for (Star st : stars) {
-			st.setHat();
-			directory.put(st.ID_NUM, st);
-			invisible.add(st);
+		// read stars, binary ones as written by SyntheticCatalog
+		BufferedReader br;
+		if (starFile.getName().endsWith(".bin")) {
+			stars = SyntheticCatalog.readBinary(starFile);
+		} else {
+			br = new BufferedReader(new FileReader(starFile));
+			try {
+				String line;
+				while ((line = br.readLine()) != null)
+					stars.add(gson.fromJson(line, Star.class));
+			} finally {
+				br.close();
+			}
 		}
 		
-		// get maps for constellations
-		visConst = new HashMap<String,Constellation>();
-		allConst = new HashMap<String,Constellation>(cons.size()*10/7);
-		
-		// put each constellation in map and link its stars to directory stars
-		for (Constellation c : cons) {
-			allConst.put(c.getCode(), c);
-			c.linkStars(this);
+		// read constellations
+		br = new BufferedReader(new FileReader(constFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+				cons.add(gson.fromJson(line, Constellation.class));
+		} finally {
+			br.close();
 		}
 		
-		// set magnitude cutoff
-		resetMag(magL);
+		Sky sky = new Sky(stars, cons, magL);
+		sky.addViewConst();
+		return sky;
+	}
+
+	/**
+	 * Loads a sky saved with save, without rebuilding any of it
+	 * @throws IOException if the file is missing, damaged or of another format
+	 */
+	public static Sky restore(File snapFile) throws IOException {
+		return new Sky(SnapshotFile.read(snapFile));
+	}
+
+	/**
+	 * Saves the current catalog version, built, for a fast restore
+	 */
+	public void save(File snapFile) throws IOException {
+		SnapshotFile.write(state.get(), snapFile);
+	}
+
+	/**
+	 * Gets the current catalog version. Use one snapshot for a series of
+	 * reads that must agree with each other.
+	 */
+	public SkySnapshot getSnapshot() {
+		return state.get();
+	}
+	
+	/**
+	 * Gets estimated retained bytes of the current catalog version, its
+	 * indexes and this sky's caches, by part
+	 */
+	public Footprint footprint() {
+		Footprint fp = state.get().footprint();
+		Propagator prop = propagator;
+		if (prop != null)
+			fp.add("propagator", prop.footprint());
+		fp.add("fov", Footprint.list(fov) + Footprint.list(fovConst));
+		return fp;
 	}
 	
 	/**
 	 * Adds the given constellation to the glabal list
 	 */
 	public void addConst(Constellation c) {
-		allConst.put(c.getCode(), c);
-		c.linkStars(this);
+		synchronized (writeLock) {
+			state.set(state.get().withConst(c));
+		}
+	}
+	
+	/**
+	 * Adds the given stars to the catalog, replacing any with the same id.
+	 * If the stars were moved to another epoch, the new ones are moved there
+	 * too before the catalog is published.
+	 */
+	public void addStars(Collection<Star> stars) {
+		synchronized (writeLock) {
+			SkySnapshot snap = state.get().withStars(stars, false);
+			if (epochPositions != null)
+				snap = atEpoch(snap, epochTime);
+			state.set(snap);
+		}
 	}
 	
 	/**
 	 * Makes all constellations viewable
 	 */
 	public void addViewConst() {
-		for (Constellation c : allConst.values())
-			addViewConst(c.getCode());
+		synchronized (writeLock) {
+			SkySnapshot snap = state.get();
+			state.set(snap.withView(new HashMap<String,Constellation>(snap.getConst())));
+		}
 	}
 	
 	/**
 	 * Adds constellation of given code to viewable set
 	 */
 	public boolean addViewConst(String code) {
-		
-		// get const
-		Constellation c = allConst.get(code);
-		
-		// check if null
-		if (c != null) {
-			visConst.put(code, c);
-			return true;
+		synchronized (writeLock) {
+			
+			// get const
+			SkySnapshot snap = state.get();
+			Constellation c = snap.getConst().get(code);
+			
+			// check if null
+			if (c != null) {
+				Map<String,Constellation> vis =
+						new HashMap<String,Constellation>(snap.getViewConst());
+				vis.put(code, c);
+				state.set(snap.withView(vis));
+				return true;
+			}
+			return false;
 		}
-		return false;
 	}
 	
 	/**
 	 * Remove constellation of given code from view list
 	 */
 	public Constellation removeViewConst(String code) {
-		return visConst.remove(code);
+		synchronized (writeLock) {
+			SkySnapshot snap = state.get();
+			if (!snap.getViewConst().containsKey(code))
+				return null;
+			Map<String,Constellation> vis =
+					new HashMap<String,Constellation>(snap.getViewConst());
+			Constellation c = vis.remove(code);
+			state.set(snap.withView(vis));
+			return c;
+		}
 	}
 	
 	/**
-	 * Returns the visible stars (above min mag)
+	 * Returns the visible stars (above min mag), brightest first
 	 */
 	public List<Star> getVisible() {
-		return visible;
+		return state.get().getVisible();
 	}
 	
 	/**
@@ -119,42 +232,136 @@ public class Sky {
 	/**
 	 * Get the star directory (all stars)
 	 */
-	public HashMap<Integer,Star> getStars() {
-		return directory;
+	public Map<Integer,Star> getStars() {
+		return state.get().getStars();
 	}
 	
 	/**
 	 * Get all constellations in this sky
 	 */
-	public HashMap<String,Constellation> getConst() {
-		return allConst;
+	public Map<String,Constellation> getConst() {
+		return state.get().getConst();
 	}
 	
 	/**
 	 * Resets the cutoff magnitude to provided value
 	 */
 	public void resetMag(double newMag) {
+		synchronized (writeLock) {
+			state.set(state.get().withMag(newMag));
+		}
+	}
+	
+	/**
+	 * Get the shared vertex/index buffer of all constellation lines, as of
+	 * the last lookAt
+	 */
+	public FigureBuffer getFigures() {
+		SkySnapshot snap = viewed;
+		return snap != null ? snap.getFigures() : state.get().getFigures();
+	}
+	
+	/**
+	 * Moves every star to its apparent position (proper motion, precession
+	 * and nutation) at the provided UTC time. Positions are computed for the
+	 * whole catalog at once and cached per day; moving to the day already
+	 * shown publishes nothing.
+	 */
+	public void setEpoch(long time) {
+		synchronized (writeLock) {
+			SkySnapshot snap = state.get();
+			SkySnapshot moved = atEpoch(snap, time);
+			if (moved != snap)
+				state.set(moved);
+		}
+	}
+	
+	/**
+	 * Gets the snapshot with its stars moved to the provided UTC time, or
+	 * the snapshot itself if they are already there. Call with writeLock held.
+	 */
+	private SkySnapshot atEpoch(SkySnapshot snap, long time) {
 		
-		// if making higher
-		if (newMag > magLimit) {
-			
-			// add new visible stars from queue
-			magLimit = newMag;
-			while (invisible.peek() != null && invisible.peek().getMag() < magLimit) 
-				visible.add(0,invisible.poll());
-		} else {
-			// remove no-longer-visible stars from list
-			magLimit = newMag;
-			while (visible.get(0) != null && visible.get(0).getMag() > magLimit)
-				invisible.add(visible.remove(0));
+		// propagator over the snapshot's star set
+		if (propagator == null || propagatorVersion != snap.getCatalogVersion()) {
+			propagator = new Propagator(snap.getStars().values());
+			propagatorVersion = snap.getCatalogVersion();
+		}
+		
+		// moved copies of every star, unless already there
+		double[] p = propagator.propagate(time);
+		epochTime = time;
+		if (p == epochPositions)
+			return snap;
+		epochPositions = p;
+		return snap.withPositions(propagator.getStars(), p);
+	}
+	
+	/**
+	 * Moves every star back to its catalog (J2000) position
+	 */
+	public void resetEpoch() {
+		synchronized (writeLock) {
+			SkySnapshot snap = state.get();
+			Star[] stars = snap.getStars().values().toArray(new Star[snap.getStars().size()]);
+			double[] p = new double[Vector.DIM * stars.length];
+			for (int i = 0; i < stars.length; i++)
+				stars[i].getJ2000(p, Vector.DIM * i);
+			state.set(snap.withPositions(stars, p));
+			epochPositions = null;
 		}
 	}
 	
+	/**
+	 * Sets zoom dependent magnitude limits used on top of the cutoff
+	 * magnitude, or null to use only the cutoff
+	 */
+	public void setDetail(LevelOfDetail lod) {
+		detail = lod;
+	}
+	
+	/**
+	 * Gets the spatial index of all stars
+	 */
+	public SkyIndex getIndex() {
+		return state.get().getIndex();
+	}
+	
+	/**
+	 * Gets the n brightest stars (brightest first) in the fov of provided
+	 * coord transfer object, looking no further than needed
+	 */
+	public List<Star> brightest(CoordTrans ct, int n) {
+		SkySnapshot snap = state.get();
+		List<Star> out = new ArrayList<Star>(n);
+		snap.getIndex().brightest(ct.getHat(), Math.min(ct.getAngDiam(), Math.PI/2),
+				n, snap.getMagLimit(), out);
+		return out;
+	}
+	
+	/**
+	 * Gets every star brighter than the cutoff that is above the horizon at
+	 * the location of provided coord transfer object at the provided time
+	 */
+	public List<Star> aboveHorizon(CoordTrans ct, long time) {
+		SkySnapshot snap = state.get();
+		List<Star> out = new ArrayList<Star>();
+		snap.getHorizonIndex().query(ct, time, snap.getMagLimit(), out);
+		return out;
+	}
+	
+	/**
+	 * Gets every constellation with a line to or from the star of given id
+	 */
+	public List<Constellation> figuresWith(int starId) {
+		return state.get().getMembers().figuresOf(starId);
+	}
+	
 	/**
 	 * Gets star of provided id
 	 */
 	public Star getStar(int id) {
-		return directory.get(id);
+		return state.get().getStar(id);
 	}
 	
 	/**
@@ -162,58 +369,79 @@ public class Sky {
 	 * transfer object, and sets their normalized plotting coordinates
 	 */
 	public void lookAt(CoordTrans ct) {
+		lookAt(ct.getMatrix(), ct.getAngDiam());
+	}
+	
+	/**
+	 * As lookAt, for a screen matrix already worked out (as by
+	 * CoordTrans.getMatrix) and the angular diameter it was made for
+	 */
+	public void lookAt(double[] m, double angDiam) {
 		
-		// get direction of coord trans
-		Vector hat = ct.getHat();
+		// everything below reads this one version
+		SkySnapshot snap = state.get();
 		
-		// make list of stars in fov
-		fov = new ArrayList<Star>();
+		// direction of screen center
+		Vector hat = new Vector(m[6], m[7], m[8]);
+		int frame = frames.incrementAndGet();
 		
-		double angSep; // angular separation
-		double dotProd; // dot product
-
-		// for each star
-		for (Star st : visible) {
-			
-			// dot with axis of view, check on angular separation
-			dotProd = hat.dot(st.getHat());
-			angSep = Math.acos(dotProd);
-			
-			// if within field of view, add star to list and set its coords
-			if (angSep < ct.getAngDiam() && dotProd > 0) {
-				fov.add(st);
-				st.setPlot(ct);
-			}
-		}
+		// only the front hemisphere can be plotted, and with a screen set
+		// only what's inside its four sides
+		double ang = Math.min(angDiam, Math.PI/2);
+		double minDot = SkyIndex.minDot(ang);
+		int[] screen = this.screen;
+		double[] planes = new double[4 * Projection.MAX_PLANES];
+		int numPlanes = screen == null ? 0
+				: Projection.ORTHOGRAPHIC.frustum(m, screen[0], screen[1], planes);
+		
+		// get stars in fov from index, brighter than the limit for this zoom
+		LevelOfDetail detail = this.detail;
+		double mag = detail == null ? snap.getMagLimit()
+				: Math.min(snap.getMagLimit(), detail.magLimit(angDiam));
+		List<Star> fov = new ArrayList<Star>();
+		snap.getIndex().query(hat, ang, planes, numPlanes, mag, fov);
+		
+		// set their coords
+		for (Star st : fov)
+			st.setPlot(m, frame);
 		
 		// make list for constellations
-		fovConst = new ArrayList<Constellation>();
+		List<Constellation> fovConst = new ArrayList<Constellation>();
 		
 		// for each constelltaion
-		for (Constellation c : visConst.values()) {
+		for (Constellation c : snap.getViewConst().values()) {
 			
 			// for each star in constellation
 			for (Star st : c.getStars()) {
 				
-				// repeat above
-				dotProd = hat.dot(st.getHat());
-				angSep = Math.acos(dotProd);
-				
-				// if within field of view, add to list and set up for plot
-				if (angSep < ct.getAngDiam() && dotProd > 0) {
+				// if within field of view, add to list
+				Vector v = st.getHat();
+				if (hat.dot(v) > minDot
+						&& SkyIndex.inside(planes, numPlanes, v.getX(), v.getY(), v.getZ())) {
 					fovConst.add(c);
-					c.setPlot(ct);
 					break;
 				}
 			}
 		}
+		
+		// set up figure stars for plot, each once
+		snap.getFigures().project(m, frame, fovConst);
+		
+		// publish results
+		this.viewed = snap;
+		this.fov = fov;
+		this.fovConst = fovConst;
 	}
 	
 	/**
-	 * Updates all contstituents' plotting coordinates for a screen of size w x h
+	 * Sets the screen size later calls to lookAt cull to, so only stars
+	 * landing on a w x h screen are kept; 0 x 0 keeps everything in the
+	 * circle through its corners
 	 */
 	public void setPlot(int w, int h) {
-		
+		if (w < 0 || h < 0 || (w == 0) != (h == 0))
+			throw new IllegalArgumentException("bad screen " + w + " x " + h);
+		screen = w == 0 ? null : new int[] { w, h };
 	}
 	
 	/**
@@ -222,5 +450,5 @@ public class Sky {
 	public static void main(String[] args) {
 		
 	}
-	
+
 }
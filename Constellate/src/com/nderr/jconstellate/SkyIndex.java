@@ -0,0 +1,466 @@
+package com.nderr.jconstellate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index of stars on the celestial sphere. The sphere is split into
+ * the six faces of a cube, each divided into div x div cells (equal angle, so
+ * cells are of similar size), and each cell's stars are kept brightest first.
+ * Cone queries visit only cells that overlap the cone and stop within each
+ * cell at the magnitude limit. A query may also be bounded by planes, such
+ * as a screen's frustum, which reject whole cells lying outside any one.
+ */
+public class SkyIndex {
+
+	public static final int DEFAULT_DIV = 16; // cells per cube face edge
+	public static final int FACES = 6;
+
+	private final int div; // cells per face edge
+	private final Star[] stars; // sorted by cell, then magnitude
+	private final double[] pos; // packed x,y,z of sorted stars
+	private final double[] mags; // magnitudes of sorted stars
+	private final int[] cellStart; // cell c is [cellStart[c], cellStart[c+1])
+	private final double[] center; // packed x,y,z of cell centers
+	private final double[] radius; // angular radius of cap around each cell
+	private final double[] cosRadius; // cos of each radius
+	private final double[] sinRadius; // sin of each radius
+
+	/**
+	 * Indexes the given stars at their current positions with default cells
+	 */
+	public SkyIndex(Collection<Star> stars) {
+		this(stars, DEFAULT_DIV);
+	}
+
+	/**
+	 * Indexes the given stars at their current positions, with div x div
+	 * cells on each cube face
+	 */
+	public SkyIndex(Collection<Star> stars, int div) {
+
+		this.div = div;
+		int numCells = FACES * div * div;
+		int n = stars.size();
+
+		// cell of each star
+		Star[] in = stars.toArray(new Star[n]);
+		int[] cells = new int[n];
+		cellStart = new int[numCells + 1];
+		for (int i = 0; i < n; i++) {
+			Vector hat = in[i].getHat();
+			cells[i] = cell(hat.getX(), hat.getY(), hat.getZ(), div);
+			cellStart[cells[i] + 1]++;
+		}
+
+		// counting sort by cell
+		for (int c = 0; c < numCells; c++)
+			cellStart[c + 1] += cellStart[c];
+		int[] fill = new int[numCells];
+		System.arraycopy(cellStart, 0, fill, 0, numCells);
+		this.stars = new Star[n];
+		for (int i = 0; i < n; i++)
+			this.stars[fill[cells[i]]++] = in[i];
+
+		// brightest first within each cell
+		Comparator<Star> byMag = new Comparator<Star>() {
+			public int compare(Star a, Star b) {
+				return Double.compare(a.getMag(), b.getMag());
+			}
+		};
+		for (int c = 0; c < numCells; c++)
+			Arrays.sort(this.stars, cellStart[c], cellStart[c + 1], byMag);
+
+		// pack positions and magnitudes
+		pos = new double[Vector.DIM * n];
+		mags = new double[n];
+		for (int i = 0; i < n; i++) {
+			Vector hat = this.stars[i].getHat();
+			pos[Vector.DIM*i + Vector.X] = hat.getX();
+			pos[Vector.DIM*i + Vector.Y] = hat.getY();
+			pos[Vector.DIM*i + Vector.Z] = hat.getZ();
+			mags[i] = this.stars[i].getMag();
+		}
+
+		// bounding cap of each cell: center, then farthest corner
+		center = new double[Vector.DIM * numCells];
+		radius = new double[numCells];
+		double[] v = new double[Vector.DIM];
+		for (int c = 0; c < numCells; c++) {
+			int face = c / (div * div);
+			int i = (c / div) % div;
+			int j = c % div;
+			point(face, (2*i + 1.0) / div - 1, (2*j + 1.0) / div - 1, v);
+			System.arraycopy(v, 0, center, Vector.DIM * c, Vector.DIM);
+			double minDot = 1;
+			for (int ci = i; ci <= i + 1; ci++) {
+				for (int cj = j; cj <= j + 1; cj++) {
+					point(face, 2.0*ci / div - 1, 2.0*cj / div - 1, v);
+					minDot = Math.min(minDot, v[Vector.X]*center[Vector.DIM*c + Vector.X]
+							+ v[Vector.Y]*center[Vector.DIM*c + Vector.Y]
+							+ v[Vector.Z]*center[Vector.DIM*c + Vector.Z]);
+				}
+			}
+			radius[c] = Math.acos(Math.max(-1, Math.min(1, minDot))) + 1e-9;
+		}
+		cosRadius = cos(radius);
+		sinRadius = sin(radius);
+	}
+
+	/**
+	 * Rebuilds an index from arrays saved from another's getters
+	 */
+	SkyIndex(int div, Star[] stars, double[] pos, double[] mags, int[] cellStart,
+			double[] center, double[] radius) {
+		this.div = div;
+		this.stars = stars;
+		this.pos = pos;
+		this.mags = mags;
+		this.cellStart = cellStart;
+		this.center = center;
+		this.radius = radius;
+		this.cosRadius = cos(radius);
+		this.sinRadius = sin(radius);
+	}
+
+	private static double[] cos(double[] a) {
+		double[] out = new double[a.length];
+		for (int i = 0; i < a.length; i++)
+			out[i] = Math.cos(a[i]);
+		return out;
+	}
+
+	private static double[] sin(double[] a) {
+		double[] out = new double[a.length];
+		for (int i = 0; i < a.length; i++)
+			out[i] = Math.sin(a[i]);
+		return out;
+	}
+
+	/**
+	 * Gets the cell containing direction (x,y,z), for div x div cells a face
+	 */
+	public static int cell(double x, double y, double z, int div) {
+
+		// face is the axis with the largest component
+		double ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+		int face;
+		double u, v;
+		if (ax >= ay && ax >= az) {
+			face = x > 0 ? 0 : 1;
+			u = y / ax;
+			v = z / ax;
+		} else if (ay >= az) {
+			face = y > 0 ? 2 : 3;
+			u = x / ay;
+			v = z / ay;
+		} else {
+			face = z > 0 ? 4 : 5;
+			u = x / az;
+			v = y / az;
+		}
+
+		// equal angle position on face
+		int i = (int) ((warp(u) + 1) / 2 * div);
+		int j = (int) ((warp(v) + 1) / 2 * div);
+		i = Math.max(0, Math.min(div - 1, i));
+		j = Math.max(0, Math.min(div - 1, j));
+		return (face * div + i) * div + j;
+	}
+
+	/**
+	 * Gets the cell containing direction (x,y,z) in this index
+	 */
+	public int cell(double x, double y, double z) {
+		return cell(x, y, z, div);
+	}
+
+	/**
+	 * Maps a face coordinate in [-1,1] to equal angle
+	 */
+	private static double warp(double u) {
+		return Math.atan(u) * 4 / Math.PI;
+	}
+
+	/**
+	 * Gets the unit vector at equal angle coordinates (s,t) on a face
+	 */
+	private static void point(int face, double s, double t, double[] out) {
+		double u = Math.tan(s * Math.PI / 4);
+		double v = Math.tan(t * Math.PI / 4);
+		double x, y, z;
+		switch (face) {
+			case 0: x = 1; y = u; z = v; break;
+			case 1: x = -1; y = u; z = v; break;
+			case 2: x = u; y = 1; z = v; break;
+			case 3: x = u; y = -1; z = v; break;
+			case 4: x = u; y = v; z = 1; break;
+			default: x = u; y = v; z = -1; break;
+		}
+		double norm = 1 / Math.sqrt(x*x + y*y + z*z);
+		out[Vector.X] = x * norm;
+		out[Vector.Y] = y * norm;
+		out[Vector.Z] = z * norm;
+	}
+
+	/**
+	 * Cosine of an angular radius, with radii past pi accepting everything
+	 */
+	public static double minDot(double ang) {
+		return ang >= Math.PI ? -1 : Math.cos(ang);
+	}
+
+	/**
+	 * Returns whether cell c might hold a direction within ang of the axis
+	 */
+	public boolean overlaps(int c, double ax, double ay, double az, double ang) {
+		double reach = ang + radius[c];
+		if (reach >= Math.PI)
+			return true;
+		return ax*center[Vector.DIM*c + Vector.X] + ay*center[Vector.DIM*c + Vector.Y]
+				+ az*center[Vector.DIM*c + Vector.Z] >= Math.cos(reach);
+	}
+
+	/**
+	 * Returns whether cell c lies wholly outside plane n . v <= d, n a unit
+	 * vector: whether the nearest point of its cap to n is still past d
+	 */
+	public boolean outside(int c, double nx, double ny, double nz, double d) {
+
+		// the cap reaches -n, where n . v is least
+		double cos = nx*center[Vector.DIM*c + Vector.X] + ny*center[Vector.DIM*c + Vector.Y]
+				+ nz*center[Vector.DIM*c + Vector.Z];
+		if (cos <= -cosRadius[c])
+			return false;
+
+		// cos of (angle to n plus radius)
+		double sin = Math.sqrt(Math.max(0, 1 - cos*cos));
+		return cos*cosRadius[c] - sin*sinRadius[c] > d;
+	}
+
+	/**
+	 * Returns whether cell c lies wholly outside any plane of planes
+	 */
+	private boolean outside(int c, double[] planes, int numPlanes) {
+		for (int k = 0, p = 0; k < numPlanes; k++, p += 4) {
+			if (outside(c, planes[p], planes[p + 1], planes[p + 2], planes[p + 3]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether direction (x,y,z) is inside every plane n . v <= d
+	 * of planes, packed [nx,ny,nz,d,...]
+	 */
+	public static boolean inside(double[] planes, int numPlanes, double x, double y, double z) {
+		for (int k = 0, p = 0; k < numPlanes; k++, p += 4) {
+			if (planes[p]*x + planes[p + 1]*y + planes[p + 2]*z > planes[p + 3])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds to out every star brighter than magLimit within ang of the axis
+	 * @return number of stars added
+	 */
+	public int query(Vector axis, double ang, double magLimit, List<Star> out) {
+		return query(axis, ang, null, 0, magLimit, out);
+	}
+
+	/**
+	 * Adds to out every star brighter than magLimit within ang of the axis
+	 * and inside every plane n . v <= d of planes, packed [nx,ny,nz,d,...]
+	 * with n unit vectors, as from Projection.frustum
+	 * @return number of stars added
+	 */
+	public int query(Vector axis, double ang, double[] planes, int numPlanes, double magLimit,
+			List<Star> out) {
+		return query(axis.getX(), axis.getY(), axis.getZ(), ang, planes, numPlanes, magLimit, out);
+	}
+
+	/**
+	 * As above, with the axis (ax,ay,az); allocates nothing once out has
+	 * room for the stars found
+	 */
+	public int query(double ax, double ay, double az, double ang, double[] planes, int numPlanes,
+			double magLimit, List<Star> out) {
+
+		double minDot = minDot(ang);
+		int added = 0;
+
+		for (int c = 0; c < radius.length; c++) {
+			if (cellStart[c] == cellStart[c + 1] || !overlaps(c, ax, ay, az, ang)
+					|| outside(c, planes, numPlanes))
+				continue;
+
+			// brightest first, so stop at the magnitude limit
+			for (int i = cellStart[c]; i < cellStart[c + 1] && mags[i] < magLimit; i++) {
+				int j = Vector.DIM * i;
+				if (ax*pos[j] + ay*pos[j + 1] + az*pos[j + 2] > minDot
+						&& inside(planes, numPlanes, pos[j], pos[j + 1], pos[j + 2])) {
+					out.add(stars[i]);
+					added++;
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Runs several queries as above in one pass over the cells, so each
+	 * star is read once however many views it may be in. Query k has axis
+	 * axes[3k..3k+2], radius angs[k] and planes[k] (numPlanes[k] of them),
+	 * and adds to out.get(k).
+	 */
+	public void query(int n, double[] axes, double[] angs, double[][] planes, int[] numPlanes,
+			double magLimit, List<List<Star>> out) {
+
+		double[] minDot = new double[n];
+		for (int k = 0; k < n; k++)
+			minDot[k] = minDot(angs[k]);
+		int[] touching = new int[n];
+
+		for (int c = 0; c < radius.length; c++) {
+			if (cellStart[c] == cellStart[c + 1])
+				continue;
+
+			// queries this cell might be in
+			int t = 0;
+			for (int k = 0; k < n; k++) {
+				int a = Vector.DIM * k;
+				if (overlaps(c, axes[a], axes[a + 1], axes[a + 2], angs[k])
+						&& !outside(c, planes[k], numPlanes[k]))
+					touching[t++] = k;
+			}
+			if (t == 0)
+				continue;
+
+			// brightest first, so stop at the magnitude limit
+			for (int i = cellStart[c]; i < cellStart[c + 1] && mags[i] < magLimit; i++) {
+				int j = Vector.DIM * i;
+				double x = pos[j], y = pos[j + 1], z = pos[j + 2];
+				for (int q = 0; q < t; q++) {
+					int k = touching[q];
+					int a = Vector.DIM * k;
+					if (axes[a]*x + axes[a + 1]*y + axes[a + 2]*z > minDot[k]
+							&& inside(planes[k], numPlanes[k], x, y, z))
+						out.get(k).add(stars[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds to out (brightest first) the n brightest stars brighter than
+	 * magLimit within ang of the axis, merging the cells' magnitude ordered
+	 * lists and stopping as soon as n are found
+	 * @return number of stars added
+	 */
+	public int brightest(Vector axis, double ang, int n, double magLimit, List<Star> out) {
+
+		double ax = axis.getX(), ay = axis.getY(), az = axis.getZ();
+		double minDot = minDot(ang);
+
+		// cursor into each overlapping cell, ordered by its next magnitude
+		final int[] cursor = new int[radius.length];
+		PriorityQueue<Integer> cells = new PriorityQueue<Integer>(64, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(mags[cursor[a]], mags[cursor[b]]);
+			}
+		});
+		for (int c = 0; c < radius.length; c++) {
+			if (cellStart[c] < cellStart[c + 1] && overlaps(c, ax, ay, az, ang)) {
+				cursor[c] = cellStart[c];
+				cells.add(c);
+			}
+		}
+
+		// take brightest remaining star of all cells until done
+		int added = 0;
+		while (added < n && !cells.isEmpty()) {
+			int c = cells.poll();
+			int i = cursor[c];
+			if (mags[i] >= magLimit)
+				break;
+			int j = Vector.DIM * i;
+			if (ax*pos[j] + ay*pos[j + 1] + az*pos[j + 2] > minDot) {
+				out.add(stars[i]);
+				added++;
+			}
+			if (++cursor[c] < cellStart[c + 1])
+				cells.add(c);
+		}
+		return added;
+	}
+
+	/**
+	 * Gets number of cells
+	 */
+	public int numCells() {
+		return radius.length;
+	}
+
+	/**
+	 * Gets number of cells along each cube face edge
+	 */
+	public int getDivisions() {
+		return div;
+	}
+
+	/**
+	 * Gets the stars, sorted by cell then magnitude
+	 */
+	public Star[] getStars() {
+		return stars;
+	}
+
+	/**
+	 * Gets the packed x,y,z positions of the sorted stars
+	 */
+	public double[] getPositions() {
+		return pos;
+	}
+
+	/**
+	 * Gets the magnitudes of the sorted stars
+	 */
+	public double[] getMags() {
+		return mags;
+	}
+
+	/**
+	 * Gets cell offsets: cell c holds sorted stars [start[c], start[c+1])
+	 */
+	public int[] getCellStart() {
+		return cellStart;
+	}
+
+	/**
+	 * Gets the packed x,y,z cell centers
+	 */
+	public double[] getCenters() {
+		return center;
+	}
+
+	/**
+	 * Gets the angular radius of each cell's bounding cap
+	 */
+	public double[] getRadii() {
+		return radius;
+	}
+
+	/**
+	 * Gets estimated retained bytes, not counting the stars themselves
+	 */
+	public long footprint() {
+		return Footprint.shallow(SkyIndex.class) + Footprint.array(stars.length, Footprint.REF)
+				+ Footprint.array(pos.length, 8) + Footprint.array(mags.length, 8)
+				+ Footprint.array(cellStart.length, 4) + Footprint.array(center.length, 8)
+				+ 3 * Footprint.array(radius.length, 8);
+	}
+}
@@ -5,11 +5,15 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Insets;
+import java.awt.Toolkit;
+import java.awt.geom.Path2D;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -75,12 +79,15 @@ public class SkyPlot {
 		long t5 = System.currentTimeMillis();
 		
 		final SkyPlot sp = new SkyPlot();
+		final boolean animate = args.length > 0 && args[0].equals("-animate");
 		SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
 
                 Plot p = sp.new Plot(sky);
                 p.setVisible(true);
+                if (animate)
+                	p.getScreen().animate();
             }
         });
 		
@@ -101,6 +108,8 @@ public class SkyPlot {
 	
 	@SuppressWarnings("serial")
 	class Plot extends JFrame {
+		
+		private Screen screen;
 
 	    public Plot(Sky sky) {
 
@@ -112,20 +121,61 @@ public class SkyPlot {
 	        setTitle("Points");
 	        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-	        add(new Screen(sky));
+	        screen = new Screen(sky);
+	        add(screen);
 
 	        setSize(350, 250);
 	        setLocationRelativeTo(null);
 	    }
+	    
+	    public Screen getScreen() {
+	    	return screen;
+	    }
 	}
 	
 	@SuppressWarnings("serial")
 	class Screen extends JPanel {
 		
 		private Sky sky;
+		private SkyRenderer renderer; // non-null once animating
 		
 		public Screen(Sky sky) {
 			this.sky = sky;
+			setBackground(SkyRenderer.BACKGROUND);
+		}
+		
+		/**
+		 * Switches to rendering on a background thread, slowly panning
+		 * around the horizon
+		 */
+		public void animate() {
+			final long t0 = System.currentTimeMillis();
+			final Timer timer = new Timer(true);
+			renderer = new SkyRenderer(sky, this, pose(0));
+			renderer.start();
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					renderer.setPose(pose(System.currentTimeMillis() - t0));
+				}
+			}, 0, 5);
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					System.out.println("rendered " + renderer.getRendered() 
+							+ ", skipped " + renderer.getSkipped() 
+							+ ", dropped " + renderer.getDropped() 
+							+ ", last " + renderer.getLastRenderNanos()/1000 + " us");
+				}
+			}, 1000, 1000);
+		}
+		
+		/**
+		 * View at Madison panning 0.1 radians a second
+		 */
+		private CoordTrans pose(long ms) {
+			return new CoordTrans(43.07*Math.PI/180,-89.4*Math.PI/180,
+					Math.PI/7,ms/10000.0,0,Math.PI/1.5);
 		}
 		
 		private void doDrawing(Graphics g) {
@@ -137,8 +187,6 @@ public class SkyPlot {
 	        int w = size.width - insets.left - insets.right;
 	        int h = size.height - insets.top - insets.bottom;
 	        
-	        setBackground(Color.BLUE);
-	        
 	        for (Star s : sky.getStarFOV()) {
 	        	int x = s.getX(w,h);
 	        	int y = s.getY(w,h);
@@ -147,24 +195,22 @@ public class SkyPlot {
 	        	g2d.fillOval(x-r, y-r, 2*r, 2*r);
 	        }
 	        
-	        for (Constellation c : sky.getConstFOV()) {
-	        	float[] coords = c.getLines(w,h);
-	        	for (int i = 0; i < coords.length; i += 4) {
-	        		int x1 = (int) coords[i];
-	        		int y1 = (int) coords[i + 1];
-	        		int x2 = (int) coords[i + 2];
-	        		int y2 = (int) coords[i + 3];
-	        		g2d.setColor(Color.WHITE);
-	        		g2d.drawLine(x1, y1, x2, y2);
-	        	}
-	        }
+	        Path2D.Float lines = new Path2D.Float();
+	        sky.getFigures().appendTo(sky.getConstFOV(), w, h, lines);
+	        g2d.setColor(Color.WHITE);
+	        g2d.draw(lines);
 	        
 		}
 		
 		@Override
 		public void paintComponent(Graphics g) {
+			if (renderer != null && renderer.paint(g)) {
+				Toolkit.getDefaultToolkit().sync();
+				return;
+			}
 			super.paintComponent(g);
-			doDrawing(g);
+			if (renderer == null)
+				doDrawing(g);
 		}
 	}
 }
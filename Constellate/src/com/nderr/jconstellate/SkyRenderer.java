@@ -0,0 +1,309 @@
+package com.nderr.jconstellate;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JComponent;
+
+/**
+ * Renders frames of a sky on its own thread into a back buffer, swapping it
+ * to the front at a steady frame rate. Frames are only redrawn when the pose
+ * or screen size changes (or the sky has turned noticeably), and only the
+ * region that changed is repainted. The sky must not be used by anyone else
+ * while the renderer is running.
+ */
+public class SkyRenderer implements Runnable {
+
+	public static final int DEFAULT_FPS = 60;
+	public static final long DEFAULT_REFRESH = 1000; // ms before redrawing a still pose
+	public static final Color BACKGROUND = Color.BLUE;
+	public static final Color STAR = Color.YELLOW;
+	public static final Color LINE = Color.WHITE;
+
+	private final Sky sky;
+	private final JComponent target; // where frames are presented
+	private final long period; // nanoseconds per frame
+	private final long refresh; // ms between redraws of an unchanged pose
+
+	private volatile CoordTrans pose; // latest requested view
+	private volatile PoseStream stream; // sensor input, or null
+	private final double[] streamed = new double[9]; // screen matrix of its last pose
+	private volatile boolean running = false;
+	private Thread thread;
+
+	// buffers, swapped under lock
+	private final Object lock = new Object();
+	private BufferedImage front;
+	private BufferedImage back;
+	private Rectangle frontBounds = new Rectangle(); // drawn content, front
+	private Rectangle backBounds = new Rectangle(); // drawn content, back
+
+	// what the front buffer shows
+	private CoordTrans drawnPose = null;
+	private PoseStream drawnStream = null;
+	private long drawnTime = 0;
+
+	// statistics
+	private volatile long rendered = 0;
+	private volatile long skipped = 0;
+	private volatile long dropped = 0;
+	private volatile long lastRenderNanos = 0;
+
+	/**
+	 * Makes a renderer for the sky onto the target at the default frame rate
+	 */
+	public SkyRenderer(Sky sky, JComponent target, CoordTrans pose) {
+		this(sky, target, pose, DEFAULT_FPS, DEFAULT_REFRESH);
+	}
+
+	/**
+	 * Makes a renderer for the sky onto the target at the provided frame rate,
+	 * redrawing an unchanged pose every refresh milliseconds
+	 */
+	public SkyRenderer(Sky sky, JComponent target, CoordTrans pose, int fps, long refresh) {
+		this.sky = sky;
+		this.target = target;
+		this.pose = pose;
+		this.period = TimeUnit.SECONDS.toNanos(1) / fps;
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Sets the view to render from the next frame on. Safe from any thread.
+	 */
+	public void setPose(CoordTrans ct) {
+		pose = ct;
+	}
+
+	/**
+	 * Takes the pose from a sensor stream, one per frame, from the next
+	 * frame on; null to go back to the pose last given to setPose
+	 */
+	public void setPoseStream(PoseStream ps) {
+		stream = ps;
+	}
+
+	/**
+	 * Starts the render thread
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		thread = new Thread(this, "constellate-render");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the render thread and waits for it to finish
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Render loop, paced to one frame per period
+	 */
+	public void run() {
+		long next = System.nanoTime();
+		while (running) {
+
+			// draw a new frame if anything changed
+			long start = System.nanoTime();
+			if (renderFrame())
+				lastRenderNanos = System.nanoTime() - start;
+
+			// wait for the next deadline, counting any we missed
+			next += period;
+			long now = System.nanoTime();
+			if (now > next) {
+				long missed = (now - next) / period + 1;
+				dropped += missed;
+				next += missed * period;
+			}
+			while (running && (now = System.nanoTime()) < next)
+				LockSupport.parkNanos(next - now);
+		}
+	}
+
+	/**
+	 * Renders the current pose into the back buffer and presents it, unless
+	 * the front buffer already shows it
+	 * @return whether a frame was drawn
+	 */
+	public boolean renderFrame() {
+
+		// take the sensor's newest pose as a screen matrix, if it has one
+		PoseStream ps = stream;
+		long now = System.currentTimeMillis();
+		boolean fresh = ps != null && ps.poll(now, streamed);
+		CoordTrans ct = ps == null ? pose : null;
+		boolean same = ps == null ? ct == drawnPose : !fresh && ps == drawnStream;
+		int w = target.getWidth();
+		int h = target.getHeight();
+
+		// skip if nothing would change
+		if ((ps == null && ct == null) || w <= 0 || h <= 0 || (same && front != null
+				&& front.getWidth() == w && front.getHeight() == h
+				&& now - drawnTime < refresh)) {
+			skipped++;
+			return false;
+		}
+
+		// (re)allocate back buffer to screen size
+		if (back == null || back.getWidth() != w || back.getHeight() != h) {
+			back = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			backBounds = new Rectangle(0, 0, w, h);
+		}
+
+		// clear what the last frame in this buffer drew
+		Graphics2D g2d = back.createGraphics();
+		g2d.setColor(BACKGROUND);
+		g2d.fill(backBounds);
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+
+		// point and draw, a still streamed pose as the sky has turned since
+		if (ps == null) {
+			sky.lookAt(ct);
+		} else {
+			if (!fresh)
+				ps.getMatrix(now, streamed);
+			sky.lookAt(streamed, ps.getAngDiam());
+		}
+		Rectangle drawn = draw(g2d, w, h);
+		g2d.dispose();
+
+		// swap, then repaint the union of old and new content
+		Rectangle dirty;
+		synchronized (lock) {
+			BufferedImage tmp = front;
+			front = back;
+			back = tmp;
+			Rectangle old = frontBounds;
+			frontBounds = drawn;
+			backBounds = old;
+			dirty = tmp != null && tmp.getWidth() == w && tmp.getHeight() == h
+					? drawn.union(old) : new Rectangle(0, 0, w, h);
+		}
+		drawnPose = ct;
+		drawnStream = ps;
+		drawnTime = now;
+		rendered++;
+		target.repaint(dirty);
+
+		// the swap is as close to the screen as this thread sees
+		if (ps != null)
+			ps.presented();
+		return true;
+	}
+
+	/**
+	 * Draws the sky's current field of view
+	 * @return bounds of what was drawn
+	 */
+	private Rectangle draw(Graphics2D g2d, int w, int h) {
+
+		Rectangle bounds = null;
+
+		// stars
+		g2d.setColor(STAR);
+		for (Star s : sky.getStarFOV()) {
+			int x = s.getX(w,h);
+			int y = s.getY(w,h);
+			int r = (int) (6 - s.getMag());
+			if (r <= 0)
+				continue;
+			g2d.fillOval(x-r, y-r, 2*r, 2*r);
+			bounds = union(bounds, new Rectangle(x-r-1, y-r-1, 2*r+2, 2*r+2));
+		}
+
+		// constellation lines
+		Path2D.Float lines = new Path2D.Float();
+		sky.getFigures().appendTo(sky.getConstFOV(), w, h, lines);
+		g2d.setColor(LINE);
+		g2d.draw(lines);
+		if (!sky.getConstFOV().isEmpty()) {
+			Rectangle r = lines.getBounds();
+			r.grow(1, 1);
+			bounds = union(bounds, r);
+		}
+
+		// keep within screen
+		return bounds == null ? new Rectangle()
+				: bounds.intersection(new Rectangle(0, 0, w, h));
+	}
+
+	/**
+	 * Union of two rectangles, either of which may be null or empty
+	 */
+	private static Rectangle union(Rectangle a, Rectangle b) {
+		if (a == null || a.isEmpty())
+			return b;
+		if (b == null || b.isEmpty())
+			return a;
+		return a.union(b);
+	}
+
+	/**
+	 * Draws the front buffer. Call from the component's paint method.
+	 * @return whether there was a frame to draw
+	 */
+	public boolean paint(Graphics g) {
+		synchronized (lock) {
+			if (front == null)
+				return false;
+			g.drawImage(front, 0, 0, null);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets number of frames drawn
+	 */
+	public long getRendered() {
+		return rendered;
+	}
+
+	/**
+	 * Gets number of frame slots skipped because nothing changed
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Gets number of frame deadlines missed
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Gets time to draw the last frame in nanoseconds
+	 */
+	public long getLastRenderNanos() {
+		return lastRenderNanos;
+	}
+}
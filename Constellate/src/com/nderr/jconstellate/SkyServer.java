@@ -0,0 +1,386 @@
+package com.nderr.jconstellate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP service returning the stars and constellation lines in view
+ * for a pose, computed against the sky's current snapshot. Each request runs
+ * on its own thread from the executor (by default a thread per request,
+ * reused when idle).
+ *
+ * GET /view?lat=&lon=&el=&az=&spin=&ang=[&time=][&horizon=0][&proj=][&w=&h=][&format=bin]
+ * with angles in degrees, time in milliseconds since the UTC epoch
+ * (default now) and proj a Projection name (default orthographic). Given
+ * a w x h screen (always, for binary), only stars landing on it are sent.
+ * JSON is {"stars":[[id,x,y],...],"consts":[id,...],
+ * "lines":[x1,y1,x2,y2,...]} in normalized screen coordinates. Binary is
+ * the big endian SkyView encoding, in pixels of a w x h screen.
+ *
+ * With a ViewCache, views are computed at the pose and time rounded to the
+ * cache's grid, and repeated ones are served from it. With a ViewBatcher,
+ * concurrent views of one place are computed together, at the time
+ * rounded to its step.
+ *
+ * GET /metrics gives request counts, latency percentiles, cache hits and
+ * batch sizes.
+ */
+public class SkyServer {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_SIZE = 1024; // screen side for binary views
+
+	// headers and body go out in separate writes, which with Nagle on stall
+	// each keep-alive response for a delayed ack (~40 ms)
+	static {
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final Sky sky;
+	private final HttpServer server;
+	private final LatencyStats stats = new LatencyStats(); // view requests
+	private final ThreadLocal<SkyView> views = new ThreadLocal<SkyView>() {
+		@Override
+		protected SkyView initialValue() {
+			return new SkyView();
+		}
+	};
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+	private final ViewCache cache; // null if none
+	private final ViewBatcher batcher; // null if none
+	private ExecutorService own; // executor we made, if any
+
+	/**
+	 * Makes a server for the sky on the given port (0 for any free port),
+	 * handling each request on its own thread
+	 */
+	public SkyServer(Sky sky, int port) throws IOException {
+		this(sky, port, null);
+	}
+
+	/**
+	 * Makes a server for the sky on the given port (0 for any free port),
+	 * running requests on the given executor
+	 */
+	public SkyServer(Sky sky, int port, Executor executor) throws IOException {
+		this(sky, port, executor, null);
+	}
+
+	/**
+	 * Makes a server for the sky on the given port (0 for any free port),
+	 * running requests on the given executor (null for a thread per
+	 * request) and serving views through the given cache (null for none)
+	 */
+	public SkyServer(Sky sky, int port, Executor executor, ViewCache cache) throws IOException {
+		this(sky, port, executor, cache, null);
+	}
+
+	/**
+	 * Makes a server for the sky on the given port (0 for any free port),
+	 * running requests on the given executor (null for a thread per
+	 * request), serving views through the given cache (null for none) and
+	 * computing them through the given batcher (null for none)
+	 */
+	public SkyServer(Sky sky, int port, Executor executor, ViewCache cache, ViewBatcher batcher)
+			throws IOException {
+		this.sky = sky;
+		this.cache = cache;
+		this.batcher = batcher;
+		server = HttpServer.create(new InetSocketAddress(port), 256);
+		if (executor == null) {
+			own = Executors.newCachedThreadPool();
+			executor = own;
+		}
+		server.setExecutor(executor);
+		server.createContext("/view", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				view(ex);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				metrics(ex);
+			}
+		});
+	}
+
+	/**
+	 * Starts serving
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops serving, waiting up to the given seconds for requests to finish
+	 */
+	public void stop(int seconds) {
+		server.stop(seconds);
+		if (own != null)
+			own.shutdown();
+	}
+
+	/**
+	 * Gets the port being served
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Gets latency statistics of view requests
+	 */
+	public LatencyStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Gets the view cache, or null if there's none
+	 */
+	public ViewCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Gets the view batcher, or null if there's none
+	 */
+	public ViewBatcher getBatcher() {
+		return batcher;
+	}
+
+	/**
+	 * Handles a view request
+	 */
+	private void view(HttpExchange ex) throws IOException {
+		long t0 = System.nanoTime();
+		try {
+
+			// read pose
+			Map<String,String> q = query(ex.getRequestURI().getRawQuery());
+			double rad = Math.PI / 180;
+			CoordTrans ct = new CoordTrans(num(q, "lat", 0) * rad, num(q, "lon", 0) * rad,
+					num(q, "el", 45) * rad, num(q, "az", 0) * rad,
+					num(q, "spin", 0) * rad, num(q, "ang", 60) * rad);
+			long time = q.containsKey("time") ? Long.parseLong(q.get("time"))
+					: System.currentTimeMillis();
+			final boolean horizon = !"0".equals(q.get("horizon"));
+			final Projection proj = q.containsKey("proj") ? Projection.forName(q.get("proj"))
+					: Projection.ORTHOGRAPHIC;
+			final boolean bin = "bin".equals(q.get("format"));
+			final boolean screen = bin || q.containsKey("w") || q.containsKey("h");
+			final int w = (int) num(q, "w", DEFAULT_SIZE);
+			final int h = (int) num(q, "h", DEFAULT_SIZE);
+			String type = bin ? "application/octet-stream" : "application/json";
+
+			// look and encode, or reuse the view of the rounded pose
+			final SkySnapshot snap = sky.getSnapshot();
+			if (cache == null) {
+				int n = render(snap, ct, time, horizon, proj, bin, screen, w, h);
+				send(ex, 200, type, buffers.get().array(), n);
+			} else {
+				final ViewCache.Key key = cache.key(snap.getVersion(), ct, time,
+						proj + (horizon ? "" : " nohorizon") + (screen ? " " + w + "x" + h : "")
+						+ (bin ? " bin" : " json"));
+				byte[] body = cache.get(key, new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						int n = render(snap, key.getCoordTrans(), key.getTime(), horizon, proj, bin,
+								screen, w, h);
+						return Arrays.copyOf(buffers.get().array(), n);
+					}
+				});
+				send(ex, 200, type, body, body.length);
+			}
+
+		} catch (IllegalArgumentException e) { // including NumberFormatException
+			byte[] body = ("bad parameter: " + e.getMessage()).getBytes("UTF-8");
+			send(ex, 400, "text/plain", body, body.length);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Problem computing view", e);
+		} finally {
+			ex.close();
+			stats.record(System.nanoTime() - t0);
+		}
+	}
+
+	/**
+	 * Computes a view into this thread's buffer, culled to a w x h screen
+	 * if screen is set
+	 * @return number of bytes
+	 */
+	private int render(SkySnapshot snap, CoordTrans ct, long time, boolean horizon,
+			Projection proj, boolean bin, boolean screen, int w, int h) throws IOException {
+		SkyView view = views.get();
+		view.setProjection(proj);
+		view.setScreen(screen ? w : 0, screen ? h : 0);
+		if (batcher == null)
+			view.look(snap, ct, time, horizon);
+		else
+			batcher.look(snap, view, ct, time, horizon);
+		if (bin) {
+			ByteBuffer buf = buffer(view.encodedSize());
+			return view.encode(buf, w, h);
+		}
+		byte[] body = json(view).getBytes("UTF-8");
+		buffer(body.length).put(body);
+		return body.length;
+	}
+
+	/**
+	 * Handles a metrics request
+	 */
+	private void metrics(HttpExchange ex) throws IOException {
+		try {
+			SkySnapshot snap = sky.getSnapshot();
+			StringBuilder sb = new StringBuilder();
+			sb.append("view_requests ").append(stats.getCount()).append('\n');
+			sb.append("view_throughput ").append(String.format("%.1f", stats.getThroughput()))
+					.append('\n');
+			sb.append("view_latency_mean_us ").append(String.format("%.0f", stats.getMean()))
+					.append('\n');
+			sb.append("view_latency_p50_us ").append(stats.percentile(0.5)).append('\n');
+			sb.append("view_latency_p99_us ").append(stats.percentile(0.99)).append('\n');
+			sb.append("view_latency_max_us ").append(stats.getMax()).append('\n');
+			sb.append("catalog_version ").append(snap.getVersion()).append('\n');
+			sb.append("catalog_stars ").append(snap.getStars().size()).append('\n');
+			Footprint fp = sky.footprint();
+			for (Map.Entry<String,Long> part : fp.getParts().entrySet())
+				sb.append("footprint_").append(part.getKey()).append("_bytes ")
+						.append(part.getValue()).append('\n');
+			sb.append("footprint_bytes ").append(fp.total()).append('\n');
+			if (cache != null)
+				cache.metrics(sb);
+			if (batcher != null)
+				batcher.metrics(sb);
+			byte[] body = sb.toString().getBytes("UTF-8");
+			send(ex, 200, "text/plain", body, body.length);
+		} finally {
+			ex.close();
+		}
+	}
+
+	/**
+	 * Writes a view as compact JSON
+	 */
+	static String json(SkyView view) {
+		StringBuilder sb = new StringBuilder(32 * view.size() + 64);
+		sb.append("{\"stars\":[");
+		for (int i = 0; i < view.size(); i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append('[').append(view.getStar(i).ID_NUM).append(',')
+					.append(view.getX(i)).append(',').append(view.getY(i)).append(']');
+		}
+		sb.append("],\"consts\":[");
+		List<Constellation> cons = view.getConst();
+		for (int i = 0; i < cons.size(); i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(cons.get(i).ID_NUM);
+		}
+		sb.append("],\"lines\":[");
+		float[] lines = new float[2 * Constellation.DIM * view.numLines()];
+		view.getLines(lines, 0);
+		for (int i = 0; i < lines.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(lines[i]);
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Gets this thread's encoding buffer, cleared, with room for size bytes
+	 */
+	private ByteBuffer buffer(int size) {
+		ByteBuffer buf = buffers.get();
+		if (buf == null || buf.capacity() < size) {
+			buf = ByteBuffer.allocate(Math.max(size, 2 * (buf == null ? 0 : buf.capacity())));
+			buffers.set(buf);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Sends a whole response
+	 */
+	private static void send(HttpExchange ex, int code, String type, byte[] body, int length)
+			throws IOException {
+		ex.getResponseHeaders().set("Content-Type", type);
+		ex.sendResponseHeaders(code, length);
+		OutputStream os = ex.getResponseBody();
+		os.write(body, 0, length);
+		os.close();
+	}
+
+	/**
+	 * Splits a raw query string into parameters
+	 */
+	private static Map<String,String> query(String raw) {
+		Map<String,String> q = new HashMap<String,String>();
+		if (raw == null)
+			return q;
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				q.put(pair.substring(0, eq), pair.substring(eq + 1));
+		}
+		return q;
+	}
+
+	/**
+	 * Gets a numeric parameter, or the default if missing
+	 */
+	private static double num(Map<String,String> q, String key, double def) {
+		String v = q.get(key);
+		return v == null ? def : Double.parseDouble(v);
+	}
+
+	/**
+	 * Usage: SkyServer [port] [stars.json const.json magLimit] [cacheMB, 0 for none]
+	 * [batch window us, 0 for none]
+	 */
+	public static void main(String[] args) {
+
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		String starFile = args.length > 1 ? args[1] : "stars.json";
+		String constFile = args.length > 2 ? args[2] : "const.json";
+		double mag = args.length > 3 ? Double.parseDouble(args[3]) : 6.5;
+		long cacheMB = args.length > 4 ? Long.parseLong(args[4]) : ViewCache.DEFAULT_BYTES >> 20;
+		long batchMicros = args.length > 5 ? Long.parseLong(args[5]) : 0;
+
+		try {
+			Sky sky = Sky.load(new File(starFile), new File(constFile), mag);
+			ViewCache cache = cacheMB > 0 ? new ViewCache(cacheMB << 20,
+					ViewCache.DEFAULT_ANGLE_STEP, ViewCache.DEFAULT_TIME_STEP) : null;
+			ViewBatcher batcher = batchMicros > 0 ? new ViewBatcher(batchMicros,
+					ViewBatcher.DEFAULT_MAX_BATCH, ViewBatcher.DEFAULT_TIME_STEP) : null;
+			SkyServer server = new SkyServer(sky, port, null, cache, batcher);
+			server.start();
+			System.out.println("serving " + sky.getStars().size() + " stars on port "
+					+ server.getPort());
+		} catch (IOException e) {
+			System.out.println("Problem starting server: " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package com.nderr.jconstellate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One immutable version of a sky's catalog: stars, constellations, the view
+ * set, magnitude cutoff and derived indexes. Updates make a new version that
+ * shares every structure they don't change with the old one, so readers
+ * holding the old version are never affected.
+ */
+public class SkySnapshot {
+
+	// brightest first
+	public static final Comparator<Star> BY_MAG = new Comparator<Star>() {
+		public int compare(Star a, Star b) {
+			return Double.compare(a.getMag(), b.getMag());
+		}
+	};
+
+	private final long version; // counts published versions
+	private final long catalogVersion; // counts changes to the star set
+	private final Map<Integer,Star> directory; // every star we have
+	private final Star[] byMag; // every star, brightest first
+	private final double magLimit; // magnitude cutoff
+	private final int numVisible; // stars brighter than the cutoff
+	private final Map<String,Constellation> allConst; // every constellation
+	private final Map<String,Constellation> visConst; // constellations we're looking at
+	private final FigureBuffer figures; // lines of all constellations
+	private final SkyIndex index; // stars by sky cell
+	private final MembershipIndex members; // figures of each star and back
+	private volatile HorizonIndex horizon; // stars by declination, made when needed
+	private volatile int[] viewFigures; // figure numbers of visConst, made when needed
+
+	/**
+	 * Makes an empty snapshot
+	 */
+	SkySnapshot() {
+		this(0, 0, new HashMap<Integer,Star>(), new Star[0], Sky.DEFAULT_MAG,
+				new HashMap<String,Constellation>(), new HashMap<String,Constellation>(),
+				null, null, null);
+	}
+
+	private SkySnapshot(long version, long catalogVersion, Map<Integer,Star> directory,
+			Star[] byMag, double magLimit, Map<String,Constellation> allConst,
+			Map<String,Constellation> visConst, FigureBuffer figures, SkyIndex index,
+			MembershipIndex members) {
+		this.version = version;
+		this.catalogVersion = catalogVersion;
+		this.directory = directory;
+		this.byMag = byMag;
+		this.magLimit = magLimit;
+		this.numVisible = countBrighter(byMag, magLimit);
+		this.allConst = allConst;
+		this.visConst = visConst;
+		this.figures = figures != null ? figures
+				: new FigureBuffer(allConst.values());
+		this.index = index != null ? index : new SkyIndex(directory.values());
+		this.members = members != null ? members
+				: new MembershipIndex(allConst.values());
+	}
+
+	/**
+	 * Makes the first snapshot of a sky from its stars and constellations.
+	 * Stars get their J2000 positions, and constellations are linked.
+	 */
+	static SkySnapshot build(Collection<Star> stars, Collection<Constellation> cons, double magL) {
+
+		// put each star in directory
+		Map<Integer,Star> directory = new HashMap<Integer,Star>(stars.size()*10/7);
+		for (Star st : stars) {
+			st.setHat();
+			directory.put(st.ID_NUM, st);
+		}
+
+		// put each constellation in map and link its stars to directory stars
+		Map<String,Constellation> allConst = new HashMap<String,Constellation>(cons.size()*10/7);
+		for (Constellation c : cons) {
+			c.linkStars(directory);
+			allConst.put(c.getCode(), c);
+		}
+
+		return new SkySnapshot(1, 1, directory, sortByMag(directory.values()), magL,
+				allConst, new HashMap<String,Constellation>(), null, null, null);
+	}
+
+	/**
+	 * Makes a snapshot from saved parts: stars already positioned,
+	 * constellations already linked to the directory, and a rebuilt index
+	 */
+	static SkySnapshot restore(long version, long catalogVersion, Map<Integer,Star> directory,
+			Star[] byMag, double magL, Map<String,Constellation> allConst,
+			Map<String,Constellation> visConst, SkyIndex index) {
+		return new SkySnapshot(version, catalogVersion, directory, byMag, magL,
+				allConst, visConst, null, index, null);
+	}
+
+	/**
+	 * New version with the given constellation added (or replacing the one
+	 * with its code, also in the view set)
+	 */
+	SkySnapshot withConst(Constellation c) {
+		c.linkStars(directory);
+		Map<String,Constellation> all = new HashMap<String,Constellation>(allConst);
+		all.put(c.getCode(), c);
+		Map<String,Constellation> vis = visConst;
+		if (vis.containsKey(c.getCode())) {
+			vis = new HashMap<String,Constellation>(visConst);
+			vis.put(c.getCode(), c);
+		}
+		return new SkySnapshot(version + 1, catalogVersion, directory, byMag,
+				magLimit, all, vis, null, index,
+				members.with(c, allConst.get(c.getCode()))).sharing(this);
+	}
+
+	/**
+	 * New version viewing the given constellations
+	 */
+	SkySnapshot withView(Map<String,Constellation> vis) {
+		return new SkySnapshot(version + 1, catalogVersion, directory, byMag,
+				magLimit, allConst, vis, figures, index, members).sharing(this);
+	}
+
+	/**
+	 * New version with a different magnitude cutoff
+	 */
+	SkySnapshot withMag(double newMag) {
+		return new SkySnapshot(version + 1, catalogVersion, directory, byMag,
+				newMag, allConst, visConst, figures, index, members).sharing(this);
+	}
+
+	/**
+	 * Shares lazily built indexes of an older version with the same stars
+	 */
+	private SkySnapshot sharing(SkySnapshot old) {
+		horizon = old.horizon;
+		return this;
+	}
+
+	/**
+	 * New version with the given stars added, or replacing stars of the same
+	 * id. The stars are copied, so ones already published are never changed.
+	 * Constellations using a replaced star are relinked as copies.
+	 * @param positioned whether the stars' hats are already set, or should be
+	 * set to their J2000 positions
+	 */
+	SkySnapshot withStars(Collection<Star> stars, boolean positioned) {
+
+		// new directory, sharing all untouched stars
+		Map<Integer,Star> dir = new HashMap<Integer,Star>(directory);
+		Set<Integer> replaced = new HashSet<Integer>();
+		for (Star st : stars) {
+			Star copy = new Star(st);
+			if (!positioned)
+				copy.setHat();
+			if (dir.put(copy.ID_NUM, copy) != null)
+				replaced.add(copy.ID_NUM);
+		}
+
+		// copy and relink constellations that used a replaced star
+		Map<String,Constellation> all = new HashMap<String,Constellation>(allConst);
+		Map<String,Constellation> vis = new HashMap<String,Constellation>(visConst);
+		for (Constellation c : allConst.values()) {
+			if (uses(c, replaced)) {
+				Constellation copy = new Constellation(c);
+				copy.linkStars(dir);
+				all.put(copy.getCode(), copy);
+				if (vis.get(copy.getCode()) == c)
+					vis.put(copy.getCode(), copy);
+			}
+		}
+
+		return new SkySnapshot(version + 1, positioned ? catalogVersion : catalogVersion + 1,
+				dir, sortByMag(dir.values()), magLimit, all, vis, null, null, null);
+	}
+
+	/**
+	 * Returns whether the constellation has a line to or from one of the
+	 * given star ids
+	 */
+	private static boolean uses(Constellation c, Set<Integer> ids) {
+		for (int[] line : c.getLineIds())
+			if (ids.contains(line[Constellation.START]) || ids.contains(line[Constellation.END]))
+				return true;
+		return false;
+	}
+
+	/**
+	 * New version with every star moved to the position packed (x,y,z per
+	 * star) in p for the star of its id in stars, as from a Propagator. The
+	 * stars are copies, so older versions keep their positions, but
+	 * magnitudes and lines don't change: the magnitude order, figure buffer
+	 * and membership index keep their arrays, and only the spatial index is
+	 * built again.
+	 */
+	SkySnapshot withPositions(Star[] stars, double[] p) {
+
+		// moved copies of every star
+		Map<Integer,Star> dir = new HashMap<Integer,Star>(directory.size()*10/7 + 1);
+		for (int i = 0; i < stars.length; i++) {
+			Star old = directory.get(stars[i].ID_NUM);
+			if (old == null)
+				continue;
+			Star st = new Star(old);
+			int j = Vector.DIM * i;
+			st.setHat(p[j + Vector.X], p[j + Vector.Y], p[j + Vector.Z]);
+			dir.put(st.ID_NUM, st);
+		}
+		if (dir.size() < directory.size()) // stars not given stay put
+			for (Star st : directory.values())
+				if (!dir.containsKey(st.ID_NUM))
+					dir.put(st.ID_NUM, st);
+
+		// same order, as magnitudes don't move
+		Star[] mag = new Star[byMag.length];
+		for (int i = 0; i < mag.length; i++)
+			mag[i] = dir.get(byMag[i].ID_NUM);
+
+		// every constellation relinked as a copy
+		Map<Constellation,Constellation> copies = new HashMap<Constellation,Constellation>(
+				allConst.size()*10/7 + 1);
+		Map<String,Constellation> all = new HashMap<String,Constellation>(allConst.size()*10/7 + 1);
+		for (Constellation c : allConst.values()) {
+			Constellation copy = new Constellation(c);
+			copy.linkStars(dir);
+			copies.put(c, copy);
+			all.put(copy.getCode(), copy);
+		}
+		Map<String,Constellation> vis = new HashMap<String,Constellation>(visConst.size()*10/7 + 1);
+		for (Constellation c : visConst.values())
+			vis.put(c.getCode(), copies.get(c));
+
+		SkySnapshot moved = new SkySnapshot(version + 1, catalogVersion, dir, mag, magLimit,
+				all, vis, figures.moved(dir, copies), null, members.moved(dir, copies));
+		moved.viewFigures = viewFigures; // same numbering
+		return moved;
+	}
+
+	/**
+	 * Sorts stars brightest first
+	 */
+	private static Star[] sortByMag(Collection<Star> stars) {
+		Star[] sorted = stars.toArray(new Star[stars.size()]);
+		Arrays.sort(sorted, BY_MAG);
+		return sorted;
+	}
+
+	/**
+	 * Number of stars at the start of a brightest first array that are
+	 * brighter than the limit
+	 */
+	private static int countBrighter(Star[] sorted, double limit) {
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid].getMag() < limit)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Gets the version number, increasing with every update
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the catalog version, increasing when stars are added or replaced
+	 */
+	public long getCatalogVersion() {
+		return catalogVersion;
+	}
+
+	/**
+	 * Gets the star directory (all stars), unmodifiable
+	 */
+	public Map<Integer,Star> getStars() {
+		return Collections.unmodifiableMap(directory);
+	}
+
+	/**
+	 * Gets star of provided id
+	 */
+	public Star getStar(int id) {
+		return directory.get(id);
+	}
+
+	/**
+	 * Gets all stars, brightest first
+	 */
+	public List<Star> getByMag() {
+		return Collections.unmodifiableList(Arrays.asList(byMag));
+	}
+
+	/**
+	 * Gets the stars brighter than the cutoff, brightest first
+	 */
+	public List<Star> getVisible() {
+		return getByMag().subList(0, numVisible);
+	}
+
+	/**
+	 * Gets the magnitude cutoff
+	 */
+	public double getMagLimit() {
+		return magLimit;
+	}
+
+	/**
+	 * Gets all constellations, unmodifiable
+	 */
+	public Map<String,Constellation> getConst() {
+		return Collections.unmodifiableMap(allConst);
+	}
+
+	/**
+	 * Gets the constellations being viewed, unmodifiable
+	 */
+	public Map<String,Constellation> getViewConst() {
+		return Collections.unmodifiableMap(visConst);
+	}
+
+	/**
+	 * Gets the numbers in getFigures() of the constellations being viewed,
+	 * made on first use, so a frame can walk them without iterating the map
+	 */
+	public int[] getViewFigures() {
+		int[] f = viewFigures;
+		if (f == null) {
+			f = new int[visConst.size()];
+			int k = 0;
+			for (Constellation c : visConst.values()) {
+				int n = figures.figure(c);
+				if (n >= 0)
+					f[k++] = n;
+			}
+			f = Arrays.copyOf(f, k);
+			viewFigures = f; // racing builders make equal arrays
+		}
+		return f;
+	}
+
+	/**
+	 * Gets the shared vertex/index buffer of all constellation lines
+	 */
+	public FigureBuffer getFigures() {
+		return figures;
+	}
+
+	/**
+	 * Gets the spatial index of all stars
+	 */
+	public SkyIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Gets estimated retained bytes of this version by part. Parts shared
+	 * with other versions are counted in full.
+	 */
+	public Footprint footprint() {
+
+		Footprint fp = new Footprint();
+		for (Star st : byMag)
+			fp.add("stars", st.footprint()).add("vectors", st.hatFootprint());
+		fp.add("directory", Footprint.hashMap(directory.size())
+				+ (long) directory.size() * Footprint.BOXED);
+		fp.add("byMag", Footprint.array(byMag.length, Footprint.REF));
+		for (Constellation c : allConst.values())
+			fp.add("constellations", c.footprint());
+		fp.add("constMaps", Footprint.hashMap(allConst.size())
+				+ Footprint.hashMap(visConst.size()));
+		fp.add("figures", figures.footprint());
+		fp.add("index", index.footprint());
+		fp.add("members", members.footprint());
+		HorizonIndex h = horizon;
+		if (h != null)
+			fp.add("horizon", h.footprint());
+		return fp;
+	}
+
+	/**
+	 * Gets the index of which constellations use which stars
+	 */
+	public MembershipIndex getMembers() {
+		return members;
+	}
+
+	/**
+	 * Gets the declination band index of all stars, building it on first use
+	 */
+	public HorizonIndex getHorizonIndex() {
+		HorizonIndex h = horizon;
+		if (h == null) {
+			h = new HorizonIndex(directory.values());
+			horizon = h; // racing builders make equal indexes
+		}
+		return h;
+	}
+}
@@ -0,0 +1,512 @@
+package com.nderr.jconstellate;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The stars and constellations in one view of a sky snapshot, with their
+ * normalized screen coordinates. Unlike Sky.lookAt this writes nothing into
+ * the shared stars, so any number of views can be computed at once against
+ * the same snapshot, one SkyView per thread. A SkyView can be reused for
+ * any number of views, each in its own Projection.
+ *
+ * A SkyView owns every buffer a view needs, so once they have grown to fit
+ * (and the snapshot's lazy parts are built) looking, reading back and
+ * encoding allocate nothing; FrameCheck verifies this.
+ */
+public class SkyView {
+
+	private static final int INITIAL = 256;
+
+	// encoded layout, in the byte order of the buffer:
+	// header  int MAGIC, int w, int h, int stars, int lines
+	// stars   int id[stars], float xy[2*stars], float mag[stars]
+	// lines   float [x1,y1,x2,y2][lines]
+	public static final int MAGIC = 0x534b5956; // "SKYV"
+	public static final int HEADER = 20; // bytes
+
+	private Star[] stars = new Star[INITIAL]; // stars in view
+	private float[] x = new float[INITIAL]; // normalized x of each
+	private float[] y = new float[INITIAL]; // normalized y of each
+	private int count = 0; // number of stars in view
+	private final List<Constellation> cons = new ArrayList<Constellation>();
+	private int[] figs = new int[INITIAL]; // figure numbers of cons
+	private FigureBuffer figures; // lines of the last view's snapshot
+	private final List<Star> candidates = new ArrayList<Star>(INITIAL);
+	private final double[] m = new double[9]; // screen matrix of the last view
+	private final double[] zenith = new double[Vector.DIM];
+	private Projection proj = Projection.ORTHOGRAPHIC;
+	private double[] xyz = new double[Vector.DIM * INITIAL]; // directions to project
+	private float[] lineX = new float[2 * INITIAL]; // projected line ends
+	private float[] lineY = new float[2 * INITIAL];
+	private int lineCount = -1; // lines projected for the last view, -1 if not yet
+	private int screenW = 0, screenH = 0; // screen to cull to, 0 if none
+	private final double[] planes = new double[4 * Projection.MAX_PLANES]; // its frustum
+	private int numPlanes = 0; // planes of the last view
+	private double reach = 0; // angle from line of sight the last view reaches
+	private double minDot = 1; // cos of reach
+	private boolean horizon = false; // whether the last view drops stars below the horizon
+	private double zx, zy, zz; // its zenith
+
+	/**
+	 * Finds the stars and constellations in view of the coord transfer
+	 * object at the provided time, brighter than the snapshot's cutoff
+	 * @param horizon whether to also drop stars below the horizon
+	 * @return number of stars in view
+	 */
+	public int look(SkySnapshot snap, CoordTrans ct, long time, boolean horizon) {
+		ct.getMatrix(time, m);
+		return look(snap, m, ct.getAngDiam(), horizon ? ct.getZenith(time, zenith) : null);
+	}
+
+	/**
+	 * Finds the stars and constellations in view of screen matrix m (as
+	 * from CoordTrans.getMatrix or CameraPath.getMatrix) for a view of the
+	 * given angular diameter, brighter than the snapshot's cutoff
+	 * @param zen zenith direction to drop stars below the horizon of, or
+	 * null to keep them
+	 * @return number of stars in view
+	 */
+	public int look(SkySnapshot snap, double[] m, double angDiam, double[] zen) {
+		aim(m, angDiam);
+		candidates.clear();
+		snap.getIndex().query(this.m[6], this.m[7], this.m[8], reach, planes, numPlanes,
+				snap.getMagLimit(), candidates);
+		return finish(snap, zen);
+	}
+
+	/**
+	 * Sets up a view of screen matrix m, working out what reaches the
+	 * screen's corners in this projection and the screen's sides if it
+	 * has one; the caller then fills getCandidates (as ViewBatcher does
+	 * for several views at once) and calls finish
+	 */
+	void aim(double[] m, double angDiam) {
+		if (m != this.m)
+			System.arraycopy(m, 0, this.m, 0, 9);
+		reach = proj.reach(angDiam);
+		numPlanes = screenW > 0 ? proj.frustum(this.m, screenW, screenH, planes) : 0;
+	}
+
+	/**
+	 * Finishes a view set up by aim from the index's stars within
+	 * getReach of the line of sight and inside getPlanes
+	 * @param zen zenith direction to drop stars below the horizon of, or
+	 * null to keep them
+	 * @return number of stars in view
+	 */
+	int finish(SkySnapshot snap, double[] zen) {
+
+		keep(snap, zen);
+
+		// constellations with a star in view, walking the figure buffer
+		// rather than the constellations' own collections
+		Star[] verts = figures.getVertices();
+		int[] indices = figures.getIndices();
+		int[] start = figures.getStarts();
+		int[] viewed = snap.getViewFigures();
+		for (int k = 0; k < viewed.length; k++) {
+			int f = viewed[k];
+			for (int i = Constellation.DIM * start[f]; i < Constellation.DIM * start[f + 1]; i++) {
+				Vector v = verts[indices[i]].getHat();
+				if (sees(v.getX(), v.getY(), v.getZ())) {
+					addFigure(f);
+					break;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Finishes n views set up by aim, as finish with zens[k] for view k,
+	 * walking the figure buffer once for all of them, so each figure star
+	 * is read once rather than once a view
+	 */
+	static void finish(SkySnapshot snap, SkyView[] views, double[][] zens, int n) {
+
+		for (int k = 0; k < n; k++)
+			views[k].keep(snap, zens[k]);
+
+		// views still looking for a star of each figure
+		Star[] verts = snap.getFigures().getVertices();
+		int[] indices = snap.getFigures().getIndices();
+		int[] start = snap.getFigures().getStarts();
+		int[] viewed = snap.getViewFigures();
+		int[] looking = new int[n];
+		for (int k = 0; k < viewed.length; k++) {
+			int f = viewed[k];
+			int left = n;
+			for (int q = 0; q < n; q++)
+				looking[q] = q;
+			for (int i = Constellation.DIM * start[f]; i < Constellation.DIM * start[f + 1]
+					&& left > 0; i++) {
+				Vector v = verts[indices[i]].getHat();
+				double x = v.getX(), y = v.getY(), z = v.getZ();
+				for (int q = 0; q < left; ) {
+					SkyView view = views[looking[q]];
+					if (view.sees(x, y, z)) {
+						view.addFigure(f);
+						looking[q] = looking[--left];
+					} else {
+						q++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps the candidates above the horizon, projects them, and readies
+	 * the view for its figures
+	 */
+	private void keep(SkySnapshot snap, double[] zen) {
+
+		// line of sight and zenith
+		double[] m = this.m;
+		horizon = zen != null;
+		zx = horizon ? zen[Vector.X] : 0;
+		zy = horizon ? zen[Vector.Y] : 0;
+		zz = horizon ? zen[Vector.Z] : 0;
+		minDot = SkyIndex.minDot(reach);
+
+		// keep those above horizon, then project them all at once
+		count = 0;
+		lineCount = -1;
+		ensure(candidates.size());
+		for (int i = 0; i < candidates.size(); i++) {
+			Star st = candidates.get(i);
+			Vector v = st.getHat();
+			if (horizon && zx*v.getX() + zy*v.getY() + zz*v.getZ() <= 0)
+				continue;
+			stars[count] = st;
+			int j = Vector.DIM * count;
+			xyz[j] = v.getX();
+			xyz[j + 1] = v.getY();
+			xyz[j + 2] = v.getZ();
+			count++;
+		}
+		proj.project(m, xyz, count, x, y);
+
+		// sides that aren't planes on the sky are checked once projected
+		if (screenW > 0 && numPlanes == 0) {
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				if (Projection.onScreen(x[i], y[i], screenW, screenH)) {
+					stars[kept] = stars[i];
+					x[kept] = x[i];
+					y[kept] = y[i];
+					kept++;
+				}
+			}
+			for (int i = kept; i < count; i++)
+				stars[i] = null;
+			count = kept;
+		}
+
+		// no figures yet
+		figures = snap.getFigures();
+		int viewed = snap.getViewFigures().length;
+		if (figs.length < viewed)
+			figs = new int[viewed];
+		cons.clear();
+	}
+
+	/**
+	 * Whether direction (x,y,z) is in the view being finished
+	 */
+	private boolean sees(double x, double y, double z) {
+		return m[6]*x + m[7]*y + m[8]*z > minDot
+				&& SkyIndex.inside(planes, numPlanes, x, y, z)
+				&& (!horizon || zx*x + zy*y + zz*z > 0);
+	}
+
+	/**
+	 * Adds figure f to the constellations in view
+	 */
+	private void addFigure(int f) {
+		figs[cons.size()] = f;
+		cons.add(figures.getFigure(f));
+	}
+
+	/**
+	 * Gets the screen matrix of the view set up last
+	 */
+	double[] getMatrix() {
+		return m;
+	}
+
+	/**
+	 * Gets the angle from the line of sight the view set up last reaches
+	 */
+	double getReach() {
+		return reach;
+	}
+
+	/**
+	 * Gets the planes bounding the view set up last, packed as for
+	 * SkyIndex.query
+	 */
+	double[] getPlanes() {
+		return planes;
+	}
+
+	/**
+	 * Gets number of planes bounding the view set up last
+	 */
+	int getNumPlanes() {
+		return numPlanes;
+	}
+
+	/**
+	 * Gets the list finish takes the index's stars from
+	 */
+	List<Star> getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Grows the star arrays to hold at least n
+	 */
+	private void ensure(int n) {
+		if (stars.length >= n && xyz.length >= Vector.DIM * n)
+			return;
+		int size = Math.max(n, 2 * stars.length);
+		stars = new Star[size];
+		x = new float[size];
+		y = new float[size];
+		xyz = new double[Vector.DIM * size];
+	}
+
+	/**
+	 * Projects the ends of the lines of the constellations in view into
+	 * lineX and lineY, once per view
+	 * @return number of lines
+	 */
+	private int projectLines() {
+		if (lineCount >= 0)
+			return lineCount;
+
+		// gather ends
+		int ends = Constellation.DIM * numLines();
+		if (xyz.length < Vector.DIM * ends)
+			xyz = new double[Vector.DIM * ends];
+		if (lineX.length < ends) {
+			lineX = new float[Math.max(ends, 2 * lineX.length)];
+			lineY = new float[lineX.length];
+		}
+		Star[] verts = figures.getVertices();
+		int[] indices = figures.getIndices();
+		int[] start = figures.getStarts();
+		int j = 0;
+		for (int k = 0; k < cons.size(); k++) {
+			int f = figs[k];
+			for (int i = Constellation.DIM * start[f]; i < Constellation.DIM * start[f + 1]; i++) {
+				Vector v = verts[indices[i]].getHat();
+				xyz[j++] = v.getX();
+				xyz[j++] = v.getY();
+				xyz[j++] = v.getZ();
+			}
+		}
+
+		proj.project(m, xyz, ends, lineX, lineY);
+		lineCount = ends / Constellation.DIM;
+		return lineCount;
+	}
+
+	/**
+	 * Sets the screen later views are culled to, as w x h pixels (the
+	 * aspect ratio is what matters), or 0 x 0 to keep everything within
+	 * the circle through its corners, the default
+	 */
+	public void setScreen(int w, int h) {
+		if (w < 0 || h < 0 || (w == 0) != (h == 0))
+			throw new IllegalArgumentException("bad screen " + w + " x " + h);
+		screenW = w;
+		screenH = h;
+	}
+
+	/**
+	 * Sets the projection of later views; orthographic by default
+	 */
+	public void setProjection(Projection proj) {
+		this.proj = proj;
+	}
+
+	public Projection getProjection() {
+		return proj;
+	}
+
+	/**
+	 * Gets number of stars in view
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets i-th star in view
+	 */
+	public Star getStar(int i) {
+		return stars[i];
+	}
+
+	/**
+	 * Gets normalized x coordinate of i-th star in view
+	 */
+	public float getX(int i) {
+		return x[i];
+	}
+
+	/**
+	 * Gets normalized y coordinate of i-th star in view
+	 */
+	public float getY(int i) {
+		return y[i];
+	}
+
+	/**
+	 * Gets number of lines of the constellations in view
+	 */
+	public int numLines() {
+		if (lineCount >= 0)
+			return lineCount;
+		if (figures == null)
+			return 0;
+		int[] start = figures.getStarts();
+		int n = 0;
+		for (int k = 0; k < cons.size(); k++)
+			n += start[figs[k] + 1] - start[figs[k]];
+		return n;
+	}
+
+	/**
+	 * Writes the lines of the constellations in view as normalized
+	 * [x1,y1,x2,y2,...] into out, starting at offset
+	 * @return number of floats written
+	 */
+	public int getLines(float[] out, int offset) {
+		int ends = Constellation.DIM * projectLines();
+		int index = offset;
+		for (int i = 0; i < ends; i++) {
+			out[index++] = lineX[i];
+			out[index++] = lineY[i];
+		}
+		return index - offset;
+	}
+
+	/**
+	 * Gets number of bytes encode will write
+	 */
+	public int encodedSize() {
+		return HEADER + 16 * count + 16 * numLines();
+	}
+
+	/**
+	 * Writes the view with screen coordinates for a screen of size w x h
+	 * into out at its position, which is advanced past it. out may be a
+	 * direct buffer, ready to be written to a channel once flipped.
+	 * @return number of bytes written
+	 * @throws BufferOverflowException if out has less than
+	 * encodedSize() bytes remaining, in which case nothing is written
+	 */
+	public int encode(ByteBuffer out, int w, int h) {
+
+		int lines = projectLines();
+		int size = HEADER + 16 * count + 16 * lines;
+		if (out.remaining() < size)
+			throw new BufferOverflowException();
+
+		// same scaling as Star.getX/getY
+		double half = Math.sqrt((double) w*w + (double) h*h) / 2;
+		float cx = w / 2;
+		float cy = h / 2;
+
+		// header
+		out.putInt(MAGIC).putInt(w).putInt(h).putInt(count).putInt(lines);
+
+		// stars
+		for (int i = 0; i < count; i++)
+			out.putInt(stars[i].ID_NUM);
+		for (int i = 0; i < count; i++)
+			out.putFloat((int) (half * x[i] + cx)).putFloat((int) (-half * y[i] + cy));
+		for (int i = 0; i < count; i++)
+			out.putFloat((float) stars[i].getMag());
+
+		// lines
+		for (int i = 0; i < Constellation.DIM * lines; i++)
+			out.putFloat((int) (half * lineX[i] + cx)).putFloat((int) (-half * lineY[i] + cy));
+		return size;
+	}
+
+	/**
+	 * Gets constellations with a star in view
+	 */
+	public List<Constellation> getConst() {
+		return cons;
+	}
+
+	/**
+	 * driver method for testing: views a synthetic sky on a wide screen in
+	 * each projection, culled to the screen's sides and to the circle
+	 * through its corners, checking both keep the same on-screen stars
+	 */
+	public static void main(String[] args) {
+
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int w = args.length > 1 ? Integer.parseInt(args[1]) : 1920;
+		int h = args.length > 2 ? Integer.parseInt(args[2]) : 480;
+		int reps = 200;
+
+		SyntheticCatalog cat = new SyntheticCatalog(n, 1);
+		Sky sky = new Sky(cat.stars(), new ArrayList<Constellation>(), 99);
+		SkySnapshot snap = sky.getSnapshot();
+		SkyView rect = new SkyView(), circle = new SkyView();
+		rect.setScreen(w, h);
+
+		for (Projection p : Projection.values()) {
+			rect.setProjection(p);
+			circle.setProjection(p);
+			double ang = p == Projection.GNOMONIC ? 1.5 : p == Projection.ORTHOGRAPHIC ? 1.2 : 2.5;
+			CoordTrans ct = new CoordTrans(0.7, -1.5, 0.6, 2.0, 0.4, ang);
+
+			// same stars on screen
+			rect.look(snap, ct, 0, false);
+			circle.look(snap, ct, 0, false);
+			Set<Integer> a = new HashSet<Integer>(), b = new HashSet<Integer>();
+			for (int i = 0; i < rect.size(); i++)
+				a.add(rect.getStar(i).ID_NUM);
+			int wide = 0;
+			for (int i = 0; i < circle.size(); i++) {
+				if (Projection.onScreen(circle.getX(i), circle.getY(i), w, h))
+					b.add(circle.getStar(i).ID_NUM);
+				else if (Projection.onScreen(circle.getX(i), circle.getY(i), w + 2, h + 2))
+					wide++; // within a pixel of a side, either way
+			}
+			Set<Integer> diff = new HashSet<Integer>(a);
+			diff.removeAll(b);
+			int extra = diff.size();
+			diff = new HashSet<Integer>(b);
+			diff.removeAll(a);
+			int missing = diff.size();
+
+			// time each
+			long t0 = System.nanoTime();
+			for (int r = 0; r < reps; r++)
+				rect.look(snap, ct, 0, false);
+			long t1 = System.nanoTime();
+			for (int r = 0; r < reps; r++)
+				circle.look(snap, ct, 0, false);
+			long t2 = System.nanoTime();
+			System.out.println(String.format("%-14s %6d in circle, %6d on screen "
+					+ "(%d extra at edge of %d, %d missing), %5.0f us vs %5.0f us", p,
+					circle.size(), rect.size(), extra, wide, missing, (t1 - t0) / 1000.0 / reps,
+					(t2 - t1) / 1000.0 / reps));
+		}
+	}
+}
@@ -0,0 +1,427 @@
+package com.nderr.jconstellate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A fully built sky snapshot saved to one file: stars in spatial index
+ * order with their J2000 and current (possibly epoch moved) unit vectors,
+ * the magnitude ordering, index cells and constellation lines. Loading maps
+ * the file, checks its format version and checksum, and bulk copies the
+ * arrays, so nothing is sorted, indexed or recomputed with trig again.
+ *
+ * Layout, big endian: header (MAGIC, FORMAT, payload length, payload CRC32,
+ * snapshot version, catalog version, magnitude cutoff), then the payload:
+ * string table, star columns, magnitude order, index cells, constellations.
+ */
+public class SnapshotFile {
+
+	public static final int MAGIC = 0x534b5953; // "SKYS"
+	public static final int FORMAT = 2; // bump on any layout change
+	public static final int HEADER = 4 + 4 + 8 + 8 + 8 + 8 + 8; // bytes
+	private static final int NONE = -1; // no string
+	private static final int NO_FLAM = Integer.MIN_VALUE;
+
+	/**
+	 * Saves the snapshot to the file
+	 */
+	public static void write(SkySnapshot snap, File file) throws IOException {
+
+		SkyIndex index = snap.getIndex();
+		Star[] stars = index.getStars();
+		int n = stars.length;
+
+		// strings, numbered
+		Map<String,Integer> strings = new HashMap<String,Integer>();
+		List<String> table = new ArrayList<String>();
+		for (Star st : stars) {
+			number(st.getName(), strings, table);
+			number(st.getBayer(), strings, table);
+			number(st.getCode(), strings, table);
+		}
+
+		// header, checksum patched in after
+		FileOutputStream fos = new FileOutputStream(file);
+		CRC32 crc = new CRC32();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+		dos.writeInt(MAGIC);
+		dos.writeInt(FORMAT);
+		dos.writeLong(0);
+		dos.writeLong(0);
+		dos.writeLong(snap.getVersion());
+		dos.writeLong(snap.getCatalogVersion());
+		dos.writeDouble(snap.getMagLimit());
+		dos.flush();
+		dos = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc),
+				1 << 16));
+
+		try {
+
+			// string table
+			dos.writeInt(table.size());
+			for (String s : table) {
+				byte[] b = s.getBytes("UTF-8");
+				dos.writeInt(b.length);
+				dos.write(b);
+			}
+
+			// star columns
+			dos.writeInt(n);
+			for (Star st : stars)
+				dos.writeInt(st.ID_NUM);
+			for (Star st : stars)
+				dos.writeDouble(st.getRA());
+			for (Star st : stars)
+				dos.writeDouble(st.getDec());
+			for (Star st : stars)
+				dos.writeDouble(st.getPMRA());
+			for (Star st : stars)
+				dos.writeDouble(st.getPMDec());
+			for (double m : index.getMags())
+				dos.writeDouble(m);
+			double[] j2000 = new double[Vector.DIM];
+			for (Star st : stars) {
+				st.getJ2000(j2000, 0);
+				for (double c : j2000)
+					dos.writeDouble(c);
+			}
+			for (double p : index.getPositions())
+				dos.writeDouble(p);
+			for (Star st : stars) {
+				dos.writeInt(id(st.getName(), strings));
+				dos.writeInt(id(st.getBayer(), strings));
+				dos.writeInt(id(st.getCode(), strings));
+				dos.writeInt(st.hasFlamsteed() ? st.getFlamsteed() : NO_FLAM);
+			}
+
+			// magnitude order, as positions in the star columns
+			Map<Star,Integer> row = new HashMap<Star,Integer>(n*10/7 + 1);
+			for (int i = 0; i < n; i++)
+				row.put(stars[i], i);
+			for (Star st : snap.getByMag())
+				dos.writeInt(row.get(st));
+
+			// index cells
+			dos.writeInt(index.getDivisions());
+			writeInts(dos, index.getCellStart());
+			writeDoubles(dos, index.getCenters());
+			writeDoubles(dos, index.getRadii());
+
+			// constellations
+			Map<String,Constellation> vis = snap.getViewConst();
+			dos.writeInt(snap.getConst().size());
+			for (Constellation c : snap.getConst().values()) {
+				dos.writeInt(c.ID_NUM);
+				dos.writeInt(c.getCreator());
+				writeString(dos, c.getName());
+				writeString(dos, c.getCode());
+				dos.writeBoolean(vis.get(c.getCode()) == c);
+				dos.writeInt(c.getLineIds().size());
+				for (int[] line : c.getLineIds()) {
+					dos.writeInt(line[Constellation.START]);
+					dos.writeInt(line[Constellation.END]);
+				}
+			}
+		} finally {
+			dos.close();
+		}
+
+		// patch in length and checksum
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8);
+			raf.writeLong(raf.length() - HEADER);
+			raf.writeLong(crc.getValue());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads a snapshot saved with write
+	 * @throws IOException if the file isn't a snapshot of this format, or
+	 * is damaged
+	 */
+	public static SkySnapshot read(File file) throws IOException {
+
+		// map it
+		FileInputStream fis = new FileInputStream(file);
+		MappedByteBuffer buf;
+		try {
+			FileChannel ch = fis.getChannel();
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			fis.close();
+		}
+
+		// check header and checksum
+		if (buf.capacity() < HEADER || buf.getInt() != MAGIC)
+			throw new IOException(file + " is not a sky snapshot");
+		int format = buf.getInt();
+		if (format != FORMAT)
+			throw new IOException(file + " is snapshot format " + format + ", expected " + FORMAT);
+		long length = buf.getLong();
+		long sum = buf.getLong();
+		long version = buf.getLong();
+		long catalogVersion = buf.getLong();
+		double magLimit = buf.getDouble();
+		if (length != buf.capacity() - HEADER)
+			throw new IOException(file + " is truncated");
+		if (checksum(buf, HEADER) != sum)
+			throw new IOException(file + " fails its checksum");
+		buf.position(HEADER);
+
+		// string table
+		String[] table = new String[buf.getInt()];
+		for (int i = 0; i < table.length; i++) {
+			byte[] b = new byte[buf.getInt()];
+			buf.get(b);
+			table[i] = new String(b, "UTF-8");
+		}
+
+		// star columns
+		int n = buf.getInt();
+		int[] ids = readInts(buf, n);
+		double[] ra = readDoubles(buf, n);
+		double[] dec = readDoubles(buf, n);
+		double[] pmra = readDoubles(buf, n);
+		double[] pmdec = readDoubles(buf, n);
+		double[] mags = readDoubles(buf, n);
+		double[] j2000 = readDoubles(buf, Vector.DIM * n);
+		double[] pos = readDoubles(buf, Vector.DIM * n);
+		int[] text = readInts(buf, 4 * n);
+
+		// stars, already positioned
+		Star[] stars = new Star[n];
+		Map<Integer,Star> directory = new HashMap<Integer,Star>(n*10/7 + 1);
+		for (int i = 0; i < n; i++) {
+			int t = 4 * i;
+			Star st = new Star(ids[i], ra[i], dec[i], mags[i], str(table, text[t]),
+					str(table, text[t + 1]), text[t + 3] == NO_FLAM ? null : text[t + 3],
+					str(table, text[t + 2]), pmra[i], pmdec[i]);
+			int j = Vector.DIM * i;
+			st.setJ2000(j2000[j], j2000[j + 1], j2000[j + 2]);
+			st.setHat(pos[j], pos[j + 1], pos[j + 2]);
+			stars[i] = st;
+			directory.put(st.ID_NUM, st);
+		}
+
+		// magnitude order
+		int[] order = readInts(buf, n);
+		Star[] byMag = new Star[n];
+		for (int i = 0; i < n; i++)
+			byMag[i] = stars[order[i]];
+
+		// index cells
+		int div = buf.getInt();
+		int cells = SkyIndex.FACES * div * div;
+		int[] cellStart = readInts(buf, cells + 1);
+		double[] center = readDoubles(buf, Vector.DIM * cells);
+		double[] radius = readDoubles(buf, cells);
+		SkyIndex index = new SkyIndex(div, stars, pos, mags, cellStart, center, radius);
+
+		// constellations, linked
+		int numConst = buf.getInt();
+		Map<String,Constellation> all = new HashMap<String,Constellation>(numConst*10/7 + 1);
+		Map<String,Constellation> vis = new HashMap<String,Constellation>(numConst*10/7 + 1);
+		for (int k = 0; k < numConst; k++) {
+			int id = buf.getInt();
+			int creator = buf.getInt();
+			String name = readString(buf);
+			String code = readString(buf);
+			boolean viewed = buf.get() != 0;
+			int numLines = buf.getInt();
+			List<int[]> lines = new ArrayList<int[]>(numLines);
+			for (int l = 0; l < numLines; l++)
+				lines.add(new int[] { buf.getInt(), buf.getInt() });
+			Constellation c = new Constellation(id, creator, lines, name, code);
+			c.linkStars(directory);
+			all.put(code, c);
+			if (viewed)
+				vis.put(code, c);
+		}
+
+		return SkySnapshot.restore(version, catalogVersion, directory, byMag, magLimit,
+				all, vis, index);
+	}
+
+	/**
+	 * CRC32 of the buffer from offset to its end
+	 */
+	private static long checksum(ByteBuffer buf, int offset) {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = buf.duplicate();
+		b.position(offset);
+		byte[] chunk = new byte[1 << 16];
+		while (b.hasRemaining()) {
+			int len = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, len);
+			crc.update(chunk, 0, len);
+		}
+		return crc.getValue();
+	}
+
+	private static void number(String s, Map<String,Integer> strings, List<String> table) {
+		if (s != null && !strings.containsKey(s)) {
+			strings.put(s, table.size());
+			table.add(s);
+		}
+	}
+
+	private static int id(String s, Map<String,Integer> strings) {
+		return s == null ? NONE : strings.get(s);
+	}
+
+	private static String str(String[] table, int id) {
+		return id == NONE ? null : table[id];
+	}
+
+	private static void writeString(DataOutputStream dos, String s) throws IOException {
+		if (s == null) {
+			dos.writeInt(NONE);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		dos.writeInt(b.length);
+		dos.write(b);
+	}
+
+	private static String readString(ByteBuffer buf) throws IOException {
+		int len = buf.getInt();
+		if (len == NONE)
+			return null;
+		byte[] b = new byte[len];
+		buf.get(b);
+		return new String(b, "UTF-8");
+	}
+
+	private static void writeInts(DataOutputStream dos, int[] a) throws IOException {
+		for (int v : a)
+			dos.writeInt(v);
+	}
+
+	private static void writeDoubles(DataOutputStream dos, double[] a) throws IOException {
+		for (double v : a)
+			dos.writeDouble(v);
+	}
+
+	private static int[] readInts(ByteBuffer buf, int n) {
+		int[] a = new int[n];
+		buf.asIntBuffer().get(a);
+		buf.position(buf.position() + 4 * n);
+		return a;
+	}
+
+	private static double[] readDoubles(ByteBuffer buf, int n) {
+		double[] a = new double[n];
+		buf.asDoubleBuffer().get(a);
+		buf.position(buf.position() + 8 * n);
+		return a;
+	}
+
+	/**
+	 * Angle between two stars' current positions, from their chord
+	 */
+	private static double sep(Star a, Star b) {
+		Vector u = a.getHat(), v = b.getHat();
+		double dx = u.getX() - v.getX(), dy = u.getY() - v.getY(), dz = u.getZ() - v.getZ();
+		return 2 * Math.asin(Math.sqrt(dx*dx + dy*dy + dz*dz) / 2);
+	}
+
+	/**
+	 * driver method for testing: builds a sky from catalog files, saves a
+	 * snapshot of it, and times loading it back against building it
+	 * Usage: SnapshotFile [stars.json|stars.bin] [const.json] [sky.snap]
+	 */
+	public static void main(String[] args) throws IOException {
+
+		File starFile = new File(args.length > 0 ? args[0] : "stars.json");
+		File constFile = new File(args.length > 1 ? args[1] : "const.json");
+		File snapFile = new File(args.length > 2 ? args[2] : "sky.snap");
+
+		// cold
+		long t0 = System.nanoTime();
+		Sky sky = Sky.load(starFile, constFile, 6.5);
+		long t1 = System.nanoTime();
+		sky.save(snapFile);
+		long t2 = System.nanoTime();
+		System.out.println("built from catalog in " + (t1 - t0) / 1000000 + " ms, saved "
+				+ snapFile.length() + " bytes in " + (t2 - t1) / 1000000 + " ms");
+
+		// warm
+		t0 = System.nanoTime();
+		Sky warm = Sky.restore(snapFile);
+		t1 = System.nanoTime();
+		System.out.println("restored in " + (t1 - t0) / 1000000 + " ms");
+
+		// same sky
+		SkySnapshot a = sky.getSnapshot(), b = warm.getSnapshot();
+		int bad = 0;
+		for (Star st : a.getStars().values()) {
+			Star other = b.getStar(st.ID_NUM);
+			if (other == null || other.getHat().dot(st.getHat()) < 1 - 1e-15
+					|| other.getMag() != st.getMag())
+				bad++;
+		}
+		for (int i = 0; i < a.getByMag().size(); i++)
+			if (a.getByMag().get(i).ID_NUM != b.getByMag().get(i).ID_NUM)
+				bad++;
+		SkyView va = new SkyView(), vb = new SkyView();
+		CoordTrans ct = new CoordTrans(0.7, -1.5, 0.8, 2.0, 0, 1.2);
+		va.look(a, ct, t0 / 1000000, true);
+		vb.look(b, ct, t0 / 1000000, true);
+		System.out.println(a.getStars().size() + " stars, " + b.getConst().size()
+				+ " constellations (" + b.getViewConst().size() + " viewed), " + bad
+				+ " differences, view " + va.size() + "/" + va.numLines() + " vs " + vb.size() + "/"
+				+ vb.numLines());
+
+		// a sky saved at another epoch restores there, and back to J2000
+		long epoch = CoordTrans.J2000 + (long) (2000 * 365.25 * 86400000L);
+		sky.setEpoch(epoch);
+		sky.save(snapFile);
+		Sky moved = Sky.restore(snapFile);
+		double drift = 0, back = 0;
+		for (Star st : sky.getSnapshot().getStars().values())
+			drift = Math.max(drift, sep(st, moved.getStar(st.ID_NUM)));
+		moved.resetEpoch();
+		for (Star st : a.getStars().values())
+			back = Math.max(back, sep(st, moved.getStar(st.ID_NUM)));
+		System.out.println(String.format("at epoch +2000 yr restored within %.1e rad, "
+				+ "reset to J2000 within %.1e rad", drift, back));
+		if (drift > 1e-12 || back > 1e-12) {
+			System.out.println("epoch lost in the snapshot");
+			System.exit(1);
+		}
+		sky.resetEpoch();
+		sky.save(snapFile);
+
+		// damage is caught
+		RandomAccessFile raf = new RandomAccessFile(snapFile, "rw");
+		raf.seek(snapFile.length() / 2);
+		int x = raf.read();
+		raf.seek(snapFile.length() / 2);
+		raf.write(x ^ 1);
+		raf.close();
+		try {
+			Sky.restore(snapFile);
+			System.out.println("damaged snapshot loaded!");
+		} catch (IOException e) {
+			System.out.println("damaged snapshot rejected: " + e.getMessage());
+		}
+		snapFile.delete();
+	}
+}
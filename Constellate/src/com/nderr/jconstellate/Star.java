@@ -26,6 +26,7 @@ public class Star implements Comparable<Star> {
 
 	private transient double x = 0;
 	private transient double y = 0;
+	private transient int frame = -1; // frame x and y were last set for
 
 	private String name;
 	private String bayer;
@@ -35,9 +36,19 @@ public class Star implements Comparable<Star> {
 	// position on unit celestial sphere
 	private transient Vector hat = null;
 
+	// J2000 position on unit celestial sphere, stored in the catalog so
+	// loading needs no trig (NaN if not yet computed)
+	private double cx = Double.NaN;
+	private double cy = Double.NaN;
+	private double cz = Double.NaN;
+
 	// apparent magnitude (smaller is brighter!)
 	private double mag = 0;
 
+	// proper motion in RADIANS per year (ra component includes cos(dec))
+	private double pmra = 0;
+	private double pmdec = 0;
+
 	/**
 	 * Empty constructor for GSON.
 	 */
@@ -63,6 +74,31 @@ public class Star implements Comparable<Star> {
 		this.cons = cons;
 	}
 
+	/**
+	 * Creates a copy of the given star, without its plotting state. The copy
+	 * shares the original's position until given its own.
+	 */
+	public Star(Star that) {
+		this(that.ID_NUM, that.ra, that.dec, that.mag, that.name, that.bayer,
+				that.flam, that.cons, that.pmra, that.pmdec);
+		this.cx = that.cx;
+		this.cy = that.cy;
+		this.cz = that.cz;
+		if (that.hat != null)
+			setHat(that.hat.getX(), that.hat.getY(), that.hat.getZ());
+	}
+
+	/**
+	 * Creates star as above, with proper motion in radians per year (the
+	 * right ascension component already multiplied by cos(dec))
+	 */
+	public Star(int id, double ra, double dec, double mag, String name, 
+			String bayer, Integer flam, String cons, double pmra, double pmdec) {
+		this(id, ra, dec, mag, name, bayer, flam, cons);
+		this.pmra = pmra;
+		this.pmdec = pmdec;
+	}
+
 	/**
 	 * Returns whether star has a Bayer identifier
 	 */
@@ -123,10 +159,55 @@ public class Star implements Comparable<Star> {
 	}
 
 	/**
-	 * Sets the star's hat vector.
+	 * Sets the star's hat vector to its J2000 position, from the stored
+	 * cartesian coordinates if the catalog had them
 	 */
 	public void setHat() {
-		hat = new Vector(Math.PI/2 - dec, ra); // use Vector constructor
+		if (Double.isNaN(cx)) {
+			hat = new Vector(Math.PI/2 - dec, ra); // use Vector constructor
+			cx = hat.getX();
+			cy = hat.getY();
+			cz = hat.getZ();
+		} else {
+			setHat(cx, cy, cz);
+		}
+	}
+
+	/**
+	 * Sets the star's hat vector to the provided unit vector, e.g. its
+	 * position at an epoch other than J2000
+	 */
+	public void setHat(double x, double y, double z) {
+		if (hat == null) {
+			hat = new Vector(x, y, z);
+		} else {
+			hat.setX(x);
+			hat.setY(y);
+			hat.setZ(z);
+		}
+	}
+
+	/**
+	 * Sets the stored J2000 unit vector (and the hat to it), for catalogs
+	 * restored with positions already computed
+	 */
+	void setJ2000(double x, double y, double z) {
+		cx = x;
+		cy = y;
+		cz = z;
+		setHat(x, y, z);
+	}
+
+	/**
+	 * Writes the J2000 unit vector (not the hat, which may be at another
+	 * epoch) into out from offset
+	 */
+	void getJ2000(double[] out, int offset) {
+		if (Double.isNaN(cx))
+			setHat();
+		out[offset] = cx;
+		out[offset + 1] = cy;
+		out[offset + 2] = cz;
 	}
 
 	/**
@@ -181,11 +262,32 @@ public class Star implements Comparable<Star> {
 		return dec;
 	}
 
+	/**
+	 * @return proper motion in right ascension (times cos(dec)), radians/year
+	 */
+	public double getPMRA() {
+		return pmra;
+	}
+
+	/**
+	 * @return proper motion in declination, radians/year
+	 */
+	public double getPMDec() {
+		return pmdec;
+	}
+
+	/**
+	 * Returns whether star has a nonzero proper motion
+	 */
+	public boolean hasProperMotion() {
+		return pmra != 0 || pmdec != 0;
+	}
+
 	/**
 	 * Gets x-coordinate for plotting on screen of size w x h
 	 */
 	public int getX(int w, int h) {
-		double d = Math.sqrt(Math.pow(w,2) + Math.pow(h,2));
+		double d = Math.sqrt((double) w*w + (double) h*h);
 		return (int) ((d/2)*x + w/2);
 	}
 
@@ -193,7 +295,7 @@ public class Star implements Comparable<Star> {
 	 * Gets y-coordinate for plotting on screen of size w x h
 	 */
 	public int getY(int w, int h) {
-		double d = Math.sqrt(Math.pow(w,2) + Math.pow(h,2));
+		double d = Math.sqrt((double) w*w + (double) h*h);
 		return (int) (-(d/2)*y + h/2);
 	}
 
@@ -207,6 +309,50 @@ public class Star implements Comparable<Star> {
 		return true;
 	}
 
+	/**
+	 * Sets the normalized x and y coordinates using a screen matrix from
+	 * CoordTrans.getMatrix, unless already set for this frame
+	 * @return whether the coordinates were computed
+	 */
+	public boolean setPlot(double[] m, int frame) {
+		if (this.frame == frame)
+			return false;
+		x = m[0]*hat.getX() + m[1]*hat.getY() + m[2]*hat.getZ();
+		y = m[3]*hat.getX() + m[4]*hat.getY() + m[5]*hat.getZ();
+		this.frame = frame;
+		return true;
+	}
+
+	/**
+	 * @return normalized x coordinate from the last setPlot
+	 */
+	public double getPlotX() {
+		return x;
+	}
+
+	/**
+	 * @return normalized y coordinate from the last setPlot
+	 */
+	public double getPlotY() {
+		return y;
+	}
+
+	/**
+	 * Gets estimated bytes of this star's record and its strings, not
+	 * counting its unit vector
+	 */
+	public long footprint() {
+		return Footprint.shallow(Star.class) + Footprint.string(name) + Footprint.string(bayer)
+				+ Footprint.string(cons) + (flam == null ? 0 : Footprint.BOXED);
+	}
+
+	/**
+	 * Gets estimated bytes of this star's unit vector, if made
+	 */
+	public long hatFootprint() {
+		return hat == null ? 0 : Footprint.shallow(Vector.class) + Footprint.array(Vector.DIM, 8);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -218,11 +364,18 @@ public class Star implements Comparable<Star> {
 	}
 
 	/**
-	 * Writes a JSON file of star objects from hygdata_v3.csv
+	 * Writes a JSON file of star objects from hygdata_v3.csv, or if given a
+	 * JSON star file, rewrites it to stars.json with unit vectors added
 	 * @param args
 	 */
 	public static void main(String[] args) {
 		
+		// just add unit vectors to an existing catalog
+		if (args.length > 0) {
+			upgrade(args[0]);
+			return;
+		}
+		
 		Set<Integer> starIDs = new HashSet<Integer>();
 
 		// get scanner
@@ -276,7 +429,7 @@ public class Star implements Comparable<Star> {
 		int id;
 		String name, bayer, cons;
 		Integer flam;
-		double ra, dec, mag;
+		double ra, dec, mag, pmra, pmdec;
 
 		// go through file
 		while (s.hasNextLine()) {
@@ -324,8 +477,12 @@ public class Star implements Comparable<Star> {
 			// get magnitude
 			mag = Double.parseDouble(info[13]);
 
+			// get proper motion (in radians per year)
+			pmra = info[25].equals("") ? 0 : Double.parseDouble(info[25]);
+			pmdec = info[26].equals("") ? 0 : Double.parseDouble(info[26]);
+
 			// add star to list
-			stars.add(new Star(id,ra,dec,mag,name,bayer,flam,cons));
+			stars.add(new Star(id,ra,dec,mag,name,bayer,flam,cons,pmra,pmdec));
 		}
 
 		// use gson
@@ -344,6 +501,7 @@ public class Star implements Comparable<Star> {
 		int num = 0;
 		for (Star st : stars) {
 			if (st.getMag() < 4 || starIDs.contains(st.ID_NUM)) {
+				st.setHat();
 				pw.println(gson.toJson(st));
 				num++;
 			}
@@ -352,4 +510,42 @@ public class Star implements Comparable<Star> {
 		System.out.println(num + " written to JSON");
 	}
 
+	/**
+	 * Reads a JSON star file and writes it back to stars.json with each
+	 * star's J2000 unit vector stored
+	 */
+	private static void upgrade(String file) {
+
+		// read all stars first, file may be stars.json itself
+		Gson gson = new Gson();
+		List<Star> stars = new ArrayList<Star>();
+		Scanner s = null;
+		try {
+			s = new Scanner(new File(file));
+		} catch (IOException e) {
+			System.out.println("Problem with " + file);
+			System.exit(-1);
+		}
+		while (s.hasNextLine())
+			stars.add(gson.fromJson(s.nextLine(), Star.class));
+		s.close();
+
+		// start writing new JSON file
+		PrintWriter pw = null;
+		try {
+			pw = new PrintWriter(new File("stars.json"));
+		} catch (IOException e) {
+			System.out.println("error with file");
+			System.exit(-1);
+		}
+
+		// compute vectors and write
+		for (Star st : stars) {
+			st.setHat();
+			pw.println(gson.toJson(st));
+		}
+		pw.close();
+		System.out.println(stars.size() + " written to JSON");
+	}
+
 }
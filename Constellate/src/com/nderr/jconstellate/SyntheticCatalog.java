@@ -0,0 +1,329 @@
+package com.nderr.jconstellate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.gson.Gson;
+
+/**
+ * Generates made up star catalogs of any size for scaling tests. Star counts
+ * grow with magnitude like the real sky (about 10^(0.45m + 1) stars brighter
+ * than m, so the faint limit follows from the size), fainter stars crowd
+ * toward the galactic plane, and constellations are random figures through
+ * neighboring bright stars. Star i depends only on the seed and i, so a
+ * catalog is the same on every machine and can be made in parallel or in
+ * pieces.
+ */
+public class SyntheticCatalog {
+
+	public static final int BIN_MAGIC = 0x53544152; // "STAR"
+	public static final double BRIGHTEST = -1.5; // no star brighter
+	public static final double FIGURE_MAG = 6.5; // figures use stars brighter
+	private static final int BLOCK = 65536; // stars made at a time when streaming
+
+	// galactic to J2000 equatorial, transpose of the IAU equatorial to galactic
+	private static final double[] GAL = {
+		-0.0548755604, 0.4941094279, -0.8676661490,
+		-0.8734370902, -0.4448296300, -0.1980763734,
+		-0.4838350155, 0.7469822445, 0.4559837762
+	};
+
+	private final int n; // number of stars
+	private final long seed;
+	private final double faint; // faint magnitude limit
+
+	/**
+	 * Makes a generator of n stars from the given seed
+	 */
+	public SyntheticCatalog(int n, long seed) {
+		this.n = n;
+		this.seed = seed;
+		this.faint = (Math.log10(n) - 1) / 0.45;
+	}
+
+	/**
+	 * Gets number of stars
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Gets the magnitude of the faintest stars
+	 */
+	public double getFaintLimit() {
+		return faint;
+	}
+
+	/**
+	 * Makes star i (id i + 1) of the catalog, with its hat set
+	 */
+	public Star star(int i) {
+
+		long[] state = { mix(seed * 0x9E3779B97F4A7C15L + i) };
+
+		// magnitude from the cumulative count
+		double mag = faint + Math.log10(1 - uniform(state)) / 0.45;
+		mag = Math.max(BRIGHTEST, mag);
+
+		// galactic latitude: a disk share, growing with magnitude, piles up
+		// at the plane, the rest is spread over the sphere
+		double disk = Math.min(0.8, 0.1 + 0.06 * Math.max(0, mag));
+		double sinB;
+		if (uniform(state) < disk) {
+			double e = -0.12 * Math.log(1 - uniform(state)); // exponential
+			sinB = Math.min(1, e) * (uniform(state) < 0.5 ? -1 : 1);
+		} else {
+			sinB = 2 * uniform(state) - 1;
+		}
+		double cosB = Math.sqrt(1 - sinB*sinB);
+		double l = 2 * Math.PI * uniform(state);
+		double gx = cosB * Math.cos(l), gy = cosB * Math.sin(l), gz = sinB;
+
+		// to equatorial
+		double x = GAL[0]*gx + GAL[1]*gy + GAL[2]*gz;
+		double y = GAL[3]*gx + GAL[4]*gy + GAL[5]*gz;
+		double z = GAL[6]*gx + GAL[7]*gy + GAL[8]*gz;
+		double ra = Math.atan2(y, x);
+		if (ra < 0)
+			ra += 2 * Math.PI;
+		double dec = Math.asin(Math.max(-1, Math.min(1, z)));
+
+		// proper motion of a few mas/yr, more for bright (near) stars
+		double pmScale = 2e-8 * Math.pow(10, -0.1 * (mag - 6));
+		double pmra = pmScale * gaussian(state);
+		double pmdec = pmScale * gaussian(state);
+
+		Star st = new Star(i + 1, ra, dec, mag, null, null, null, null, pmra, pmdec);
+		st.setHat();
+		return st;
+	}
+
+	/**
+	 * Makes stars [from, to) in parallel
+	 */
+	public Star[] stars(final int from, int to) {
+		final Star[] out = new Star[to - from];
+		Parallel.forRange(out.length, new Parallel.Task() {
+			public void run(int lo, int hi) {
+				for (int k = lo; k < hi; k++)
+					out[k] = star(from + k);
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Makes every star
+	 */
+	public List<Star> stars() {
+		return Arrays.asList(stars(0, n));
+	}
+
+	/**
+	 * Makes count random figures of 3 to 10 stars through the given stars,
+	 * each a chain from a random star to bright neighbors within 12 degrees,
+	 * with codes S1, S2, ... and creators 1 to 1000
+	 */
+	public List<Constellation> constellations(List<Star> stars, int count) {
+
+		Random r = new Random(seed);
+		SkyIndex index = new SkyIndex(stars);
+		List<Constellation> out = new ArrayList<Constellation>(count);
+		List<Star> near = new ArrayList<Star>();
+		double reach = 12 * Math.PI / 180;
+
+		for (int c = 0; c < count && !stars.isEmpty(); c++) {
+
+			// walk from star to a bright unused neighbor
+			int size = 3 + r.nextInt(8);
+			Star at = stars.get(r.nextInt(stars.size()));
+			Set<Star> used = new HashSet<Star>();
+			used.add(at);
+			List<int[]> lines = new ArrayList<int[]>();
+			while (used.size() < size) {
+				near.clear();
+				index.brightest(at.getHat(), reach, 16, Double.MAX_VALUE, near);
+				near.removeAll(used);
+				if (near.isEmpty())
+					break;
+				Star next = near.get(r.nextInt(near.size()));
+				lines.add(new int[] { at.ID_NUM, next.ID_NUM });
+				used.add(next);
+
+				// sometimes branch again from the same star
+				at = r.nextInt(4) == 0 ? at : next;
+			}
+
+			int id = c + 1;
+			out.add(new Constellation(id, 1 + r.nextInt(1000), lines,
+					"Synthetic " + id, "S" + id));
+		}
+		return out;
+	}
+
+	/**
+	 * Writes every star to a file, as JSON lines, or as binary if the name
+	 * ends in .bin, making them a block at a time so any size fits in memory
+	 * @return the stars brighter than FIGURE_MAG, for constellations
+	 */
+	public List<Star> write(File file) throws IOException {
+
+		List<Star> bright = new ArrayList<Star>();
+		boolean bin = file.getName().endsWith(".bin");
+		Gson gson = new Gson();
+		DataOutputStream dos = null;
+		PrintWriter pw = null;
+		if (bin) {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+					1 << 16));
+			dos.writeInt(BIN_MAGIC);
+			dos.writeInt(n);
+		} else {
+			pw = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+		}
+
+		try {
+			for (int from = 0; from < n; from += BLOCK) {
+				for (Star st : stars(from, Math.min(n, from + BLOCK))) {
+					if (bin)
+						writeStar(dos, st);
+					else
+						pw.println(gson.toJson(st));
+					if (st.getMag() < FIGURE_MAG)
+						bright.add(st);
+				}
+			}
+		} finally {
+			if (bin)
+				dos.close();
+			else
+				pw.close();
+		}
+		return bright;
+	}
+
+	/**
+	 * Writes one star in binary: id, ra, dec, mag, pmra, pmdec
+	 */
+	private static void writeStar(DataOutputStream dos, Star st) throws IOException {
+		dos.writeInt(st.ID_NUM);
+		dos.writeDouble(st.getRA());
+		dos.writeDouble(st.getDec());
+		dos.writeFloat((float) st.getMag());
+		dos.writeDouble(st.getPMRA());
+		dos.writeDouble(st.getPMDec());
+	}
+
+	/**
+	 * Writes stars in the binary format
+	 */
+	public static void writeBinary(List<Star> stars, File file) throws IOException {
+		DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			dos.writeInt(BIN_MAGIC);
+			dos.writeInt(stars.size());
+			for (Star st : stars)
+				writeStar(dos, st);
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Reads stars written in the binary format
+	 */
+	public static List<Star> readBinary(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (dis.readInt() != BIN_MAGIC)
+				throw new IOException(file + " is not a binary star file");
+			int count = dis.readInt();
+			List<Star> stars = new ArrayList<Star>(count);
+			for (int i = 0; i < count; i++) {
+				int id = dis.readInt();
+				double ra = dis.readDouble();
+				double dec = dis.readDouble();
+				double mag = dis.readFloat();
+				double pmra = dis.readDouble();
+				double pmdec = dis.readDouble();
+				stars.add(new Star(id, ra, dec, mag, null, null, null, null, pmra, pmdec));
+			}
+			return stars;
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Scrambles a long (splitmix64 finalizer)
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Next uniform double in [0,1) from a splitmix64 state
+	 */
+	private static double uniform(long[] state) {
+		state[0] += 0x9E3779B97F4A7C15L;
+		return (mix(state[0]) >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Next standard normal from a splitmix64 state
+	 */
+	private static double gaussian(long[] state) {
+		double u = uniform(state);
+		double v = uniform(state);
+		return Math.sqrt(-2 * Math.log(1 - u)) * Math.cos(2 * Math.PI * v);
+	}
+
+	/**
+	 * Usage: SyntheticCatalog n [seed] [stars.json|stars.bin] [const.json] [figures]
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		File starFile = new File(args.length > 2 ? args[2] : "synthetic_stars.bin");
+		File constFile = new File(args.length > 3 ? args[3] : "synthetic_const.json");
+		int figures = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+
+		// stars
+		SyntheticCatalog cat = new SyntheticCatalog(n, seed);
+		long t0 = System.nanoTime();
+		List<Star> bright = cat.write(starFile);
+		long t1 = System.nanoTime();
+		System.out.println(n + " stars to mag " + String.format("%.2f", cat.getFaintLimit())
+				+ " (" + bright.size() + " brighter than " + FIGURE_MAG + ") written to "
+				+ starFile + " in " + (t1 - t0) / 1000000 + " ms");
+
+		// figures
+		Gson gson = new Gson();
+		PrintWriter pw = new PrintWriter(constFile);
+		for (Constellation c : cat.constellations(bright, figures))
+			pw.println(gson.toJson(c));
+		pw.close();
+		System.out.println(figures + " constellations written to " + constFile);
+	}
+}
@@ -0,0 +1,440 @@
+package com.nderr.jconstellate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes concurrent views of observers at one place and moment together.
+ * Requests for the same snapshot, latitude, longitude and time step are
+ * grouped: the first to arrive waits for others to join while another
+ * group is being computed (at most a short window), then works out the
+ * sidereal time and horizon frame once, each view's screen matrix from
+ * it, every view's stars in one pass over the sky index, and every
+ * view's constellations in one pass over the figure buffer, reading each
+ * figure star once for the group. A lone request under light load
+ * doesn't wait.
+ * Views are computed at the time rounded to the time step.
+ *
+ * Each caller passes its own SkyView, set to its projection and screen,
+ * and reads it back once look returns, so nothing is copied between
+ * threads. The grouped work runs on the first caller's thread.
+ */
+public class ViewBatcher {
+
+	public static final long DEFAULT_WINDOW = 1000; // us to wait for a group to fill
+	public static final int DEFAULT_MAX_BATCH = 32;
+	public static final long DEFAULT_TIME_STEP = 1000; // ms; the sky turns 15" a second
+
+	/**
+	 * Snapshot, place and moment a group shares
+	 */
+	private static final class Key {
+
+		private final long version; // snapshot version
+		private final long time; // in time steps
+		private final double lat, lon; // radians
+
+		private Key(long version, long time, double lat, double lon) {
+			this.version = version;
+			this.time = time;
+			this.lat = lat;
+			this.lon = lon;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return version == k.version && time == k.time && lat == k.lat && lon == k.lon;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = version;
+			h = 31 * h + time;
+			h = 31 * h + Double.doubleToLongBits(lat);
+			h = 31 * h + Double.doubleToLongBits(lon);
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/**
+	 * Views waiting to be computed together
+	 */
+	private static final class Group {
+
+		private final Key key;
+		private final SkySnapshot snap;
+		private final CoordTrans place; // first request's, for sidereal time
+		private final SkyView[] views;
+		private final double[] poses; // el, az, spin, angDiam of each view
+		private final boolean[] horizon;
+		private int size = 0; // guarded by the batcher's lock
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile RuntimeException error;
+
+		private Group(Key key, SkySnapshot snap, CoordTrans place, int max) {
+			this.key = key;
+			this.snap = snap;
+			this.place = place;
+			views = new SkyView[max];
+			poses = new double[4 * max];
+			horizon = new boolean[max];
+		}
+	}
+
+	private final long window; // ns
+	private final int maxBatch;
+	private final long timeStep; // ms
+
+	private final Object lock = new Object();
+	private final Map<Key,Group> open = new HashMap<Key,Group>(); // groups taking views
+	private int computing = 0; // groups being computed
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong groups = new AtomicLong();
+
+	/**
+	 * Makes a batcher with the default window, group size and time step
+	 */
+	public ViewBatcher() {
+		this(DEFAULT_WINDOW, DEFAULT_MAX_BATCH, DEFAULT_TIME_STEP);
+	}
+
+	/**
+	 * Makes a batcher waiting up to windowMicros for groups of at most
+	 * maxBatch views, at times rounded to timeStep milliseconds
+	 */
+	public ViewBatcher(long windowMicros, int maxBatch, long timeStep) {
+		if (windowMicros < 0 || maxBatch < 1 || timeStep < 1)
+			throw new IllegalArgumentException("bad batching " + windowMicros + " us, "
+					+ maxBatch + " views, " + timeStep + " ms");
+		this.window = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatch = maxBatch;
+		this.timeStep = timeStep;
+	}
+
+	/**
+	 * Gets the time views requested at the given time are computed at
+	 */
+	public long round(long time) {
+		return Math.round((double) time / timeStep) * timeStep;
+	}
+
+	/**
+	 * Finds the stars and constellations in view of the coord transfer
+	 * object into view, as SkyView.look at the rounded time, together with
+	 * other views of the same place and moment
+	 * @return number of stars in view
+	 */
+	public int look(SkySnapshot snap, SkyView view, CoordTrans ct, long time, boolean horizon) {
+
+		Key key = new Key(snap.getVersion(), Math.round((double) time / timeStep), ct.getLat(),
+				ct.getLon());
+		Group g;
+		boolean first;
+		synchronized (lock) {
+
+			// join the open group, or start one
+			g = open.get(key);
+			first = g == null;
+			if (first) {
+				g = new Group(key, snap, ct, maxBatch);
+				open.put(key, g);
+			}
+			int k = g.size++;
+			g.views[k] = view;
+			g.poses[4*k] = ct.getEl();
+			g.poses[4*k + 1] = ct.getAz();
+			g.poses[4*k + 2] = ct.getSpin();
+			g.poses[4*k + 3] = ct.getAngDiam();
+			g.horizon[k] = horizon;
+
+			// a full group goes now
+			if (g.size == maxBatch) {
+				open.remove(key);
+				lock.notifyAll();
+			}
+		}
+		requests.incrementAndGet();
+
+		if (first)
+			lead(g);
+		else
+			follow(g);
+		return view.size();
+	}
+
+	/**
+	 * Waits for the group to fill, the window to pass or the groups being
+	 * computed to finish, then computes it
+	 */
+	private void lead(Group g) {
+
+		// wait, but compute for the others even if interrupted
+		boolean interrupted = false;
+		long deadline = System.nanoTime() + window;
+		synchronized (lock) {
+			long left;
+			while (open.get(g.key) == g && computing > 0
+					&& (left = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(lock, left);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					break;
+				}
+			}
+			if (open.get(g.key) == g)
+				open.remove(g.key);
+			computing++;
+		}
+
+		try {
+			compute(g);
+		} catch (RuntimeException e) {
+			g.error = e;
+			throw e;
+		} finally {
+			groups.incrementAndGet();
+			g.done.countDown();
+			synchronized (lock) {
+				if (--computing == 0)
+					lock.notifyAll();
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the group's first caller to compute it. The view is being
+	 * written until then, so this doesn't give up when interrupted.
+	 */
+	private static void follow(Group g) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				g.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (g.error != null)
+			throw new IllegalStateException("batched view failed", g.error);
+	}
+
+	/**
+	 * Computes every view of a closed group
+	 */
+	private void compute(Group g) {
+
+		// what the group shares: sidereal time, horizon frame and zenith
+		int n = g.size;
+		SkySnapshot snap = g.snap;
+		double[] frame = CoordTrans.getHorizon(g.key.lat, g.place.lmst(g.key.time * timeStep),
+				new double[9]);
+		double[] zenith = { frame[6], frame[7], frame[8] };
+
+		// each view's matrix, reach and planes
+		double[] axes = new double[Vector.DIM * n];
+		double[] angs = new double[n];
+		double[][] planes = new double[n][];
+		int[] numPlanes = new int[n];
+		List<List<Star>> found = new ArrayList<List<Star>>(n);
+		for (int k = 0; k < n; k++) {
+			SkyView view = g.views[k];
+			double[] m = view.getMatrix();
+			CoordTrans.getMatrix(frame, g.poses[4*k], g.poses[4*k + 1], g.poses[4*k + 2],
+					g.poses[4*k + 3], m);
+			view.aim(m, g.poses[4*k + 3]);
+			System.arraycopy(m, 6, axes, Vector.DIM * k, Vector.DIM);
+			angs[k] = view.getReach();
+			planes[k] = view.getPlanes();
+			numPlanes[k] = view.getNumPlanes();
+			view.getCandidates().clear();
+			found.add(view.getCandidates());
+		}
+
+		// stars of all views in one pass over the index, then their
+		// figures in one pass over the figure buffer
+		snap.getIndex().query(n, axes, angs, planes, numPlanes, snap.getMagLimit(), found);
+		double[][] zens = new double[n][];
+		for (int k = 0; k < n; k++)
+			zens[k] = g.horizon[k] ? zenith : null;
+		SkyView.finish(snap, g.views, zens, n);
+	}
+
+	/**
+	 * Gets number of views requested
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets number of groups computed
+	 */
+	public long getGroups() {
+		return groups.get();
+	}
+
+	/**
+	 * Gets mean views per group
+	 */
+	public double getMeanBatch() {
+		long n = groups.get();
+		return n == 0 ? 0 : (double) requests.get() / n;
+	}
+
+	/**
+	 * Adds metrics lines in SkyServer's text format
+	 */
+	public void metrics(StringBuilder sb) {
+		sb.append("view_batch_requests ").append(getRequests()).append('\n');
+		sb.append("view_batch_groups ").append(getGroups()).append('\n');
+		sb.append("view_batch_mean_size ").append(String.format("%.2f", getMeanBatch()))
+				.append('\n');
+	}
+
+	/**
+	 * driver method for testing: many threads request views of random
+	 * orientations from a few places at one moment, each looked at and
+	 * encoded, unbatched and batched, checking batched views match
+	 * Usage: ViewBatcher [threads] [requests per thread] [places] [window us]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		final int places = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long window = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_WINDOW;
+
+		// matrices from a shared horizon frame match CoordTrans's own
+		Random check = new Random(3);
+		double worst = 0;
+		double[] a = new double[9], b = new double[9], frame = new double[9];
+		for (int i = 0; i < 1000; i++) {
+			double lat = Math.PI * (check.nextDouble() - 0.5);
+			double lst = 2 * Math.PI * check.nextDouble();
+			double el = Math.PI * (check.nextDouble() - 0.5), az = 2 * Math.PI * check.nextDouble();
+			double spin = 2 * Math.PI * check.nextDouble(), ang = 0.1 + 2 * check.nextDouble();
+			CoordTrans.getMatrix(el, az, spin, lat, lst, ang, a);
+			CoordTrans.getMatrix(CoordTrans.getHorizon(lat, lst, frame), el, az, spin, ang, b);
+			for (int j = 0; j < 9; j++)
+				worst = Math.max(worst, Math.abs(a[j] - b[j]));
+		}
+		System.out.println("horizon frame matrix error " + worst);
+		boolean ok = worst < 1e-12;
+
+		// a synthetic sky
+		SyntheticCatalog cat = new SyntheticCatalog(100000, 1);
+		List<Star> stars = cat.stars();
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		Sky sky = new Sky(stars, cat.constellations(bright, 1000), 6.5);
+		sky.addViewConst();
+		final SkySnapshot snap = sky.getSnapshot();
+		final long time = DEFAULT_TIME_STEP * 1450000000L;
+
+		// unbatched, then batched, twice: the first round warms up and
+		// checks each batched view against the same view alone, the second
+		// is timed
+		final AtomicLong mismatches = new AtomicLong();
+		for (int round = 0; round < 2; round++) {
+			final boolean checking = round == 0;
+			for (final boolean batched : new boolean[] { false, true }) {
+				final ViewBatcher batcher = new ViewBatcher(window, DEFAULT_MAX_BATCH,
+						DEFAULT_TIME_STEP);
+				final LatencyStats stats = new LatencyStats();
+				final AtomicLong sum = new AtomicLong();
+				Thread[] pool = new Thread[threads];
+				long t0 = System.nanoTime();
+				for (int t = 0; t < threads; t++) {
+					final Random rand = new Random(t);
+					pool[t] = new Thread() {
+						@Override
+						public void run() {
+							SkyView view = new SkyView();
+							SkyView plain = new SkyView();
+							view.setScreen(1280, 720);
+							plain.setScreen(1280, 720);
+							ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+							for (int r = 0; r < requests; r++) {
+								int p = rand.nextInt(places);
+								double el = Math.PI / 2 * rand.nextDouble();
+								double az = 2 * Math.PI * rand.nextDouble();
+								double spin = 0.3 * (rand.nextDouble() - 0.5);
+								double ang = 0.4 + 1.2 * rand.nextDouble();
+								CoordTrans ct = new CoordTrans(0.2 * p - 0.3, 0.9 * p - 1.5,
+										el, az, spin, ang);
+								long r0 = System.nanoTime();
+								if (batched)
+									batcher.look(snap, view, ct, time, true);
+								else
+									view.look(snap, ct, time, true);
+								buf.clear();
+								sum.addAndGet(view.encode(buf, 1280, 720));
+								stats.record(System.nanoTime() - r0);
+
+								if (checking && batched) {
+									plain.look(snap, ct, batcher.round(time), true);
+									if (!same(view, plain))
+										mismatches.incrementAndGet();
+								}
+							}
+						}
+					};
+					pool[t].start();
+				}
+				for (Thread t : pool)
+					t.join();
+				long t1 = System.nanoTime();
+
+				if (round == 0)
+					continue;
+				double seconds = (t1 - t0) / 1e9;
+				System.out.println(String.format("%s: %d requests in %.2f s, %.0f/s, %d bytes out",
+						batched ? "batched" : "unbatched", threads * requests, seconds,
+						threads * requests / seconds, sum.get()));
+				System.out.println("  latency " + stats);
+				if (batched) {
+					StringBuilder sb = new StringBuilder();
+					batcher.metrics(sb);
+					System.out.print(sb);
+				}
+			}
+		}
+		System.out.println(mismatches.get() + " batched views differ from unbatched");
+		ok &= mismatches.get() == 0;
+		if (!ok)
+			System.exit(1);
+	}
+
+	/**
+	 * Whether two views hold the same stars at nearly the same places
+	 */
+	private static boolean same(SkyView a, SkyView b) {
+		if (a.size() != b.size() || a.numLines() != b.numLines())
+			return false;
+		for (int i = 0; i < a.size(); i++) {
+			if (a.getStar(i) != b.getStar(i) || Math.abs(a.getX(i) - b.getX(i)) > 1e-5
+					|| Math.abs(a.getY(i) - b.getY(i)) > 1e-5)
+				return false;
+		}
+		return true;
+	}
+}
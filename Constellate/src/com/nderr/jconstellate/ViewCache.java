@@ -0,0 +1,436 @@
+package com.nderr.jconstellate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of encoded views, keyed by pose rounded to a grid: time to
+ * timeStep, angles to angleStep, and the field of view to a relative step of
+ * angleStep (its log rounded to angleStep). Fields narrower than FULL_FIELD
+ * round time and angles to steps shrunk by the same ratio, so rounding never
+ * moves a narrow view by more of its width than a wide one. Views are
+ * computed at the rounded pose, so every request mapping to a key gets
+ * exactly the same answer. Keys include
+ * the snapshot version, which changes with the magnitude cutoff and the
+ * viewed constellations, so a sky update never serves an old view.
+ *
+ * Entries are evicted least recently used first once their bytes pass the
+ * limit. Concurrent misses on one key compute it once: the first caller
+ * loads it and the rest wait for that result.
+ */
+public class ViewCache {
+
+	public static final long DEFAULT_BYTES = 64L << 20;
+	public static final double DEFAULT_ANGLE_STEP = Math.PI / 1800; // 0.1 deg
+	public static final long DEFAULT_TIME_STEP = 60000; // ms
+	public static final double FULL_FIELD = Math.PI / 6; // narrowest with full steps
+
+	/**
+	 * Rounded pose and output options of a view
+	 */
+	public static final class Key {
+
+		private final long version; // snapshot version
+		private final long time; // in time steps
+		private final long lat, lon, el, az, spin, ang; // in angle steps
+		private final String variant; // projection, format and the like
+		private final double angleStep; // for this field
+		private final long timeStep; // for this field
+		private final double zoomStep; // log of field per ang
+		private final int hash;
+
+		private Key(long version, long time, long lat, long lon, long el, long az, long spin,
+				long ang, String variant, double angleStep, long timeStep, double zoomStep) {
+			this.version = version;
+			this.time = time;
+			this.lat = lat;
+			this.lon = lon;
+			this.el = el;
+			this.az = az;
+			this.spin = spin;
+			this.ang = ang;
+			this.variant = variant;
+			this.angleStep = angleStep;
+			this.timeStep = timeStep;
+			this.zoomStep = zoomStep;
+			long h = version;
+			h = 31 * h + time;
+			h = 31 * h + lat;
+			h = 31 * h + lon;
+			h = 31 * h + el;
+			h = 31 * h + az;
+			h = 31 * h + spin;
+			h = 31 * h + ang;
+			this.hash = (int) (h ^ (h >>> 32)) * 31 + variant.hashCode();
+		}
+
+		/**
+		 * Gets the rounded pose to compute the view at
+		 */
+		public CoordTrans getCoordTrans() {
+			return new CoordTrans(lat * angleStep, lon * angleStep, el * angleStep,
+					az * angleStep, spin * angleStep, Math.exp(ang * zoomStep));
+		}
+
+		/**
+		 * Gets the rounded time to compute the view at
+		 */
+		public long getTime() {
+			return time * timeStep;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hash == k.hash && version == k.version && time == k.time && lat == k.lat
+					&& lon == k.lon && el == k.el && az == k.az && spin == k.spin
+					&& ang == k.ang && variant.equals(k.variant);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return "v" + version + " t" + time + " [" + lat + "," + lon + "," + el + "," + az
+					+ "," + spin + "," + ang + "] " + variant;
+		}
+	}
+
+	private final long maxBytes;
+	private final double angleStep; // radians
+	private final long timeStep; // ms
+
+	private final LinkedHashMap<Key,byte[]> entries
+			= new LinkedHashMap<Key,byte[]>(256, 0.75f, true);
+	private final ConcurrentMap<Key,FutureTask<byte[]>> loading
+			= new ConcurrentHashMap<Key,FutureTask<byte[]>>();
+	private long bytes = 0; // held by entries
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong(); // loaded by this caller
+	private final AtomicLong joins = new AtomicLong(); // waited on another's load
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Makes a cache of the default size and grid
+	 */
+	public ViewCache() {
+		this(DEFAULT_BYTES, DEFAULT_ANGLE_STEP, DEFAULT_TIME_STEP);
+	}
+
+	/**
+	 * Makes a cache holding up to maxBytes of views, rounding angles to
+	 * angleStep radians and times to timeStep milliseconds
+	 */
+	public ViewCache(long maxBytes, double angleStep, long timeStep) {
+		if (maxBytes < 0 || angleStep <= 0 || timeStep <= 0)
+			throw new IllegalArgumentException("need positive steps and a size");
+		this.maxBytes = maxBytes;
+		this.angleStep = angleStep;
+		this.timeStep = timeStep;
+	}
+
+	/**
+	 * Gets the key of a pose (angles in radians) at the given time, for the
+	 * snapshot version and output variant
+	 * @throws IllegalArgumentException if the field isn't positive
+	 */
+	public Key key(long version, CoordTrans ct, long time, String variant) {
+		if (!(ct.getAngDiam() > 0))
+			throw new IllegalArgumentException("need a positive field of view");
+
+		// field by ratio, then steps to suit it
+		long ang = Math.round(Math.log(ct.getAngDiam()) / angleStep);
+		double scale = Math.min(1, Math.exp(ang * angleStep) / FULL_FIELD);
+		double as = angleStep * scale;
+		long ts = Math.max(1, Math.round(timeStep * scale));
+
+		return new Key(version, Math.round((double) time / ts), Math.round(ct.getLat() / as),
+				Math.round(ct.getLon() / as), Math.round(ct.getEl() / as),
+				Math.round(ct.getAz() / as), Math.round(ct.getSpin() / as), ang, variant, as, ts,
+				angleStep);
+	}
+
+	/**
+	 * Gets the view of the key, calling loader to compute it on a miss. If
+	 * another thread is already computing it, waits for that instead.
+	 * @throws Exception whatever the loader threw, to every caller waiting
+	 * on it; failures aren't cached
+	 */
+	public byte[] get(final Key key, final Callable<byte[]> loader) throws Exception {
+
+		// cached
+		byte[] view = cached(key);
+		if (view != null)
+			return view;
+
+		// load, or join a load in progress
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+
+				// a load may have finished since the first look
+				byte[] view = cached(key);
+				if (view == null) {
+					misses.incrementAndGet();
+					view = loader.call();
+					put(key, view);
+				}
+				return view;
+			}
+		});
+		FutureTask<byte[]> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key);
+			}
+		} else {
+			joins.incrementAndGet();
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Gets the view of the key if held, counting a hit
+	 */
+	private byte[] cached(Key key) {
+		synchronized (entries) {
+			byte[] view = entries.get(key);
+			if (view != null)
+				hits.incrementAndGet();
+			return view;
+		}
+	}
+
+	private static Exception unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return (Exception) cause;
+	}
+
+	/**
+	 * Adds a view, evicting the least recently used past the limit
+	 */
+	private void put(Key key, byte[] view) {
+		if (view.length > maxBytes)
+			return;
+		synchronized (entries) {
+			byte[] old = entries.put(key, view);
+			bytes += view.length - (old == null ? 0 : old.length);
+			Iterator<byte[]> it = entries.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				bytes -= it.next().length;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops every view
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * Gets number of views held
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets bytes of views held
+	 */
+	public long getBytes() {
+		synchronized (entries) {
+			return bytes;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets number of views computed
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets number of misses that waited on another caller's computation
+	 * instead of their own
+	 */
+	public long getJoins() {
+		return joins.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets fraction of gets not computed by their caller
+	 */
+	public double getHitRate() {
+		long h = hits.get() + joins.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Adds metrics lines in SkyServer's text format
+	 */
+	public void metrics(StringBuilder sb) {
+		sb.append("view_cache_hits ").append(getHits()).append('\n');
+		sb.append("view_cache_misses ").append(getMisses()).append('\n');
+		sb.append("view_cache_joins ").append(getJoins()).append('\n');
+		sb.append("view_cache_evictions ").append(getEvictions()).append('\n');
+		sb.append("view_cache_entries ").append(size()).append('\n');
+		sb.append("view_cache_bytes ").append(getBytes()).append('\n');
+		sb.append("view_cache_hit_rate ").append(String.format("%.3f", getHitRate())).append('\n');
+	}
+
+	/**
+	 * driver method for testing: many threads request jittered poses of a
+	 * few popular targets, with and without the cache, checking each key
+	 * is computed at most once
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final int targets = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		// a synthetic sky
+		SyntheticCatalog cat = new SyntheticCatalog(100000, 1);
+		List<Star> stars = cat.stars();
+		List<Star> bright = new ArrayList<Star>();
+		for (Star st : stars)
+			if (st.getMag() < SyntheticCatalog.FIGURE_MAG)
+				bright.add(st);
+		Sky sky = new Sky(stars, cat.constellations(bright, 1000), 6.5);
+		sky.addViewConst();
+		final SkySnapshot snap = sky.getSnapshot();
+		final long base = DEFAULT_TIME_STEP * 29000000L; // a bucket's center
+
+		// rounding moves the field by under half a relative step, and the
+		// pointing by under a step per FULL_FIELD of the field's width
+		ViewCache grid = new ViewCache();
+		double rad = Math.PI / 180, worst = 0;
+		for (double deg : new double[] { 0.01, 0.05, 0.14, 1, 29.9, 60, 180 }) {
+			CoordTrans ct = new CoordTrans(0.7, -1.5, 0.4321, 1.2345, 0.01, deg * rad);
+			CoordTrans at = grid.key(1, ct, base, "json").getCoordTrans();
+			double zoom = Math.abs(at.getAngDiam() / ct.getAngDiam() - 1);
+			double move = Math.abs(at.getEl() - ct.getEl()) + Math.abs(at.getAz() - ct.getAz());
+			worst = Math.max(worst, Math.max(zoom, move / Math.min(ct.getAngDiam(), FULL_FIELD)));
+			System.out.println(String.format("field %.2f deg served as %.4f deg, moved %.2e rad",
+					deg, at.getAngDiam() / rad, move));
+		}
+		if (worst > DEFAULT_ANGLE_STEP / FULL_FIELD) {
+			System.out.println("rounding too coarse: " + worst);
+			System.exit(1);
+		}
+
+		for (final boolean cached : new boolean[] { false, true }) {
+			final ViewCache cache = new ViewCache();
+			final ConcurrentMap<Key,AtomicLong> loads = new ConcurrentHashMap<Key,AtomicLong>();
+			final AtomicLong sum = new AtomicLong();
+			Thread[] pool = new Thread[threads];
+			long t0 = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				final Random rand = new Random(t);
+				pool[t] = new Thread() {
+					@Override
+					public void run() {
+						final SkyView view = new SkyView();
+						for (int r = 0; r < requests; r++) {
+
+							// popular targets far more often, a few hundredths
+							// of a degree and some seconds apart
+							int k = (int) (targets * Math.pow(rand.nextDouble(), 3));
+							double jitter = 0.0003 * (rand.nextDouble() - 0.5);
+							double el = 0.1 + 0.007 * k + jitter;
+							final CoordTrans ct = new CoordTrans(0.7, -1.5, el, 0.031 * k, 0,
+									0.5 + 0.002 * (k % 10));
+							final long time = base + rand.nextInt(20000) - 10000;
+							try {
+								byte[] out;
+								if (cached) {
+									final Key key = cache.key(snap.getVersion(), ct, time, "json");
+									out = cache.get(key, new Callable<byte[]>() {
+										public byte[] call() throws Exception {
+											AtomicLong n = new AtomicLong();
+											AtomicLong old = loads.putIfAbsent(key, n);
+											(old == null ? n : old).incrementAndGet();
+											view.look(snap, key.getCoordTrans(),
+													key.getTime(), true);
+											return SkyServer.json(view).getBytes("UTF-8");
+										}
+									});
+								} else {
+									view.look(snap, ct, time, true);
+									out = SkyServer.json(view).getBytes("UTF-8");
+								}
+								sum.addAndGet(out.length);
+							} catch (Exception e) {
+								throw new RuntimeException(e);
+							}
+						}
+					}
+				};
+				pool[t].start();
+			}
+			for (Thread t : pool)
+				t.join();
+			long t1 = System.nanoTime();
+
+			double seconds = (t1 - t0) / 1e9;
+			System.out.println(String.format("%s: %d requests in %.2f s, %.0f/s, %d bytes out",
+					cached ? "cached" : "uncached", threads * requests, seconds,
+					threads * requests / seconds, sum.get()));
+			if (cached) {
+				long most = 0;
+				for (AtomicLong n : loads.values())
+					most = Math.max(most, n.get());
+				StringBuilder sb = new StringBuilder();
+				cache.metrics(sb);
+				System.out.print(sb);
+				System.out.println(loads.size() + " keys loaded, at most " + most + " times each");
+			}
+		}
+	}
+}